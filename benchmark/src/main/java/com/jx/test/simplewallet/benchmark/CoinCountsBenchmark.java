@@ -0,0 +1,67 @@
+package com.jx.test.simplewallet.benchmark;
+
+import com.jx.test.simplewallet.model.CoinCounts;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of wallet contents: the legacy comma separated {@code content} and the packed counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoinCountsBenchmark {
+
+    @Param({ "10", "1000", "100000", "1000000" })
+    int coins;
+
+    String content;
+    CoinCounts counts;
+    byte[] packed;
+
+    @Setup
+    public void setUp() {
+        var sorted = Wallets.coins(coins);
+        content = Wallets.content(sorted);
+        counts = CoinCounts.of(sorted);
+        packed = counts.toBytes();
+    }
+
+    @Benchmark
+    public CoinCounts parseContent() {
+        return CoinCounts.parse(content);
+    }
+
+    @Benchmark
+    public String formatContent() {
+        return Wallets.content(counts.toArray());
+    }
+
+    @Benchmark
+    public byte[] encodeCounts() {
+        return counts.toBytes();
+    }
+
+    @Benchmark
+    public CoinCounts decodeCounts() {
+        return CoinCounts.fromBytes(packed);
+    }
+
+    @Benchmark
+    public int[] listCoins() {
+        return counts.toArray();
+    }
+}
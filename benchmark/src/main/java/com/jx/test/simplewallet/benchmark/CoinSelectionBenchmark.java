@@ -0,0 +1,120 @@
+package com.jx.test.simplewallet.benchmark;
+
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.CoinSelection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each coin selection over the same long synthetic stream of payments, with a few coins deposited after every
+ * payment so the wallet lives on. {@code stream} reports the time per payment over the whole stream, {@code pay} the
+ * time of one payment out of the wallet the stream left behind. The number of coins that wallet holds, which is what
+ * the selection is chosen for, is reported by {@code stream} through {@link CoinsLeft}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoinSelectionBenchmark {
+
+    static final int PAYMENTS = 100_000;
+
+    @Param({ "SMALLEST_FIRST", "LARGEST_FIRST", "BEST_FIT" })
+    CoinSelection selection;
+
+    /**
+     * Coins in the wallet before the stream starts.
+     */
+    @Param({ "100", "100000" })
+    int coins;
+
+    CoinCounts initial;
+    int[] amounts;
+    CoinCounts[] deposits;
+
+    CoinCounts streamed;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        initial = CoinCounts.of(Wallets.coins(coins));
+
+        // payments of 1..16 against deposits of 1..3 coins, about the same value on average
+        var random = new Random(42);
+        amounts = new int[PAYMENTS];
+        deposits = new CoinCounts[PAYMENTS];
+        for (var i = 0; i < PAYMENTS; i++) {
+            amounts[i] = 1 + random.nextInt(16);
+            var deposit = new int[1 + random.nextInt(3)];
+            for (var j = 0; j < deposit.length; j++) {
+                deposit[j] = 1 + random.nextInt(CoinCounts.MAX_DENOMINATION);
+            }
+            deposits[i] = CoinCounts.of(deposit);
+        }
+
+        streamed = stream();
+    }
+
+    /**
+     * Counts the coins each stream leaves and the streams run, so {@code coinsLeft / streams} is the number of coins
+     * left after a stream; event counters are summed, never averaged, by JMH.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class CoinsLeft {
+
+        public long coinsLeft;
+        public long streams;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            coinsLeft = 0;
+            streams = 0;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAYMENTS)
+    public CoinCounts stream(CoinsLeft left) {
+        var counts = stream();
+        left.coinsLeft += counts.size();
+        left.streams++;
+
+        return counts;
+    }
+
+    private CoinCounts stream() {
+        var counts = initial;
+        for (var i = 0; i < PAYMENTS; i++) {
+            if (counts.total() >= amounts[i]) {
+                counts = selection.pay(counts, amounts[i]);
+            }
+            counts = counts.plus(deposits[i]);
+        }
+
+        return counts;
+    }
+
+    @Benchmark
+    public CoinCounts pay() {
+        next = next + 1 == PAYMENTS ? 0 : next + 1;
+
+        return selection.pay(streamed, Math.min(amounts[next], streamed.total()));
+    }
+}
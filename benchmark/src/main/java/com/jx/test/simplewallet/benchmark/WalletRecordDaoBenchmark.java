@@ -0,0 +1,139 @@
+package com.jx.test.simplewallet.benchmark;
+
+import com.jx.test.simplewallet.App;
+import com.jx.test.simplewallet.dao.StorageProfiles;
+import com.jx.test.simplewallet.dao.WalletRecordDao;
+import com.jx.test.simplewallet.dao.WalletRecordDaoH2Impl;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import javax.management.InvalidAttributeValueException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * The H2 storage DAO, bypassing the cache, through JPA native queries and through plain JDBC: {@code latest()} for a
+ * wallet with a long payment history, and writing new versions one at a time and in batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletRecordDaoBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Param({ "1000", "100000" })
+    int history;
+
+    @Param({ "jpa", "jdbc" })
+    String access;
+
+    ConfigurableApplicationContext context;
+    WalletRecordDao storage;
+
+    CoinCounts counts;
+    long version;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InvalidAttributeValueException {
+        // JPA is the storage when none of the other profiles is active
+        var builder = new SpringApplicationBuilder(App.class)
+            .web(WebApplicationType.NONE)
+            .properties("spring.datasource.url=jdbc:h2:mem:bench", "logging.level.root=WARN");
+        if ("jdbc".equals(access)) {
+            builder.profiles(StorageProfiles.JDBC);
+        }
+        context = builder.run();
+        storage = context.getBean(WalletRecordDaoH2Impl.class);
+
+        counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, history);
+        storage.init(
+            WalletRecord.builder().walletId("bench").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+
+        var batch = new ArrayList<WalletRecord>();
+        for (var version = 2; version <= history; version++) {
+            counts = counts.pay(1);
+            batch.add(
+                WalletRecord
+                    .builder()
+                    .walletId("bench")
+                    .version(version)
+                    .tsMillis(version)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(1)
+                    .build()
+            );
+            if (batch.size() == 1000) {
+                storage.insertBatch(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            storage.insertBatch(batch);
+        }
+        version = history;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public WalletRecord latest() {
+        return storage.latest("bench");
+    }
+
+    @Benchmark
+    public void insert() throws InvalidAttributeValueException {
+        storage.insert(next());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void insertBatch() throws InvalidAttributeValueException {
+        var batch = new ArrayList<WalletRecord>(BATCH_SIZE);
+        for (var i = 0; i < BATCH_SIZE; i++) {
+            batch.add(next());
+        }
+        storage.insertBatch(batch);
+    }
+
+    /**
+     * The next version of the wallet; its contents do not matter to the DAO, so they stay the same.
+     */
+    private WalletRecord next() {
+        version++;
+
+        return WalletRecord
+            .builder()
+            .walletId("bench")
+            .version(version)
+            .tsMillis(version)
+            .counts(counts)
+            .total(counts.total())
+            .amount(1)
+            .build();
+    }
+}
@@ -0,0 +1,105 @@
+package com.jx.test.simplewallet.benchmark;
+
+import com.jx.test.simplewallet.dao.WalletRecordDao;
+import com.jx.test.simplewallet.exception.InvalidPaymentException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import com.jx.test.simplewallet.service.WalletServiceImpl;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.management.InvalidAttributeValueException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Service logic of init, latest and pay with storage taken out of the picture: the DAO always serves the same wallet
+ * and drops writes, so every invocation sees the same state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletServiceBenchmark {
+
+    @Param({ "10", "1000", "100000", "1000000" })
+    int coins;
+
+    /**
+     * Amount paid, as a share of the wallet total.
+     */
+    @Param({ "0.001", "0.5" })
+    double share;
+
+    int[] initCoins;
+    int amount;
+    WalletServiceImpl service;
+
+    @Setup
+    public void setUp() {
+        initCoins = Wallets.coins(coins);
+
+        var counts = CoinCounts.of(initCoins);
+        var record = WalletRecord.builder().walletId("bench").version(1).counts(counts).total(counts.total()).build();
+        amount = (int) Math.max(1, counts.total() * share);
+        service = new WalletServiceImpl(new FixedWalletDao(record));
+    }
+
+    @Benchmark
+    public void init() throws InvalidAttributeValueException {
+        service.init("bench", initCoins);
+    }
+
+    @Benchmark
+    public int[] latest() throws InvalidAttributeValueException {
+        return service.latest("bench");
+    }
+
+    @Benchmark
+    public int[] pay() throws InvalidAttributeValueException, InvalidPaymentException {
+        return service.pay("bench", amount);
+    }
+
+    private static class FixedWalletDao implements WalletRecordDao {
+
+        private final WalletRecord record;
+
+        FixedWalletDao(WalletRecord record) {
+            this.record = record;
+        }
+
+        @Override
+        public void insert(WalletRecord newRecord) {}
+
+        @Override
+        public void insertBatch(List<WalletRecord> newRecords) {}
+
+        @Override
+        public void init(WalletRecord initRecord) {}
+
+        @Override
+        public WalletRecord latest(String walletId) {
+            return record;
+        }
+
+        @Override
+        public WalletRecord asOf(String walletId, long tsMillis) {
+            return record;
+        }
+
+        @Override
+        public long countVersions() {
+            return record.version();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.jx.test.simplewallet.benchmark;
+
+import com.jx.test.simplewallet.model.CoinCounts;
+import java.util.Random;
+
+final class Wallets {
+
+    private Wallets() {}
+
+    /**
+     * Sorted random coins, the same for every run with the same size.
+     */
+    static int[] coins(int size) {
+        var random = new Random(size);
+        var counts = new long[CoinCounts.MAX_DENOMINATION];
+        for (var i = 0; i < size; i++) {
+            counts[random.nextInt(CoinCounts.MAX_DENOMINATION)]++;
+        }
+
+        return CoinCounts.ofCounts(counts).toArray();
+    }
+
+    static String content(int[] coins) {
+        var builder = new StringBuilder(coins.length * 2);
+        for (var coin : coins) {
+            builder.append(coin).append(',');
+        }
+
+        return builder.substring(0, builder.length() - 1);
+    }
+}
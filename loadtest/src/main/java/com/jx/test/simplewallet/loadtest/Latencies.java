@@ -0,0 +1,70 @@
+package com.jx.test.simplewallet.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Response times and status codes of one operation, recorded by a single thread and merged for the report. Every
+ * latency is kept, so percentiles are exact.
+ */
+final class Latencies {
+
+    private long[] nanos = new long[1024];
+
+    private int size;
+
+    private final Map<Integer, Long> statuses = new TreeMap<>();
+
+    void record(long latencyNanos, int status) {
+        if (size == nanos.length) {
+            nanos = Arrays.copyOf(nanos, size * 2);
+        }
+        nanos[size++] = latencyNanos;
+        statuses.merge(status, 1L, Long::sum);
+    }
+
+    void addAll(Latencies other) {
+        if (size + other.size > nanos.length) {
+            nanos = Arrays.copyOf(nanos, Math.max(size + other.size, nanos.length * 2));
+        }
+        System.arraycopy(other.nanos, 0, nanos, size, other.size);
+        size += other.size;
+        other.statuses.forEach((status, count) -> statuses.merge(status, count, Long::sum));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * One line with the throughput over {@code seconds}, the latency percentiles in milliseconds and the count of
+     * every status, {@code -1} standing for requests without a response.
+     */
+    String summary(double seconds) {
+        if (size == 0) {
+            return "no requests";
+        }
+
+        var sorted = Arrays.copyOf(nanos, size);
+        Arrays.sort(sorted);
+
+        return String.format(
+            "%8d req %10.1f req/s  p50 %7.2f  p90 %7.2f  p99 %7.2f  p99.9 %7.2f  max %7.2f ms  status %s",
+            size,
+            size / seconds,
+            percentile(sorted, 0.50),
+            percentile(sorted, 0.90),
+            percentile(sorted, 0.99),
+            percentile(sorted, 0.999),
+            sorted[size - 1] / 1e6,
+            statuses
+        );
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        var index = (int) Math.ceil(quantile * sorted.length) - 1;
+
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
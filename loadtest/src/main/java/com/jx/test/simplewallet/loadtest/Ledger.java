@@ -0,0 +1,127 @@
+package com.jx.test.simplewallet.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * What the load test expects of one wallet: its funds at init, every payment the server acknowledged, and the
+ * payments that got no definite answer and still have to be settled.
+ */
+final class Ledger {
+
+    final String walletId;
+
+    final long initialTotal;
+
+    private final Queue<Long> acknowledged = new ConcurrentLinkedQueue<>();
+
+    private final Queue<Payment> unsettled = new ConcurrentLinkedQueue<>();
+
+    Ledger(String walletId, long initialTotal) {
+        this.walletId = walletId;
+        this.initialTotal = initialTotal;
+    }
+
+    static final class Payment {
+
+        final int amount;
+
+        final String idempotencyKey;
+
+        Payment(int amount, String idempotencyKey) {
+            this.amount = amount;
+            this.idempotencyKey = idempotencyKey;
+        }
+    }
+
+    void acknowledged(long amount) {
+        acknowledged.add(amount);
+    }
+
+    void unsettled(Payment payment) {
+        unsettled.add(payment);
+    }
+
+    /**
+     * Repeats every unsettled payment with its original key until the server gives a definite answer; a payment
+     * already applied is answered from the idempotency store instead of being paid again.
+     *
+     * @return the number of payments still unsettled
+     */
+    int settle(WalletClient client, int attempts) throws InterruptedException {
+        for (var attempt = 0; attempt < attempts && !unsettled.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                Thread.sleep(1000);
+            }
+            for (var i = unsettled.size(); i > 0; i--) {
+                var payment = unsettled.poll();
+                var response = client.pay(walletId, payment.amount, payment.idempotencyKey);
+                if (response.status == 200) {
+                    acknowledged(payment.amount);
+                } else if (!LoadTest.rejected(response.status)) {
+                    unsettled.add(payment);
+                }
+            }
+        }
+
+        return unsettled.size();
+    }
+
+    /**
+     * Checks the wallet against the ledger: the funds left must be the initial funds less all acknowledged payments,
+     * and the history must hold exactly one version per acknowledged payment after the initial one, numbered without
+     * gaps or repeats, whose drops in total are exactly the acknowledged amounts.
+     *
+     * @return the violations found, empty if there are none
+     */
+    List<String> verify(WalletClient client) {
+        var violations = new ArrayList<String>();
+
+        var paid = new ArrayList<>(acknowledged);
+        var expectedTotal = initialTotal - paid.stream().mapToLong(Long::longValue).sum();
+        var check = client.check(walletId);
+        if (check.status != 200) {
+            violations.add(walletId + ": check failed with status " + check.status);
+        } else if (WalletClient.total(check.body) != expectedTotal) {
+            violations.add(
+                walletId + ": total " + WalletClient.total(check.body) + ", expected " + expectedTotal
+            );
+        }
+        if (!unsettled.isEmpty()) {
+            violations.add(walletId + ": " + unsettled.size() + " payments could not be settled");
+        }
+
+        var history = client.history(walletId);
+        if (history == null) {
+            return violations;
+        }
+
+        var drops = new ArrayList<Long>(history.size());
+        for (var i = 0; i < history.size(); i++) {
+            var version = history.get(i);
+            if (version.version != i + 1) {
+                violations.add(walletId + ": version " + version.version + " found at position " + (i + 1));
+                return violations;
+            }
+            if (i > 0) {
+                drops.add(history.get(i - 1).total - version.total);
+            }
+        }
+        if (!history.isEmpty() && history.get(0).total != initialTotal) {
+            violations.add(walletId + ": first version holds " + history.get(0).total + ", expected " + initialTotal);
+        }
+
+        Collections.sort(drops);
+        Collections.sort(paid);
+        if (!drops.equals(paid)) {
+            violations.add(
+                walletId + ": " + drops.size() + " payments in history, " + paid.size() + " acknowledged, amounts differ"
+            );
+        }
+
+        return violations;
+    }
+}
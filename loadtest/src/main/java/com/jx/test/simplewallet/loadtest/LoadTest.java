@@ -0,0 +1,186 @@
+package com.jx.test.simplewallet.loadtest;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives init, check and pay against a running wallet server from many threads, reports throughput and latency
+ * percentiles per operation, then settles unanswered payments and verifies that no acknowledged payment was lost or
+ * applied twice. Exits with status 1 if a wallet violates its {@link Ledger}.
+ */
+public final class LoadTest {
+
+    private static final int SETTLE_ATTEMPTS = 10;
+
+    private final Options options;
+
+    private final WalletClient client;
+
+    // run id, so repeated runs against the same server use new wallets and keys
+    private final String run = Long.toString(System.currentTimeMillis(), 36);
+
+    private final List<Ledger> ledgers = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong walletSequence = new AtomicLong();
+
+    private LoadTest(Options options) {
+        this.options = options;
+        this.client = new WalletClient(options.url, options.timeout);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        var loadTest = new LoadTest(Options.parse(args));
+        System.exit(loadTest.run() ? 0 : 1);
+    }
+
+    /**
+     * Whether {@code status} says for certain that a payment was not applied: refused as invalid, for lack of funds,
+     * or shed before it ran.
+     */
+    static boolean rejected(int status) {
+        return status == 400 || status == 422 || status == 429 || status == 503;
+    }
+
+    private boolean run() throws InterruptedException {
+        var random = new Random(options.seed);
+        for (var i = 0; i < options.wallets; i++) {
+            if (!createWallet(random)) {
+                System.err.println("could not create wallets at " + options.url);
+                return false;
+            }
+        }
+
+        var start = System.nanoTime();
+        var measureFrom = start + options.warmup.toNanos();
+        var end = measureFrom + options.duration.toNanos();
+        var workers = new ArrayList<Worker>(options.threads);
+        for (var t = 0; t < options.threads; t++) {
+            var worker = new Worker(t, measureFrom, end);
+            worker.start();
+            workers.add(worker);
+        }
+        for (var worker : workers) {
+            worker.join();
+        }
+
+        var results = new EnumMap<Operation, Latencies>(Operation.class);
+        for (var operation : Operation.values()) {
+            results.put(operation, new Latencies());
+        }
+        for (var worker : workers) {
+            worker.latencies.forEach((operation, latencies) -> results.get(operation).addAll(latencies));
+        }
+
+        var seconds = options.duration.toNanos() / 1e9;
+        System.out.printf(
+            "%d threads, %d wallets, %.0f s measured after %d s warmup%n",
+            options.threads,
+            ledgers.size(),
+            seconds,
+            options.warmup.toSeconds()
+        );
+        results.forEach(
+            (operation, latencies) -> {
+                if (latencies.size() > 0) {
+                    System.out.printf("%-6s %s%n", operation, latencies.summary(seconds));
+                }
+            }
+        );
+
+        var violations = new ArrayList<String>();
+        for (var ledger : ledgers) {
+            ledger.settle(client, SETTLE_ATTEMPTS);
+            violations.addAll(ledger.verify(client));
+        }
+
+        if (violations.isEmpty()) {
+            System.out.println("invariants hold for all " + ledgers.size() + " wallets");
+            return true;
+        }
+        violations.forEach(violation -> System.out.println("VIOLATION " + violation));
+
+        return false;
+    }
+
+    private boolean createWallet(Random random) {
+        var coins = new int[options.coinsPerWallet];
+        var total = 0L;
+        for (var i = 0; i < coins.length; i++) {
+            coins[i] = 1 + random.nextInt(8);
+            total += coins[i];
+        }
+
+        var walletId = "lt-" + run + "-" + walletSequence.incrementAndGet();
+        if (!client.init(walletId, coins)) {
+            return false;
+        }
+        ledgers.add(new Ledger(walletId, total));
+
+        return true;
+    }
+
+    private final class Worker extends Thread {
+
+        private final long measureFrom;
+
+        private final long end;
+
+        private final Map<Operation, Latencies> latencies = new EnumMap<>(Operation.class);
+
+        private long payments;
+
+        Worker(int index, long measureFrom, long end) {
+            super("loadtest-" + index);
+            this.measureFrom = measureFrom;
+            this.end = end;
+            for (var operation : Operation.values()) {
+                latencies.put(operation, new Latencies());
+            }
+        }
+
+        @Override
+        public void run() {
+            var random = ThreadLocalRandom.current();
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                var operation = options.pick(random.nextDouble());
+                var ledger = ledgers.get(random.nextInt(ledgers.size()));
+
+                int status;
+                switch (operation) {
+                    case INIT:
+                        status = createWallet(new Random(random.nextLong())) ? 200 : WalletClient.NO_RESPONSE;
+                        break;
+                    case CHECK:
+                        status = client.check(ledger.walletId).status;
+                        break;
+                    default:
+                        status = pay(ledger, 1 + random.nextInt(options.maxAmount));
+                        break;
+                }
+
+                if (now >= measureFrom) {
+                    latencies.get(operation).record(System.nanoTime() - now, status);
+                }
+            }
+        }
+
+        private int pay(Ledger ledger, int amount) {
+            var payment = new Ledger.Payment(amount, run + "-" + getName() + "-" + payments++);
+            var response = client.pay(ledger.walletId, amount, payment.idempotencyKey);
+            if (response.status == 200) {
+                ledger.acknowledged(amount);
+            } else if (!rejected(response.status)) {
+                ledger.unsettled(payment);
+            }
+
+            return response.status;
+        }
+    }
+}
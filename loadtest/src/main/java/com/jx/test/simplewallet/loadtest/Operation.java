@@ -0,0 +1,18 @@
+package com.jx.test.simplewallet.loadtest;
+
+/**
+ * The wallet endpoints the load test drives.
+ */
+enum Operation {
+    /**
+     * Creates a new wallet that later operations pick from like the ones created up front.
+     */
+    INIT,
+
+    CHECK,
+
+    /**
+     * Pays a random amount with a unique {@code Idempotency-Key}, so an unanswered payment can be settled afterwards.
+     */
+    PAY,
+}
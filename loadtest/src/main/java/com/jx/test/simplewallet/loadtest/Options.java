@@ -0,0 +1,122 @@
+package com.jx.test.simplewallet.loadtest;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Command line options, given as {@code --name=value}.
+ */
+final class Options {
+
+    String url = "http://localhost:8080";
+
+    int threads = 16;
+
+    /**
+     * Wallets created before the run starts; payments and checks are spread evenly over them.
+     */
+    int wallets = 8;
+
+    int coinsPerWallet = 1000;
+
+    int maxAmount = 10;
+
+    Duration warmup = Duration.ofSeconds(5);
+
+    Duration duration = Duration.ofSeconds(30);
+
+    Duration timeout = Duration.ofSeconds(5);
+
+    long seed = 1;
+
+    /**
+     * Relative weight of each operation, e.g. {@code --mix=check:70,pay:30}.
+     */
+    final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+
+    private Options() {
+        mix.put(Operation.CHECK, 70);
+        mix.put(Operation.PAY, 30);
+    }
+
+    static Options parse(String[] args) {
+        var options = new Options();
+        for (var arg : args) {
+            var separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("expected --name=value, got " + arg);
+            }
+
+            var value = arg.substring(separator + 1);
+            switch (arg.substring(2, separator)) {
+                case "url":
+                    options.url = value;
+                    break;
+                case "threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "wallets":
+                    options.wallets = Integer.parseInt(value);
+                    break;
+                case "coins":
+                    options.coinsPerWallet = Integer.parseInt(value);
+                    break;
+                case "max-amount":
+                    options.maxAmount = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    options.warmup = Duration.ofSeconds(Long.parseLong(value));
+                    break;
+                case "duration":
+                    options.duration = Duration.ofSeconds(Long.parseLong(value));
+                    break;
+                case "timeout":
+                    options.timeout = Duration.ofMillis(Long.parseLong(value));
+                    break;
+                case "seed":
+                    options.seed = Long.parseLong(value);
+                    break;
+                case "mix":
+                    options.mix.clear();
+                    for (var part : value.split(",")) {
+                        var weight = part.split(":");
+                        options.mix.put(Operation.valueOf(weight[0].trim().toUpperCase()), Integer.parseInt(weight[1]));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+
+        if (options.threads < 1 || options.wallets < 1 || options.coinsPerWallet < 1 || options.maxAmount < 1) {
+            throw new IllegalArgumentException("threads, wallets, coins and max-amount must be positive");
+        }
+        if (options.mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("mix needs a positive weight");
+        }
+
+        return options;
+    }
+
+    /**
+     * Picks an operation with the probability given by its weight; {@code roll} is uniform in [0, 1).
+     */
+    Operation pick(double roll) {
+        var total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        var target = roll * total;
+        Operation picked = null;
+        for (var entry : mix.entrySet()) {
+            if (entry.getValue() <= 0) {
+                continue;
+            }
+            picked = entry.getKey();
+            target -= entry.getValue();
+            if (target < 0) {
+                break;
+            }
+        }
+
+        return picked;
+    }
+}
@@ -0,0 +1,153 @@
+package com.jx.test.simplewallet.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Blocking calls to the wallet endpoints. Calls never throw; a request that got no answer, including a timeout, comes
+ * back with status {@link #NO_RESPONSE}.
+ */
+final class WalletClient {
+
+    static final int NO_RESPONSE = -1;
+
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    private static final Pattern COUNT = Pattern.compile("\"([1-8])\":(\\d+)");
+
+    private static final Pattern VERSION = Pattern.compile("\"version\":(\\d+),.*\"total\":(\\d+)");
+
+    private static final int HISTORY_PAGE = 10_000;
+
+    private final HttpClient http;
+
+    private final String base;
+
+    private final Duration timeout;
+
+    WalletClient(String url, Duration timeout) {
+        this.http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(timeout).build();
+        this.base = url.endsWith("/") ? url + "wallet/" : url + "/wallet/";
+        this.timeout = timeout;
+    }
+
+    static final class Response {
+
+        final int status;
+
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A wallet version as listed by the history endpoint.
+     */
+    static final class Version {
+
+        final long version;
+
+        final long total;
+
+        Version(long version, long total) {
+            this.version = version;
+            this.total = total;
+        }
+    }
+
+    /**
+     * Creates the wallet; the endpoint answers 200 either way, so success is told by the body.
+     */
+    boolean init(String walletId, int[] coins) {
+        var list = IntStream.of(coins).mapToObj(Integer::toString).collect(Collectors.joining(","));
+        var response = send(request(walletId + "/init?coins=" + list).build());
+
+        return response.status == 200 && "Success".equals(response.body);
+    }
+
+    Response check(String walletId) {
+        return send(request(walletId + "/check").header("Accept", "application/json").build());
+    }
+
+    Response pay(String walletId, int amount, String idempotencyKey) {
+        return send(
+            request(walletId + "/pay?amount=" + amount)
+                .header("Accept", "application/json")
+                .header(IDEMPOTENCY_KEY, idempotencyKey)
+                .build()
+        );
+    }
+
+    /**
+     * All versions of the wallet, oldest first, or null if the server does not serve history.
+     */
+    List<Version> history(String walletId) {
+        var versions = new ArrayList<Version>();
+        while (true) {
+            var after = versions.isEmpty() ? 0 : versions.get(versions.size() - 1).version;
+            var response = send(
+                request(walletId + "/history?afterVersion=" + after + "&limit=" + HISTORY_PAGE)
+                    .timeout(timeout.multipliedBy(10))
+                    .build()
+            );
+            if (response.status != 200) {
+                return null;
+            }
+
+            var page = 0;
+            for (var line : response.body.split("\n")) {
+                var matcher = VERSION.matcher(line);
+                if (matcher.find()) {
+                    versions.add(new Version(Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))));
+                    page++;
+                }
+            }
+            if (page < HISTORY_PAGE) {
+                return versions;
+            }
+        }
+    }
+
+    /**
+     * Value of the coins in a JSON body such as {@code {"1":3,"5":1}}, or {@code {"error":...,"coins":{...}}}.
+     */
+    static long total(String json) {
+        var total = 0L;
+        var matcher = COUNT.matcher(json);
+        while (matcher.find()) {
+            total += Integer.parseInt(matcher.group(1)) * Long.parseLong(matcher.group(2));
+        }
+
+        return total;
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create(base + path)).timeout(timeout).GET();
+    }
+
+    private Response send(HttpRequest request) {
+        try {
+            var response = http.send(request, HttpResponse.BodyHandlers.ofString());
+
+            return new Response(response.statusCode(), response.body());
+        } catch (IOException e) {
+            return new Response(NO_RESPONSE, e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return new Response(NO_RESPONSE, e.toString());
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.jx.test.simplewallet.config;
+
+import com.jx.test.simplewallet.dao.JournalSync;
+import com.jx.test.simplewallet.model.CoinSelection;
+import com.jx.test.simplewallet.service.ConcurrencyControl;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Getter
+@Setter
+@ConfigurationProperties(prefix = "wallet")
+public class WalletProperties {
+
+    /**
+     * Number of locks payments are striped over; wallets hashing to different stripes never block each other.
+     */
+    private int lockStripes = 64;
+
+    /**
+     * A full snapshot of the wallet is stored every this many versions; versions in between only record the payment.
+     */
+    private int snapshotInterval = 100;
+
+    private final Payment payment = new Payment();
+
+    private final Pipeline pipeline = new Pipeline();
+
+    private final Admission admission = new Admission();
+
+    private final Async async = new Async();
+
+    private final Cache cache = new Cache();
+
+    private final Idempotency idempotency = new Idempotency();
+
+    private final Metrics metrics = new Metrics();
+
+    private final History history = new History();
+
+    private final Feed feed = new Feed();
+
+    private final Retention retention = new Retention();
+
+    private final Journal journal = new Journal();
+
+    private final Migration migration = new Migration();
+
+    @Getter
+    @Setter
+    public static class Payment {
+
+        private ConcurrencyControl concurrencyControl = ConcurrencyControl.OPTIMISTIC;
+
+        /**
+         * Which coins payments spend. Changing it only affects new payments; stored versions keep the selection they
+         * were paid with.
+         */
+        private CoinSelection coinSelection = CoinSelection.SMALLEST_FIRST;
+
+        /**
+         * How many times a payment that lost a version conflict is retried before the caller sees the conflict.
+         */
+        private int maxRetries = 3;
+
+        /**
+         * Upper bound of the random wait before the first retry; doubles with every further retry.
+         */
+        private long backoffMillis = 5;
+
+        private long maxBackoffMillis = 100;
+    }
+
+    @Getter
+    @Setter
+    public static class Pipeline {
+
+        /**
+         * Hand payments to single writer threads that apply them in memory and commit them in batches.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Number of writer threads; every wallet is always served by the same one.
+         */
+        private int writers = 4;
+
+        /**
+         * Most payments committed in one transaction.
+         */
+        private int batchSize = 256;
+
+        /**
+         * Payments waiting per writer before new ones are rejected.
+         */
+        private int queueCapacity = 10_000;
+    }
+
+    @Getter
+    @Setter
+    public static class Admission {
+
+        /**
+         * Limit the payments let through to storage, answering the excess with 429 at once instead of letting it fight
+         * over versions.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Payments per second over all wallets, 0 for no limit; up to {@link #globalBurst} more are let through at
+         * once after a quiet period.
+         */
+        private double globalRate = 0;
+
+        private int globalBurst = 100;
+
+        /**
+         * Payments per second to one wallet, 0 for no limit.
+         */
+        private double walletRate = 0;
+
+        private int walletBurst = 10;
+
+        /**
+         * Payments in progress over all wallets, 0 for no limit. Payments beyond it wait up to
+         * {@link #queueTimeoutMillis} for one to finish.
+         */
+        private int maxConcurrent = 0;
+
+        private long queueTimeoutMillis = 50;
+
+        /**
+         * Payments in progress or waiting for one wallet, 0 for no limit. They are applied one at a time anyway, so a
+         * longer line only adds latency.
+         */
+        private int maxWalletConcurrent = 0;
+
+        /**
+         * Wallets whose limits are tracked; beyond that, limits of arbitrary wallets are forgotten.
+         */
+        private int maxWallets = 100_000;
+    }
+
+    @Getter
+    @Setter
+    public static class Async {
+
+        /**
+         * Threads serving the asynchronous read endpoints.
+         */
+        private int readThreads = 8;
+
+        /**
+         * Reads waiting for a thread before new ones are answered with 503.
+         */
+        private int readQueueCapacity = 1000;
+
+        /**
+         * Threads serving the asynchronous write endpoints, sized apart from reads so slow writes cannot starve them.
+         */
+        private int writeThreads = 4;
+
+        /**
+         * Writes waiting for a thread before new ones are answered with 503.
+         */
+        private int writeQueueCapacity = 1000;
+    }
+
+    @Getter
+    @Setter
+    public static class Cache {
+
+        /**
+         * Keep the latest record of each wallet in memory instead of reading it from the database on every request.
+         */
+        private boolean enabled = true;
+
+        /**
+         * How long a cached record may be served before it is re-read, 0 to keep it until the wallet is written again.
+         * Only needed when other processes write to the same database.
+         */
+        private long ttlMillis = 0;
+
+        private int maxEntries = 100_000;
+
+        /**
+         * Recent versions kept with each cached wallet to answer point-in-time reads without the database.
+         */
+        private int recentVersions = 16;
+    }
+
+    @Getter
+    @Setter
+    public static class Idempotency {
+
+        /**
+         * Results of keyed payments kept in memory; older ones are looked up in the database.
+         */
+        private int maxEntries = 100_000;
+
+        /**
+         * How long a keyed payment's result is kept in memory.
+         */
+        private long ttlMillis = 600_000;
+    }
+
+    @Getter
+    @Setter
+    public static class Metrics {
+
+        /**
+         * Wallets that get their own version and total gauges; later wallets are not published to keep the number of
+         * series bounded.
+         */
+        private int maxWalletGauges = 100;
+    }
+
+    @Getter
+    @Setter
+    public static class History {
+
+        /**
+         * Rows the JDBC driver fetches per round trip while streaming history.
+         */
+        private int fetchSize = 1000;
+    }
+
+    @Getter
+    @Setter
+    public static class Feed {
+
+        /**
+         * Versions waiting to be sent to one subscriber; a subscriber falling further behind is disconnected and has
+         * to resume from the last version it received.
+         */
+        private int bufferSize = 256;
+
+        /**
+         * Threads sending versions to subscribers, so writers never wait for a slow connection.
+         */
+        private int senderThreads = 4;
+
+        private int maxSubscribers = 10_000;
+
+        /**
+         * How long a subscription stays open before the client has to reconnect.
+         */
+        private long timeoutMillis = 1_800_000;
+    }
+
+    @Getter
+    @Setter
+    public static class Retention {
+
+        /**
+         * Periodically move versions outside the limits below to the archive table. At least one limit must be set.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Number of most recent versions of each wallet kept in the live tables, 0 for no limit by count.
+         */
+        private int keepVersions = 0;
+
+        /**
+         * Versions written within this many days are kept in the live tables, 0 for no limit by age.
+         */
+        private int keepDays = 0;
+
+        /**
+         * Most versions moved per transaction.
+         */
+        private int batchSize = 1000;
+
+        private long intervalMillis = 60_000;
+    }
+
+    @Getter
+    @Setter
+    public static class Journal {
+
+        /**
+         * File the {@code journal} storage profile appends wallet versions to.
+         */
+        private String path = "wallet.journal";
+
+        /**
+         * Size of the chunks the journal file is mapped and grown in.
+         */
+        private int segmentBytes = 64 * 1024 * 1024;
+
+        private JournalSync sync = JournalSync.GROUP;
+
+        /**
+         * How often the group flush runs when {@code sync} is {@code GROUP}.
+         */
+        private long groupCommitMillis = 2;
+    }
+
+    @Getter
+    @Setter
+    public static class Migration {
+
+        /**
+         * Convert rows still using the comma separated {@code content} column to packed counts on startup.
+         */
+        private boolean legacyContent = false;
+
+        /**
+         * Create the event rows for snapshots written before payments were stored as events.
+         */
+        private boolean backfillEvents = false;
+
+        private int batchSize = 1000;
+    }
+}
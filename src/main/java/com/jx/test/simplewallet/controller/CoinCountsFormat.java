@@ -0,0 +1,109 @@
+package com.jx.test.simplewallet.controller;
+
+import com.jx.test.simplewallet.model.CoinCounts;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.springframework.http.MediaType;
+
+/**
+ * Machine-oriented encodings of wallet contents, written straight to the response stream with one entry per
+ * denomination instead of one per coin.
+ */
+enum CoinCountsFormat {
+    /**
+     * Run-length encoded JSON keyed by denomination, e.g. {@code {"1":40000,"5":12}}; denominations the wallet does
+     * not hold are left out. Errors are written as {@code {"error":"...","coins":{...}}}.
+     */
+    JSON(MediaType.APPLICATION_JSON) {
+        @Override
+        void write(CoinCounts counts, OutputStream out) throws IOException {
+            // '{' + 8 x ("d": + up to 19 digits + ',') + '}'
+            var buffer = new byte[2 + CoinCounts.MAX_DENOMINATION * 24];
+            var pos = 0;
+            buffer[pos++] = '{';
+            for (var d = 1; d <= CoinCounts.MAX_DENOMINATION; d++) {
+                var count = counts.count(d);
+                if (count == 0) {
+                    continue;
+                }
+                if (pos > 1) {
+                    buffer[pos++] = ',';
+                }
+                buffer[pos++] = '"';
+                buffer[pos++] = (byte) ('0' + d);
+                buffer[pos++] = '"';
+                buffer[pos++] = ':';
+                pos = writeDigits(count, buffer, pos);
+            }
+            buffer[pos++] = '}';
+
+            out.write(buffer, 0, pos);
+        }
+
+        @Override
+        void writeError(String message, CoinCounts counts, OutputStream out) throws IOException {
+            out.write(("{\"error\":\"" + message + "\"").getBytes(StandardCharsets.UTF_8));
+            if (counts != null) {
+                out.write(",\"coins\":".getBytes(StandardCharsets.UTF_8));
+                write(counts, out);
+            }
+            out.write('}');
+        }
+    },
+
+    /**
+     * The storage encoding: one unsigned varint per denomination 1..8. Errors carry the wallet contents when there
+     * are any and no body otherwise.
+     */
+    BINARY(MediaType.APPLICATION_OCTET_STREAM) {
+        @Override
+        void write(CoinCounts counts, OutputStream out) throws IOException {
+            out.write(counts.toBytes());
+        }
+
+        @Override
+        void writeError(String message, CoinCounts counts, OutputStream out) throws IOException {
+            if (counts != null) {
+                write(counts, out);
+            }
+        }
+    };
+
+    private final MediaType mediaType;
+
+    CoinCountsFormat(MediaType mediaType) {
+        this.mediaType = mediaType;
+    }
+
+    MediaType mediaType() {
+        return mediaType;
+    }
+
+    abstract void write(CoinCounts counts, OutputStream out) throws IOException;
+
+    /**
+     * Writes an error, with the wallet contents it applies to if {@code counts} is not null.
+     */
+    abstract void writeError(String message, CoinCounts counts, OutputStream out) throws IOException;
+
+    private static int writeDigits(long value, byte[] buffer, int pos) {
+        var end = pos + digits(value);
+        for (var i = end - 1; i >= pos; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+
+        return end;
+    }
+
+    private static int digits(long value) {
+        var digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+
+        return digits;
+    }
+}
@@ -1,27 +1,133 @@
 package com.jx.test.simplewallet.controller;
 
+import com.jx.test.simplewallet.config.WalletProperties;
 import com.jx.test.simplewallet.exception.InvalidPaymentException;
+import com.jx.test.simplewallet.exception.TooManyRequestsException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.HistoryQuery;
+import com.jx.test.simplewallet.model.WalletRecord;
+import com.jx.test.simplewallet.service.WalletExecutors;
+import com.jx.test.simplewallet.service.WalletFeed;
+import com.jx.test.simplewallet.service.WalletHistoryService;
 import com.jx.test.simplewallet.service.WalletService;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import javax.management.InvalidAttributeValueException;
+import javax.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping("/wallet")
 public class WalletController {
 
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    private static final String CHECK_TEXT = "TEXT";
+
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
     @Autowired
     private WalletService walletService;
 
+    @Autowired
+    private WalletHistoryService walletHistoryService;
+
+    @Autowired
+    private WalletExecutors walletExecutors;
+
+    @Autowired
+    private WalletFeed walletFeed;
+
+    @Autowired
+    private WalletProperties walletProperties;
+
     @GetMapping("/init")
     public String init(@RequestParam(required = true) int[] coins) {
+        return init(WalletService.DEFAULT_WALLET, coins);
+    }
+
+    @GetMapping("/check")
+    public String check(WebRequest request) {
+        return check(WalletService.DEFAULT_WALLET, request);
+    }
+
+    @GetMapping("/pay")
+    public String pay(
+        @RequestParam(required = true) int amount,
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey
+    ) {
+        return pay(WalletService.DEFAULT_WALLET, amount, idempotencyKey);
+    }
+
+    @GetMapping("/deposit")
+    public String deposit(@RequestParam(required = true) int[] coins) {
+        return deposit(WalletService.DEFAULT_WALLET, coins);
+    }
+
+    @GetMapping("/payBatch")
+    public String payBatch(@RequestParam(required = true) int[] amounts) {
+        return payBatch(WalletService.DEFAULT_WALLET, amounts);
+    }
+
+    @GetMapping("/init/async")
+    public CompletableFuture<String> initAsync(@RequestParam(required = true) int[] coins) {
+        return initAsync(WalletService.DEFAULT_WALLET, coins);
+    }
+
+    @GetMapping("/check/async")
+    public CompletableFuture<String> checkAsync() {
+        return checkAsync(WalletService.DEFAULT_WALLET);
+    }
+
+    @GetMapping("/pay/async")
+    public CompletableFuture<String> payAsync(
+        @RequestParam(required = true) int amount,
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey
+    ) {
+        return payAsync(WalletService.DEFAULT_WALLET, amount, idempotencyKey);
+    }
+
+    @GetMapping("/asOf")
+    public String asOf(@RequestParam(required = true) long[] tsMillis) {
+        return asOf(WalletService.DEFAULT_WALLET, tsMillis);
+    }
+
+    @GetMapping("/history")
+    public ResponseEntity<StreamingResponseBody> history(
+        @RequestParam(required = false) Long afterVersion,
+        @RequestParam(required = false) Long toVersion,
+        @RequestParam(required = false) Long fromMillis,
+        @RequestParam(required = false) Long toMillis,
+        @RequestParam(required = false) Long limit
+    ) {
+        return history(WalletService.DEFAULT_WALLET, afterVersion, toVersion, fromMillis, toMillis, limit);
+    }
+
+    @GetMapping("/{walletId}/init")
+    public String init(@PathVariable String walletId, @RequestParam(required = true) int[] coins) {
         try {
-            walletService.init(coins);
+            walletService.init(walletId, coins);
 
             return "Success";
         } catch (InvalidAttributeValueException e) {
@@ -29,18 +135,41 @@ public class WalletController {
         }
     }
 
-    @GetMapping("/check")
-    public String check() {
-        var latest = walletService.latest();
-        var leftCoins = IntStream.of(latest).mapToObj(Integer::toString).collect(Collectors.joining(", "));
+    /**
+     * Lists the coins in the wallet, tagged with the wallet version as ETag. A request whose {@code If-None-Match}
+     * still names the latest version gets 304 without a body.
+     */
+    @GetMapping("/{walletId}/check")
+    public String check(@PathVariable String walletId, WebRequest request) {
+        try {
+            var latest = walletService.latestRecord(walletId);
+            if (request != null && request.checkNotModified(etag(latest, CHECK_TEXT))) {
+                return null;
+            }
+            var counts = latest == null ? CoinCounts.EMPTY : latest.counts();
+            var leftCoins = IntStream
+                .of(counts.toArray())
+                .mapToObj(Integer::toString)
+                .collect(Collectors.joining(", "));
 
-        return "My current coins are [" + leftCoins + "]";
+            return "My current coins are [" + leftCoins + "]";
+        } catch (InvalidAttributeValueException e) {
+            return "Invalid request: " + e.getMessage();
+        }
     }
 
-    @GetMapping("/pay")
-    public String pay(@RequestParam(required = true) int amount) {
+    /**
+     * Pays {@code amount}. A request repeated with the same {@code Idempotency-Key} header is not paid twice; it gets
+     * the coins left by the first one.
+     */
+    @GetMapping("/{walletId}/pay")
+    public String pay(
+        @PathVariable String walletId,
+        @RequestParam(required = true) int amount,
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey
+    ) {
         try {
-            var left = walletService.pay(amount);
+            var left = walletService.pay(walletId, amount, idempotencyKey);
             var leftCoins = IntStream.of(left).mapToObj(Integer::toString).collect(Collectors.joining(", "));
 
             return "Successfully paid " + amount + "\r\n" + "My current coins are [" + leftCoins + "]";
@@ -62,4 +191,349 @@ public class WalletController {
             );
         }
     }
+
+    /**
+     * Adds {@code coins} to a wallet that was already initialised.
+     */
+    @GetMapping("/{walletId}/deposit")
+    public String deposit(@PathVariable String walletId, @RequestParam(required = true) int[] coins) {
+        try {
+            var held = walletService.deposit(walletId, coins);
+            var heldCoins = IntStream.of(held).mapToObj(Integer::toString).collect(Collectors.joining(", "));
+
+            return (
+                "Successfully deposited " +
+                IntStream.of(coins).sum() +
+                "\r\n" +
+                "My current coins are [" +
+                heldCoins +
+                "]"
+            );
+        } catch (InvalidAttributeValueException e) {
+            return "Invalid request: " + e.getMessage();
+        }
+    }
+
+    @GetMapping(value = { "/check", "/{walletId}/check" }, produces = MediaType.APPLICATION_JSON_VALUE)
+    public void checkJson(
+        @PathVariable(required = false) String walletId,
+        WebRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        check(walletId, CoinCountsFormat.JSON, request, response);
+    }
+
+    @GetMapping(value = { "/check", "/{walletId}/check" }, produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void checkBinary(
+        @PathVariable(required = false) String walletId,
+        WebRequest request,
+        HttpServletResponse response
+    ) throws IOException {
+        check(walletId, CoinCountsFormat.BINARY, request, response);
+    }
+
+    @GetMapping(value = { "/pay", "/{walletId}/pay" }, produces = MediaType.APPLICATION_JSON_VALUE)
+    public void payJson(
+        @PathVariable(required = false) String walletId,
+        @RequestParam(required = true) int amount,
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey,
+        HttpServletResponse response
+    ) throws IOException {
+        pay(walletId, amount, idempotencyKey, CoinCountsFormat.JSON, response);
+    }
+
+    @GetMapping(value = { "/pay", "/{walletId}/pay" }, produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void payBinary(
+        @PathVariable(required = false) String walletId,
+        @RequestParam(required = true) int amount,
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey,
+        HttpServletResponse response
+    ) throws IOException {
+        pay(walletId, amount, idempotencyKey, CoinCountsFormat.BINARY, response);
+    }
+
+    @GetMapping("/{walletId}/payBatch")
+    public String payBatch(@PathVariable String walletId, @RequestParam(required = true) int[] amounts) {
+        try {
+            var result = walletService.payBatch(walletId, amounts);
+            var response = new StringBuilder();
+            for (var i = 0; i < amounts.length; i++) {
+                switch (result.getStatuses()[i]) {
+                    case PAID:
+                        response.append("Successfully paid ").append(amounts[i]);
+                        break;
+                    case INSUFFICIENT_FUNDS:
+                        response.append("You do not have sufficient coins to pay ").append(amounts[i]);
+                        break;
+                    default:
+                        response.append("Invalid payment: ").append(amounts[i]);
+                        break;
+                }
+                response.append("\r\n");
+            }
+            var leftCoins = IntStream
+                .of(result.getLeftCoins())
+                .mapToObj(Integer::toString)
+                .collect(Collectors.joining(", "));
+
+            return response.append("My current coins are [").append(leftCoins).append("]").toString();
+        } catch (InvalidAttributeValueException e) {
+            return "Invalid payment: " + e.getMessage();
+        } catch (InvalidPaymentException e) {
+            return "Invalid payment: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Like {@link #init(String, int[])}, but served from the bounded write pool instead of the servlet thread.
+     */
+    @GetMapping("/{walletId}/init/async")
+    public CompletableFuture<String> initAsync(@PathVariable String walletId, @RequestParam(required = true) int[] coins) {
+        return walletExecutors.write(() -> init(walletId, coins));
+    }
+
+    /**
+     * Like {@link #check(String, WebRequest)}, but served from the bounded read pool instead of the servlet thread and
+     * without conditional requests.
+     */
+    @GetMapping("/{walletId}/check/async")
+    public CompletableFuture<String> checkAsync(@PathVariable String walletId) {
+        return walletExecutors.read(() -> check(walletId, null));
+    }
+
+    /**
+     * Like {@link #pay(String, int, String)}, but served from the bounded write pool instead of the servlet thread.
+     */
+    @GetMapping("/{walletId}/pay/async")
+    public CompletableFuture<String> payAsync(
+        @PathVariable String walletId,
+        @RequestParam(required = true) int amount,
+        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey
+    ) {
+        return walletExecutors.write(() -> pay(walletId, amount, idempotencyKey));
+    }
+
+    @GetMapping("/{walletId}/asOf")
+    public String asOf(@PathVariable String walletId, @RequestParam(required = true) long[] tsMillis) {
+        try {
+            var coins = walletService.asOf(walletId, tsMillis);
+            var response = new StringBuilder();
+            for (var i = 0; i < tsMillis.length; i++) {
+                var heldCoins = IntStream.of(coins[i]).mapToObj(Integer::toString).collect(Collectors.joining(", "));
+                response.append(i == 0 ? "" : "\r\n").append("My coins at ").append(tsMillis[i]);
+                response.append(" were [").append(heldCoins).append("]");
+            }
+
+            return response.toString();
+        } catch (InvalidAttributeValueException e) {
+            return "Invalid request: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Streams the wallet's versions oldest first, one JSON object per line. A page ends after {@code limit} versions;
+     * the next page is requested with {@code afterVersion} set to the last version received.
+     */
+    @GetMapping("/{walletId}/history")
+    public ResponseEntity<StreamingResponseBody> history(
+        @PathVariable String walletId,
+        @RequestParam(required = false) Long afterVersion,
+        @RequestParam(required = false) Long toVersion,
+        @RequestParam(required = false) Long fromMillis,
+        @RequestParam(required = false) Long toMillis,
+        @RequestParam(required = false) Long limit
+    ) {
+        var builder = HistoryQuery.builder();
+        if (afterVersion != null) {
+            builder.afterVersion(afterVersion);
+        }
+        if (toVersion != null) {
+            builder.toVersion(toVersion);
+        }
+        if (fromMillis != null) {
+            builder.fromMillis(fromMillis);
+        }
+        if (toMillis != null) {
+            builder.toMillis(toMillis);
+        }
+        if (limit != null) {
+            builder.limit(limit);
+        }
+        var query = builder.build();
+
+        try {
+            walletHistoryService.validate(walletId, query);
+        } catch (InvalidAttributeValueException e) {
+            var message = "Invalid request: " + e.getMessage();
+
+            return ResponseEntity
+                .badRequest()
+                .contentType(MediaType.TEXT_PLAIN)
+                .body(out -> out.write(message.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        return ResponseEntity
+            .ok()
+            .contentType(NDJSON)
+            .body(
+                out -> {
+                    var writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                    try {
+                        walletHistoryService.history(walletId, query, record -> writeVersion(writer, record));
+                    } catch (InvalidAttributeValueException e) {
+                        throw new IllegalStateException(e);
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    }
+                    writer.flush();
+                }
+            );
+    }
+
+    /**
+     * Streams every committed version of the wallet as a Server-Sent Event named {@code version}, with the version as
+     * the event id and the same JSON as {@link #history} as data. Without {@code afterVersion} the stream starts with
+     * the latest version. A client reconnecting with {@code Last-Event-ID} resumes after the last version it received,
+     * which is also what it has to do when it fell too far behind and was disconnected.
+     */
+    @GetMapping(value = { "/feed", "/{walletId}/feed" }, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> feed(
+        @PathVariable(required = false) String walletId,
+        @RequestParam(required = false) Long afterVersion,
+        @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId
+    ) {
+        var emitter = new SseEmitter(walletProperties.getFeed().getTimeoutMillis());
+        WalletFeed.Subscription subscription;
+        try {
+            subscription =
+                walletFeed.subscribe(
+                    walletId == null ? WalletService.DEFAULT_WALLET : walletId,
+                    lastEventId != null ? lastEventId : afterVersion,
+                    new WalletFeed.Subscriber() {
+                        @Override
+                        public void send(WalletRecord record) throws IOException {
+                            emitter.send(
+                                SseEmitter
+                                    .event()
+                                    .id(Long.toString(record.version()))
+                                    .name("version")
+                                    .data(versionJson(record).toString())
+                            );
+                        }
+
+                        @Override
+                        public void close(boolean overflowed) {
+                            emitter.complete();
+                        }
+                    }
+                );
+        } catch (InvalidAttributeValueException e) {
+            return ResponseEntity.badRequest().build();
+        }
+        emitter.onCompletion(subscription::cancel);
+        emitter.onTimeout(subscription::cancel);
+        emitter.onError(error -> subscription.cancel());
+
+        return ResponseEntity.ok().body(emitter);
+    }
+
+    private void check(String walletId, CoinCountsFormat format, WebRequest request, HttpServletResponse response)
+        throws IOException {
+        response.setContentType(format.mediaType().toString());
+        try {
+            var latest = walletService.latestRecord(walletId == null ? WalletService.DEFAULT_WALLET : walletId);
+            if (request.checkNotModified(etag(latest, format.name()))) {
+                return;
+            }
+            format.write(latest == null ? CoinCounts.EMPTY : latest.counts(), response.getOutputStream());
+        } catch (InvalidAttributeValueException e) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            format.writeError(e.getMessage(), null, response.getOutputStream());
+        }
+    }
+
+    private void pay(
+        String walletId,
+        int amount,
+        String idempotencyKey,
+        CoinCountsFormat format,
+        HttpServletResponse response
+    ) throws IOException {
+        response.setContentType(format.mediaType().toString());
+        try {
+            var left = walletService.payCounts(
+                walletId == null ? WalletService.DEFAULT_WALLET : walletId,
+                amount,
+                idempotencyKey
+            );
+            format.write(left, response.getOutputStream());
+        } catch (InvalidAttributeValueException e) {
+            response.setStatus(HttpStatus.BAD_REQUEST.value());
+            format.writeError(e.getMessage(), null, response.getOutputStream());
+        } catch (InvalidPaymentException e) {
+            response.setStatus(HttpStatus.UNPROCESSABLE_ENTITY.value());
+            format.writeError(e.getMessage(), e.getLeftCounts(), response.getOutputStream());
+        } catch (TooManyRequestsException e) {
+            // shed like the handlers below, but in the format the client asked for
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader("Retry-After", Long.toString(e.getRetryAfterSeconds()));
+            format.writeError(e.getMessage(), null, response.getOutputStream());
+        } catch (RejectedExecutionException e) {
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setHeader("Retry-After", "1");
+            format.writeError(e.getMessage(), null, response.getOutputStream());
+        }
+    }
+
+    @ExceptionHandler(TooManyRequestsException.class)
+    public ResponseEntity<String> tooManyRequests(TooManyRequestsException e) {
+        return ResponseEntity
+            .status(HttpStatus.TOO_MANY_REQUESTS)
+            .header("Retry-After", Long.toString(e.getRetryAfterSeconds()))
+            .body("Too many requests: " + e.getMessage());
+    }
+
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<String> busy(RejectedExecutionException e) {
+        return ResponseEntity
+            .status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header("Retry-After", "1")
+            .body("Service busy: " + e.getMessage());
+    }
+
+    /**
+     * A strong ETag for one representation of the wallet at its latest version; a wallet never initialised is at
+     * version 0.
+     */
+    private static String etag(WalletRecord latest, String representation) {
+        return "\"" + (latest == null ? 0 : latest.version()) + "-" + representation + "\"";
+    }
+
+    private static void writeVersion(Writer writer, WalletRecord record) {
+        try {
+            writer.write(versionJson(record).append('\n').toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static StringBuilder versionJson(WalletRecord record) {
+        var json = new StringBuilder(160)
+            .append("{\"walletId\":\"")
+            .append(record.walletId())
+            .append("\",\"version\":")
+            .append(record.version())
+            .append(",\"tsMillis\":")
+            .append(record.tsMillis())
+            .append(",\"amount\":")
+            .append(record.amount())
+            .append(",\"total\":")
+            .append(record.total())
+            .append(",\"counts\":[");
+        for (var d = 1; d <= CoinCounts.MAX_DENOMINATION; d++) {
+            json.append(d == 1 ? "" : ",").append(record.counts().count(d));
+        }
+
+        return json.append("]}");
+    }
 }
@@ -0,0 +1,353 @@
+package com.jx.test.simplewallet.dao;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.InvalidAttributeValueException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Write-through cache of the latest record of each wallet in front of the storage DAO.
+ *
+ * <p>Successful writes replace the cached record once their transaction commits, concurrent misses for a wallet share
+ * one storage read, and a failed write evicts the wallet since it usually means another writer got there first. Reads
+ * inside a transaction go straight to storage so uncommitted state is never cached.
+ *
+ * <p>The last few consecutive versions written through the cache are kept with the latest one, so point-in-time reads
+ * of recent history are answered from memory.
+ *
+ * <p>Beyond {@code maxEntries} wallets the least recently used ones are evicted.
+ *
+ * <p>Every stored version is also published as a {@link WalletRecordWritten} event.
+ */
+@Primary
+@Repository
+public class CachingWalletRecordDao implements WalletRecordDao {
+
+    private final WalletRecordDao delegate;
+
+    private final WalletProperties.Cache config;
+
+    private final ApplicationEventPublisher events;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // the cached wallets, least recently used first; guarded by itself
+    private final LinkedHashMap<String, Boolean> recency = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Autowired
+    public CachingWalletRecordDao(
+        @Qualifier("walletStorage") WalletRecordDao delegate,
+        WalletProperties walletProperties,
+        ApplicationEventPublisher events
+    ) {
+        this.delegate = delegate;
+        this.config = walletProperties.getCache();
+        this.events = events;
+    }
+
+    public CachingWalletRecordDao(WalletRecordDao delegate, WalletProperties walletProperties) {
+        this(delegate, walletProperties, event -> {});
+    }
+
+    @Override
+    public void insert(WalletRecord newRecord) throws InvalidAttributeValueException {
+        try {
+            delegate.insert(newRecord);
+        } catch (InvalidAttributeValueException | RuntimeException e) {
+            if (newRecord != null) {
+                evict(newRecord.walletId());
+            }
+            throw e;
+        }
+
+        afterCommit(newRecord);
+    }
+
+    @Override
+    public void insertBatch(List<WalletRecord> newRecords) throws InvalidAttributeValueException {
+        try {
+            delegate.insertBatch(newRecords);
+        } catch (InvalidAttributeValueException | RuntimeException e) {
+            newRecords.stream().filter(Objects::nonNull).map(WalletRecord::walletId).forEach(this::evict);
+            throw e;
+        }
+
+        newRecords.forEach(this::afterCommit);
+    }
+
+    @Override
+    public void init(WalletRecord initRecord) throws InvalidAttributeValueException {
+        try {
+            delegate.init(initRecord);
+        } catch (InvalidAttributeValueException | RuntimeException e) {
+            if (initRecord != null) {
+                evict(initRecord.walletId());
+            }
+            throw e;
+        }
+
+        afterCommit(initRecord);
+    }
+
+    @Override
+    public WalletRecord latest(String walletId) {
+        if (!config.isEnabled() || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return delegate.latest(walletId);
+        }
+
+        var entry = entries.get(walletId);
+        if (entry != null && !entry.expired(config.getTtlMillis())) {
+            used(walletId);
+            return entry.record.join();
+        }
+
+        var loading = new Entry(new CompletableFuture<>(), System.currentTimeMillis());
+        var current = entry == null
+            ? entries.putIfAbsent(walletId, loading)
+            : (entries.replace(walletId, entry, loading) ? null : entries.get(walletId));
+        if (current != null) {
+            // someone else is already loading or has just written this wallet
+            return current.record.join();
+        }
+
+        try {
+            var record = delegate.latest(walletId);
+            loading.record.complete(record);
+            used(walletId);
+            trim();
+
+            return record;
+        } catch (RuntimeException e) {
+            entries.remove(walletId, loading);
+            loading.record.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    @Override
+    public WalletRecord asOf(String walletId, long tsMillis) {
+        var recent = recent(walletId);
+        if (recent != null && recent.covers(tsMillis)) {
+            return recent.asOf(tsMillis);
+        }
+
+        return delegate.asOf(walletId, tsMillis);
+    }
+
+    @Override
+    public List<WalletRecord> asOf(String walletId, long[] tsMillis) {
+        var recent = recent(walletId);
+        if (recent == null) {
+            return delegate.asOf(walletId, tsMillis);
+        }
+
+        var records = new ArrayList<WalletRecord>(tsMillis.length);
+        var older = new ArrayList<Integer>();
+        for (var i = 0; i < tsMillis.length; i++) {
+            if (recent.covers(tsMillis[i])) {
+                records.add(recent.asOf(tsMillis[i]));
+            } else {
+                records.add(null);
+                older.add(i);
+            }
+        }
+
+        if (!older.isEmpty()) {
+            var loaded = delegate.asOf(walletId, older.stream().mapToLong(i -> tsMillis[i]).toArray());
+            for (var i = 0; i < older.size(); i++) {
+                records.set(older.get(i), loaded.get(i));
+            }
+        }
+
+        return records;
+    }
+
+    @Override
+    public WalletRecord findByIdempotencyKey(String walletId, String idempotencyKey) {
+        return delegate.findByIdempotencyKey(walletId, idempotencyKey);
+    }
+
+    @Override
+    public long countVersions() {
+        return delegate.countVersions();
+    }
+
+    @Override
+    public WalletRecord latestForUpdate(String walletId) {
+        return delegate.latestForUpdate(walletId);
+    }
+
+    public void evict(String walletId) {
+        entries.remove(walletId);
+        synchronized (recency) {
+            recency.remove(walletId);
+        }
+    }
+
+    private Recent recent(String walletId) {
+        if (!config.isEnabled() || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return null;
+        }
+
+        var entry = entries.get(walletId);
+        if (entry == null || entry.expired(config.getTtlMillis())) {
+            return null;
+        }
+        used(walletId);
+
+        return entry.recent;
+    }
+
+    private void afterCommit(WalletRecord record) {
+        events.publishEvent(new WalletRecordWritten(record));
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            put(record);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(
+            new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == STATUS_COMMITTED) {
+                        put(record);
+                    } else {
+                        evict(record.walletId());
+                    }
+                }
+            }
+        );
+    }
+
+    private void put(WalletRecord record) {
+        if (!config.isEnabled()) {
+            return;
+        }
+
+        var written = new Entry(CompletableFuture.completedFuture(record), System.currentTimeMillis());
+        entries.merge(
+            record.walletId(),
+            written,
+            (current, next) -> {
+                if (current.isNewerThan(record)) {
+                    return current;
+                }
+                next.recent = current.recent == null
+                    ? new Recent(record)
+                    : current.recent.append(record, config.getRecentVersions());
+
+                return next;
+            }
+        );
+        used(record.walletId());
+        trim();
+    }
+
+    private void used(String walletId) {
+        synchronized (recency) {
+            recency.put(walletId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Evicts the least recently used wallets while there are too many.
+     */
+    private void trim() {
+        while (entries.size() > config.getMaxEntries()) {
+            String eldest;
+            synchronized (recency) {
+                var iterator = recency.keySet().iterator();
+                if (!iterator.hasNext()) {
+                    return;
+                }
+                eldest = iterator.next();
+                iterator.remove();
+            }
+            entries.remove(eldest);
+        }
+    }
+
+    private static class Entry {
+
+        private final CompletableFuture<WalletRecord> record;
+        private final long loadedAt;
+
+        // versions written through this cache, only known for wallets written since they were cached
+        private volatile Recent recent;
+
+        Entry(CompletableFuture<WalletRecord> record, long loadedAt) {
+            this.record = record;
+            this.loadedAt = loadedAt;
+            var loaded = record.getNow(null);
+            this.recent = loaded == null ? null : new Recent(loaded);
+        }
+
+        boolean expired(long ttlMillis) {
+            return ttlMillis > 0 && System.currentTimeMillis() - loadedAt > ttlMillis;
+        }
+
+        boolean isNewerThan(WalletRecord other) {
+            var cached = record.getNow(null);
+
+            return cached != null && cached.version() >= other.version();
+        }
+    }
+
+    /**
+     * Consecutive versions of one wallet ending at the latest, oldest first.
+     */
+    private static class Recent {
+
+        private final WalletRecord[] records;
+
+        Recent(WalletRecord... records) {
+            this.records = records;
+        }
+
+        Recent append(WalletRecord record, int maxVersions) {
+            var last = records[records.length - 1];
+            if (record.version() != last.version() + 1 || record.tsMillis() < last.tsMillis()) {
+                return new Recent(record);
+            }
+
+            var keep = Math.min(records.length, Math.max(maxVersions - 1, 0));
+            var appended = Arrays.copyOfRange(records, records.length - keep, records.length + 1);
+            appended[keep] = record;
+
+            return new Recent(appended);
+        }
+
+        boolean covers(long tsMillis) {
+            return tsMillis >= records[0].tsMillis();
+        }
+
+        WalletRecord asOf(long tsMillis) {
+            var low = 0;
+            var high = records.length - 1;
+            while (low < high) {
+                var mid = (low + high + 1) >>> 1;
+                if (records[mid].tsMillis() <= tsMillis) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return records[low];
+        }
+    }
+}
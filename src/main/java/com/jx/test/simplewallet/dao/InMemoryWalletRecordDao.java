@@ -0,0 +1,576 @@
+package com.jx.test.simplewallet.dao;
+
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.InvalidAttributeValueException;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Keeps wallets in memory only, for load tests and nodes whose state may be lost. Every wallet is a reference to its
+ * newest {@link Version}, replaced with compare-and-set, so neither readers nor writers take locks. Versions are
+ * linked to the one before them until {@value #CHUNK} of them have accumulated, which are then packed into one
+ * {@code long[]} shared by all later versions.
+ * <p>
+ * A batch touching several wallets publishes its versions marked pending, and makes them all visible at once by
+ * marking its {@link Batch} committed. Readers skip pending versions, single writers wait for them to be decided, and a
+ * batch finding another one pending rolls itself back and reports a conflict, so two batches never wait for each
+ * other. Validation and errors are the same as for the database storage.
+ */
+@Repository
+@Qualifier("walletStorage")
+@Profile(StorageProfiles.MEMORY)
+public class InMemoryWalletRecordDao implements WalletRecordDao {
+
+    static final int CHUNK = 64;
+
+    // spins waiting for a pending batch before parking between checks
+    private static final int MAX_SPINS = 1_000;
+    private static final long PARK_NANOS = 50_000;
+
+    // every packed version holds its timestamp, its amount and the eight coin counters
+    private static final int STRIDE = 2 + CoinCounts.MAX_DENOMINATION;
+
+    private final Map<String, AtomicReference<Version>> wallets = new ConcurrentHashMap<>();
+
+    // the versions idempotency keys were written with, claimed before the version is published
+    private final Map<String, Long> idempotencyKeys = new ConcurrentHashMap<>();
+
+    private final LongAdder versions = new LongAdder();
+
+    @Override
+    public void insert(WalletRecord newRecord) throws InvalidAttributeValueException {
+        insertBatch(List.of(newRecord));
+    }
+
+    @Override
+    public void insertBatch(List<WalletRecord> newRecords) throws InvalidAttributeValueException {
+        var byWallet = new LinkedHashMap<String, List<WalletRecord>>();
+        for (var newRecord : newRecords) {
+            WalletRecordDaoH2Impl.validate(newRecord);
+
+            if (newRecord.version() <= 1) {
+                throw new InvalidAttributeValueException("invalid version");
+            }
+            byWallet.computeIfAbsent(newRecord.walletId(), id -> new ArrayList<>()).add(newRecord);
+        }
+
+        for (var records : byWallet.values()) {
+            for (var i = 1; i < records.size(); i++) {
+                if (records.get(i).version() <= records.get(i - 1).version()) {
+                    throw new VersionConflictException("version already updated");
+                }
+                if (records.get(i).version() != records.get(i - 1).version() + 1) {
+                    throw new InvalidAttributeValueException("version provided invalid");
+                }
+            }
+        }
+
+        if (byWallet.size() == 1) {
+            insertVersions(byWallet.values().iterator().next());
+        } else if (byWallet.size() > 1) {
+            insertAcrossWallets(byWallet);
+        }
+    }
+
+    @Override
+    public void init(WalletRecord initRecord) throws InvalidAttributeValueException {
+        WalletRecordDaoH2Impl.validate(initRecord);
+
+        if (initRecord.version() != 1) {
+            throw new InvalidAttributeValueException("invalid version");
+        }
+
+        var first = Version.first(stored(initRecord.toBuilder().amount(0).build()));
+        if (wallets.putIfAbsent(initRecord.walletId(), new AtomicReference<>(first)) != null) {
+            throw new InvalidAttributeValueException("wallet already initialised");
+        }
+        versions.increment();
+    }
+
+    @Override
+    public WalletRecord latest(String walletId) {
+        var head = wallets.get(walletId);
+
+        return head == null ? null : head.get().visible().record;
+    }
+
+    @Override
+    public WalletRecord asOf(String walletId, long tsMillis) {
+        var head = wallets.get(walletId);
+        if (head == null) {
+            return null;
+        }
+
+        var newest = head.get().visible();
+        var version = newest.versionAt(tsMillis);
+
+        return version == 0 ? null : newest.record(version);
+    }
+
+    @Override
+    public WalletRecord findByIdempotencyKey(String walletId, String idempotencyKey) {
+        var head = wallets.get(walletId);
+        var version = idempotencyKeys.get(keyOf(walletId, idempotencyKey));
+        if (head == null || version == null) {
+            return null;
+        }
+
+        var newest = head.get().visible();
+        // the claim may belong to a write that is not published yet or lost its race
+        if (version > newest.record.version() || !idempotencyKey.equals(newest.idempotencyKey(version))) {
+            return null;
+        }
+
+        return newest.record(version).toBuilder().idempotencyKey(idempotencyKey).build();
+    }
+
+    @Override
+    public long countVersions() {
+        return versions.sum();
+    }
+
+    /**
+     * Appends consecutive versions of one wallet with a single compare-and-set.
+     */
+    private void insertVersions(List<WalletRecord> records) throws InvalidAttributeValueException {
+        var head = wallets.get(records.get(0).walletId());
+        if (head == null) {
+            throw new InvalidAttributeValueException("version provided invalid");
+        }
+
+        claimKeys(records);
+        try {
+            while (true) {
+                var current = decided(head);
+                check(current, records.get(0));
+                if (head.compareAndSet(current, current.append(records, null, null))) {
+                    versions.add(records.size());
+                    return;
+                }
+            }
+        } catch (InvalidAttributeValueException e) {
+            releaseKeys(records);
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes the versions of every wallet as pending, then commits them all at once. Any conflict or failure rolls
+     * back what was published.
+     */
+    private void insertAcrossWallets(Map<String, List<WalletRecord>> byWallet) throws InvalidAttributeValueException {
+        var heads = new ArrayList<AtomicReference<Version>>(byWallet.size());
+        for (var walletId : byWallet.keySet()) {
+            var head = wallets.get(walletId);
+            if (head == null) {
+                throw new InvalidAttributeValueException("version provided invalid");
+            }
+            heads.add(head);
+        }
+
+        var all = new ArrayList<WalletRecord>();
+        byWallet.values().forEach(all::addAll);
+        claimKeys(all);
+
+        var batch = new Batch();
+        var published = new ArrayList<Version>(heads.size());
+        try {
+            var i = 0;
+            for (var records : byWallet.values()) {
+                var head = heads.get(i++);
+                var raw = head.get();
+                if (!raw.decided()) {
+                    throw new VersionConflictException("version already updated");
+                }
+                var current = raw.visible();
+                check(current, records.get(0));
+
+                var pending = current.append(records, batch, current);
+                if (!head.compareAndSet(raw, pending)) {
+                    throw new VersionConflictException("version already updated");
+                }
+                published.add(pending);
+            }
+
+            batch.state = Batch.COMMITTED;
+        } finally {
+            // left pending, the versions would hold up every later writer of these wallets
+            if (batch.state != Batch.COMMITTED) {
+                batch.state = Batch.ABORTED;
+                for (var j = 0; j < published.size(); j++) {
+                    heads.get(j).compareAndSet(published.get(j), published.get(j).base);
+                }
+                releaseKeys(all);
+            }
+        }
+
+        versions.add(all.size());
+    }
+
+    /**
+     * The newest version of the wallet once no batch has it pending. Rolls back versions of aborted batches on the way.
+     * A batch is decided right after publishing, so this spins briefly and only parks if the batch's thread was
+     * descheduled in between.
+     */
+    private static Version decided(AtomicReference<Version> head) {
+        for (var spins = 0;; spins++) {
+            var current = head.get();
+            if (current.batch == null || current.batch.state == Batch.COMMITTED) {
+                return current;
+            }
+            if (current.batch.state == Batch.ABORTED) {
+                head.compareAndSet(current, current.base);
+            } else if (spins < MAX_SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    }
+
+    private static void check(Version current, WalletRecord first) throws InvalidAttributeValueException {
+        if (first.version() <= current.record.version()) {
+            throw new VersionConflictException("version already updated");
+        }
+        if (first.version() != current.record.version() + 1) {
+            throw new InvalidAttributeValueException("version provided invalid");
+        }
+    }
+
+    private void claimKeys(List<WalletRecord> records) throws VersionConflictException {
+        for (var i = 0; i < records.size(); i++) {
+            var record = records.get(i);
+            if (
+                record.idempotencyKey() != null &&
+                idempotencyKeys.putIfAbsent(keyOf(record.walletId(), record.idempotencyKey()), record.version()) != null
+            ) {
+                releaseKeys(records.subList(0, i));
+                throw new VersionConflictException("version already updated");
+            }
+        }
+    }
+
+    private void releaseKeys(List<WalletRecord> records) {
+        for (var record : records) {
+            if (record.idempotencyKey() != null) {
+                idempotencyKeys.remove(keyOf(record.walletId(), record.idempotencyKey()), record.version());
+            }
+        }
+    }
+
+    private static WalletRecord stored(WalletRecord record) {
+        return WalletRecord
+            .builder()
+            .walletId(record.walletId())
+            .version(record.version())
+            .tsMillis(record.tsMillis())
+            .counts(record.counts())
+            .total(record.total())
+            .amount(record.amount())
+            .build();
+    }
+
+    private static String keyOf(String walletId, String idempotencyKey) {
+        // neither pattern allows '/'
+        return walletId + '/' + idempotencyKey;
+    }
+
+    /**
+     * Outcome of a write spanning several wallets, shared by the versions it publishes.
+     */
+    private static final class Batch {
+
+        static final int PENDING = 0;
+        static final int COMMITTED = 1;
+        static final int ABORTED = 2;
+
+        volatile int state = PENDING;
+    }
+
+    /**
+     * Chunks of packed versions shared by the {@link Packed} versions of a wallet, each of which uses a prefix of them.
+     * Arrays grow by doubling; a chunk is only written past the longest prefix in use, by whoever claims that slot
+     * first, so the prefixes already published never change.
+     */
+    private static final class Chunks {
+
+        final long[][] values;
+
+        // null for chunks without idempotency keys
+        final String[][] keys;
+
+        private final AtomicInteger claimed;
+
+        Chunks(long[][] values, String[][] keys, int claimed) {
+            this.values = values;
+            this.keys = keys;
+            this.claimed = new AtomicInteger(claimed);
+        }
+
+        /**
+         * Claims the slot after the first {@code length} chunks, unless it is taken or there is no room.
+         */
+        boolean claim(int length) {
+            return length < values.length && claimed.compareAndSet(length, length + 1);
+        }
+
+        /**
+         * Copies the first {@code length} chunks into arrays twice as long.
+         */
+        Chunks grown(int length) {
+            var capacity = Math.max(4, 2 * length);
+
+            return new Chunks(Arrays.copyOf(values, capacity), Arrays.copyOf(keys, capacity), length);
+        }
+    }
+
+    /**
+     * Versions of a wallet packed {@value #CHUNK} at a time; never changed once built.
+     */
+    private static final class Packed {
+
+        static final Packed EMPTY = new Packed(new Chunks(new long[0][], new String[0][], 0), 0, true);
+
+        final Chunks chunks;
+
+        // number of chunks of the above holding these versions
+        final int length;
+
+        // whether timestamps never decrease over the packed versions
+        final boolean ordered;
+
+        Packed(Chunks chunks, int length, boolean ordered) {
+            this.chunks = chunks;
+            this.length = length;
+            this.ordered = ordered;
+        }
+
+        int size() {
+            return length * CHUNK;
+        }
+
+        long tsMillis(long version) {
+            return chunks.values[(int) ((version - 1) / CHUNK)][(int) ((version - 1) % CHUNK) * STRIDE];
+        }
+
+        /**
+         * Packs the {@value #CHUNK} versions linked below {@code newest}.
+         */
+        Packed plus(Version newest) {
+            var chunk = new long[CHUNK * STRIDE];
+            String[] chunkKeys = null;
+            for (var v = newest; v != null; v = v.previous) {
+                var i = (int) ((v.record.version() - 1) % CHUNK);
+                chunk[i * STRIDE] = v.record.tsMillis();
+                chunk[i * STRIDE + 1] = v.record.amount();
+                for (var d = 1; d <= CoinCounts.MAX_DENOMINATION; d++) {
+                    chunk[i * STRIDE + 1 + d] = v.record.counts().count(d);
+                }
+                if (v.idempotencyKey != null) {
+                    if (chunkKeys == null) {
+                        chunkKeys = new String[CHUNK];
+                    }
+                    chunkKeys[i] = v.idempotencyKey;
+                }
+            }
+
+            // a writer that lost a race, or appends after a rolled back batch, finds the slot taken and copies
+            var target = chunks;
+            if (!target.claim(length)) {
+                target = chunks.grown(length);
+                target.claim(length);
+            }
+            target.values[length] = chunk;
+            target.keys[length] = chunkKeys;
+
+            return new Packed(target, length + 1, newest.ordered);
+        }
+
+        WalletRecord record(String walletId, long version) {
+            var chunk = chunks.values[(int) ((version - 1) / CHUNK)];
+            var i = (int) ((version - 1) % CHUNK) * STRIDE;
+            var counts = CoinCounts.ofCounts(Arrays.copyOfRange(chunk, i + 2, i + STRIDE));
+
+            return WalletRecord
+                .builder()
+                .walletId(walletId)
+                .version(version)
+                .tsMillis(chunk[i])
+                .amount(chunk[i + 1])
+                .counts(counts)
+                .total(counts.total())
+                .build();
+        }
+
+        String idempotencyKey(long version) {
+            var chunkKeys = chunks.keys[(int) ((version - 1) / CHUNK)];
+
+            return chunkKeys == null ? null : chunkKeys[(int) ((version - 1) % CHUNK)];
+        }
+
+        /**
+         * The newest packed version with the latest timestamp not after {@code tsMillis}, or 0.
+         */
+        long versionAt(long tsMillis) {
+            var found = 0L;
+            if (ordered) {
+                var low = 1L;
+                var high = (long) size();
+                while (low <= high) {
+                    var mid = (low + high) >>> 1;
+                    if (tsMillis(mid) <= tsMillis) {
+                        found = mid;
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+            } else {
+                for (var v = 1L; v <= size(); v++) {
+                    if (tsMillis(v) <= tsMillis && (found == 0 || tsMillis(v) >= tsMillis(found))) {
+                        found = v;
+                    }
+                }
+            }
+
+            return found;
+        }
+    }
+
+    /**
+     * One version of a wallet, linked to the versions before it that are not packed yet.
+     */
+    private static final class Version {
+
+        final WalletRecord record;
+
+        final String idempotencyKey;
+
+        // the version before, or null if that one is the newest packed version
+        final Version previous;
+
+        final Packed packed;
+
+        // whether timestamps never decrease up to this version
+        final boolean ordered;
+
+        // set on the newest version a multi-wallet batch published, with the version it replaced
+        final Batch batch;
+        final Version base;
+
+        private Version(
+            WalletRecord record,
+            String idempotencyKey,
+            Version previous,
+            Packed packed,
+            Batch batch,
+            Version base
+        ) {
+            this.record = record;
+            this.idempotencyKey = idempotencyKey;
+            this.previous = previous;
+            this.packed = packed;
+            if (previous != null) {
+                this.ordered = previous.ordered && previous.record.tsMillis() <= record.tsMillis();
+            } else {
+                this.ordered = packed.size() == 0 || packed.ordered && packed.tsMillis(packed.size()) <= record.tsMillis();
+            }
+            this.batch = batch;
+            this.base = base;
+        }
+
+        static Version first(WalletRecord record) {
+            return new Version(record, null, null, Packed.EMPTY, null, null);
+        }
+
+        boolean decided() {
+            return batch == null || batch.state != Batch.PENDING;
+        }
+
+        /**
+         * This version if readers may see it, otherwise the one its batch replaced.
+         */
+        Version visible() {
+            return batch == null || batch.state == Batch.COMMITTED ? this : base;
+        }
+
+        Version append(List<WalletRecord> records, Batch batch, Version base) {
+            var newest = this;
+            for (var i = 0; i < records.size(); i++) {
+                var record = records.get(i);
+                var last = i == records.size() - 1;
+                var previous = newest;
+                var packed = newest.packed;
+                if (newest.record.version() - packed.size() == CHUNK) {
+                    packed = packed.plus(newest);
+                    previous = null;
+                }
+                newest =
+                    new Version(
+                        stored(record),
+                        record.idempotencyKey(),
+                        previous,
+                        packed,
+                        last ? batch : null,
+                        last ? base : null
+                    );
+            }
+
+            return newest;
+        }
+
+        Version linked(long version) {
+            var v = this;
+            while (v.record.version() != version) {
+                v = v.previous;
+            }
+
+            return v;
+        }
+
+        WalletRecord record(long version) {
+            return version > packed.size() ? linked(version).record : packed.record(record.walletId(), version);
+        }
+
+        String idempotencyKey(long version) {
+            return version > packed.size() ? linked(version).idempotencyKey : packed.idempotencyKey(version);
+        }
+
+        /**
+         * The newest version with the latest timestamp not after {@code tsMillis}, or 0 if there is none.
+         */
+        long versionAt(long tsMillis) {
+            var found = 0L;
+            var foundTs = Long.MIN_VALUE;
+            for (var v = this; v != null; v = v.previous) {
+                if (v.record.tsMillis() <= tsMillis && (found == 0 || v.record.tsMillis() > foundTs)) {
+                    found = v.record.version();
+                    foundTs = v.record.tsMillis();
+                    if (ordered) {
+                        return found;
+                    }
+                }
+            }
+
+            var packedVersion = packed.versionAt(tsMillis);
+            if (packedVersion != 0 && (found == 0 || packed.tsMillis(packedVersion) > foundTs)) {
+                found = packedVersion;
+            }
+
+            return found;
+        }
+    }
+}
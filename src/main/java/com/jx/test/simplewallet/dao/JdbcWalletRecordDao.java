@@ -0,0 +1,285 @@
+package com.jx.test.simplewallet.dao;
+
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.CoinSelection;
+import com.jx.test.simplewallet.model.WalletEvent;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.InvalidAttributeValueException;
+import javax.sql.DataSource;
+import javax.transaction.Transactional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+/**
+ * The database storage with every statement on the payment path sent through plain JDBC instead of JPA native
+ * queries: the SQL is constant, so the driver reuses the statement it prepared for it on the connection, rows are
+ * mapped straight to records without entity hydration or a persistence context, and a batch of versions goes to the
+ * database as one JDBC batch per table. Maintenance operations are inherited unchanged.
+ */
+@Repository
+@Qualifier("walletStorage")
+@Profile(StorageProfiles.JDBC)
+public class JdbcWalletRecordDao extends WalletRecordDaoH2Impl {
+
+    private static final String INSERT_EVENT =
+        "INSERT INTO wallet_event (wallet_id, version, ts_millis, amount, total, idempotency_key, coin_selection) " +
+        "SELECT ?,?,?,?,?,?,? WHERE EXISTS (SELECT * FROM wallet_event WHERE wallet_id = ? AND version = ?)";
+
+    private static final String INIT_EVENT =
+        "INSERT INTO wallet_event (wallet_id, version, ts_millis, amount, total) SELECT ?,?,?,0,? " +
+        "WHERE NOT EXISTS (SELECT * FROM wallet_event WHERE wallet_id = ?)";
+
+    private static final String INSERT_SNAPSHOT =
+        "INSERT INTO wallet (wallet_id, version, ts_millis, counts, total) VALUES (?,?,?,?,?)";
+
+    private static final String SELECT_SNAPSHOT =
+        "SELECT * FROM wallet WHERE wallet_id = ? AND version <= ? AND version > ? ORDER BY version DESC LIMIT 1";
+
+    private static final String SELECT_EVENTS =
+        "SELECT * FROM wallet_event WHERE wallet_id = ? AND version > ? AND version <= ? ORDER BY version";
+
+    private static final RowMapper<WalletRecord> SNAPSHOT = (rs, row) -> {
+        var counts = rs.getBytes("counts");
+
+        return WalletRecord
+            .builder()
+            .walletId(rs.getString("wallet_id"))
+            .version(rs.getLong("version"))
+            .tsMillis(rs.getLong("ts_millis"))
+            .content(rs.getString("content"))
+            .counts(counts == null ? null : CoinCounts.fromBytes(counts))
+            .total(rs.getLong("total"))
+            .build();
+    };
+
+    private static final RowMapper<WalletEvent> EVENT = (rs, row) ->
+        WalletEvent
+            .builder()
+            .walletId(rs.getString("wallet_id"))
+            .version(rs.getLong("version"))
+            .tsMillis(rs.getLong("ts_millis"))
+            .amount(rs.getLong("amount"))
+            .total(rs.getLong("total"))
+            .idempotencyKey(rs.getString("idempotency_key"))
+            .coinSelection(CoinSelection.ofCode((Integer) rs.getObject("coin_selection")))
+            .build();
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public JdbcWalletRecordDao(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Transactional
+    @Override
+    public void insert(WalletRecord newRecord) throws InvalidAttributeValueException {
+        validate(newRecord);
+
+        if (newRecord.version() <= 1) {
+            throw new InvalidAttributeValueException("invalid version");
+        }
+
+        var snapshot = needsSnapshot(newRecord);
+
+        int result;
+        try {
+            result = jdbcTemplate.update(INSERT_EVENT, eventArgs(newRecord, snapshot));
+        } catch (DataIntegrityViolationException e) {
+            // either the version or the idempotency key is taken; a retry sees which
+            throw new VersionConflictException("version already updated");
+        }
+
+        if (result == 0) {
+            throw new InvalidAttributeValueException("version provided invalid");
+        }
+
+        if (snapshot) {
+            insertSnapshot(newRecord);
+        }
+    }
+
+    /**
+     * Sends all events as one JDBC batch, followed by one batch with the snapshots due. A record whose previous version
+     * does not exist fails the whole batch, so it is rolled back even though the error is checked.
+     */
+    @Transactional(rollbackOn = InvalidAttributeValueException.class)
+    @Override
+    public void insertBatch(List<WalletRecord> newRecords) throws InvalidAttributeValueException {
+        var events = new ArrayList<Object[]>(newRecords.size());
+        var snapshots = new ArrayList<Object[]>();
+        for (var newRecord : newRecords) {
+            validate(newRecord);
+
+            if (newRecord.version() <= 1) {
+                throw new InvalidAttributeValueException("invalid version");
+            }
+
+            var snapshot = needsSnapshot(newRecord);
+            events.add(eventArgs(newRecord, snapshot));
+            if (snapshot) {
+                snapshots.add(snapshotArgs(newRecord));
+            }
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+
+        int[] results;
+        try {
+            results = jdbcTemplate.batchUpdate(INSERT_EVENT, events);
+        } catch (DataIntegrityViolationException e) {
+            throw new VersionConflictException("version already updated");
+        }
+
+        for (var result : results) {
+            if (result == 0) {
+                throw new InvalidAttributeValueException("version provided invalid");
+            }
+        }
+
+        if (!snapshots.isEmpty()) {
+            jdbcTemplate.batchUpdate(INSERT_SNAPSHOT, snapshots);
+        }
+    }
+
+    @Transactional
+    @Override
+    public void init(WalletRecord newRecord) throws InvalidAttributeValueException {
+        validate(newRecord);
+
+        if (newRecord.version() != 1) {
+            throw new InvalidAttributeValueException("invalid version");
+        }
+
+        int result;
+        try {
+            result =
+                jdbcTemplate.update(
+                    INIT_EVENT,
+                    newRecord.walletId(),
+                    newRecord.version(),
+                    newRecord.tsMillis(),
+                    newRecord.total(),
+                    newRecord.walletId()
+                );
+        } catch (DataIntegrityViolationException e) {
+            throw new InvalidAttributeValueException("wallet already initialised");
+        }
+
+        if (result == 0) {
+            throw new InvalidAttributeValueException("wallet already initialised");
+        }
+
+        insertSnapshot(newRecord);
+    }
+
+    @Override
+    public WalletRecord findByIdempotencyKey(String walletId, String idempotencyKey) {
+        var event = DataAccessUtils.singleResult(
+            jdbcTemplate.query(
+                "SELECT * FROM wallet_event WHERE wallet_id = ? AND idempotency_key = ?",
+                EVENT,
+                walletId,
+                idempotencyKey
+            )
+        );
+        if (event == null) {
+            return findArchived(walletId, idempotencyKey);
+        }
+
+        var record = rebuild(walletId, event.version(), null);
+        if (record == null) {
+            return null;
+        }
+
+        var previousTotal = DataAccessUtils.singleResult(
+            jdbcTemplate.queryForList(
+                "SELECT total FROM wallet_event WHERE wallet_id = ? AND version = ?",
+                Long.class,
+                walletId,
+                event.version() - 1
+            )
+        );
+
+        return record
+            .toBuilder()
+            .amount(previousTotal == null ? record.amount() : previousTotal - event.total())
+            .idempotencyKey(idempotencyKey)
+            .build();
+    }
+
+    @Override
+    public long countVersions() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM wallet_event", Long.class);
+    }
+
+    @Override
+    Long latestVersion(String walletId) {
+        return jdbcTemplate.queryForObject(LATEST_VERSION, Long.class, walletId, walletId);
+    }
+
+    @Override
+    Long versionAt(String walletId, long tsMillis) {
+        return DataAccessUtils.singleResult(
+            jdbcTemplate.queryForList(
+                "SELECT version FROM wallet_event WHERE wallet_id = ? AND ts_millis <= ? " +
+                "ORDER BY ts_millis DESC, version DESC LIMIT 1",
+                Long.class,
+                walletId,
+                tsMillis
+            )
+        );
+    }
+
+    @Override
+    WalletRecord rebuild(String walletId, long version, WalletRecord from) {
+        var snapshot = DataAccessUtils.singleResult(
+            jdbcTemplate.query(SELECT_SNAPSHOT, SNAPSHOT, walletId, version, from == null ? 0 : from.version())
+        );
+        var base = snapshot == null ? from : snapshot;
+        if (base == null) {
+            return null;
+        }
+
+        return replay(base, jdbcTemplate.query(SELECT_EVENTS, EVENT, walletId, base.version(), version));
+    }
+
+    @Override
+    void insertSnapshot(WalletRecord newRecord) {
+        jdbcTemplate.update(INSERT_SNAPSHOT, snapshotArgs(newRecord));
+    }
+
+    private static Object[] eventArgs(WalletRecord newRecord, boolean snapshot) {
+        return new Object[] {
+            newRecord.walletId(),
+            newRecord.version(),
+            newRecord.tsMillis(),
+            snapshot ? 0 : newRecord.amount(),
+            newRecord.total(),
+            newRecord.idempotencyKey(),
+            snapshot ? null : newRecord.coinSelection().code(),
+            newRecord.walletId(),
+            newRecord.version() - 1,
+        };
+    }
+
+    private static Object[] snapshotArgs(WalletRecord newRecord) {
+        return new Object[] {
+            newRecord.walletId(),
+            newRecord.version(),
+            newRecord.tsMillis(),
+            newRecord.counts().toBytes(),
+            newRecord.total(),
+        };
+    }
+}
@@ -0,0 +1,21 @@
+package com.jx.test.simplewallet.dao;
+
+/**
+ * When a write to the journal is forced to disk before the writer is told it succeeded.
+ */
+public enum JournalSync {
+    /**
+     * Leave flushing to the operating system; a crash of the machine may lose the latest writes.
+     */
+    NONE,
+
+    /**
+     * Writers wait for a background flush that forces all writes made since the previous one together.
+     */
+    GROUP,
+
+    /**
+     * Every write is forced on its own.
+     */
+    ALWAYS,
+}
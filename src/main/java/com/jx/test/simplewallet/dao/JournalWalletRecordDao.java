@@ -0,0 +1,582 @@
+package com.jx.test.simplewallet.dao;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import javax.annotation.PreDestroy;
+import javax.management.InvalidAttributeValueException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Stores wallet versions in an append-only file instead of the database. The file is mapped in fixed-size segments;
+ * every write appends one frame {@code [length][crc32][entries]} holding the full contents of each version written, so
+ * a batch is stored or lost as a whole. The latest version of every wallet and the position of each of its versions
+ * are kept in memory and rebuilt by scanning the file on startup, which stops at the first frame that is cut short or
+ * fails its checksum and clears everything after it.
+ * <p>
+ * Writes are serialised by one lock and checked against the in-memory versions with the same outcomes as the database
+ * storage. A write is visible to readers as soon as it is appended; when it is reported durable depends on
+ * {@link JournalSync}.
+ */
+@Slf4j
+@Repository
+@Qualifier("walletStorage")
+@Profile(StorageProfiles.JOURNAL)
+public class JournalWalletRecordDao implements WalletRecordDao {
+
+    private static final int HEADER_BYTES = 8;
+
+    // a frame length of 0 marks the end of the journal, this one that the rest of the segment is unused
+    private static final int NEXT_SEGMENT = -1;
+
+    private final FileChannel channel;
+
+    private final int segmentBytes;
+
+    private final JournalSync sync;
+
+    private final long groupCommitMillis;
+
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    private final Map<String, Timeline> wallets = new ConcurrentHashMap<>();
+
+    // journal positions of the entries written with an idempotency key, by wallet id and key
+    private final Map<String, Long> idempotencyKeys = new ConcurrentHashMap<>();
+
+    private final Object syncMonitor = new Object();
+
+    private final Thread syncThread;
+
+    // guarded by appendLock
+    private int position;
+    private int dirtyFrom;
+
+    private volatile long appended;
+    private volatile long versions;
+
+    // guarded by syncMonitor
+    private long synced;
+    private boolean closed;
+
+    @Autowired
+    public JournalWalletRecordDao(WalletProperties walletProperties) {
+        this(
+            Paths.get(walletProperties.getJournal().getPath()),
+            walletProperties.getJournal().getSegmentBytes(),
+            walletProperties.getJournal().getSync(),
+            walletProperties.getJournal().getGroupCommitMillis()
+        );
+    }
+
+    JournalWalletRecordDao(Path path, int segmentBytes, JournalSync sync, long groupCommitMillis) {
+        this.segmentBytes = segmentBytes;
+        this.sync = sync;
+        this.groupCommitMillis = groupCommitMillis;
+
+        try {
+            channel =
+                FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        if (sync == JournalSync.GROUP) {
+            syncThread = new Thread(this::syncLoop, "wallet-journal-sync");
+            syncThread.setDaemon(true);
+            syncThread.start();
+        } else {
+            syncThread = null;
+        }
+    }
+
+    @Override
+    public void insert(WalletRecord newRecord) throws InvalidAttributeValueException {
+        insertBatch(List.of(newRecord));
+    }
+
+    @Override
+    public void insertBatch(List<WalletRecord> newRecords) throws InvalidAttributeValueException {
+        if (newRecords.isEmpty()) {
+            return;
+        }
+
+        for (var newRecord : newRecords) {
+            WalletRecordDaoH2Impl.validate(newRecord);
+
+            if (newRecord.version() <= 1) {
+                throw new InvalidAttributeValueException("invalid version");
+            }
+        }
+
+        long ticket;
+        appendLock.lock();
+        try {
+            var nextVersions = new HashMap<String, Long>();
+            var newKeys = new HashSet<String>();
+            for (var newRecord : newRecords) {
+                var next = nextVersions.get(newRecord.walletId());
+                if (next == null) {
+                    var timeline = wallets.get(newRecord.walletId());
+                    if (timeline == null) {
+                        throw new InvalidAttributeValueException("version provided invalid");
+                    }
+                    next = timeline.latest.version() + 1;
+                }
+
+                if (newRecord.version() < next) {
+                    throw new VersionConflictException("version already updated");
+                }
+                if (newRecord.version() > next) {
+                    throw new InvalidAttributeValueException("version provided invalid");
+                }
+                nextVersions.put(newRecord.walletId(), next + 1);
+
+                if (newRecord.idempotencyKey() != null) {
+                    var key = keyOf(newRecord.walletId(), newRecord.idempotencyKey());
+                    if (idempotencyKeys.containsKey(key) || !newKeys.add(key)) {
+                        throw new VersionConflictException("version already updated");
+                    }
+                }
+            }
+
+            ticket = append(newRecords);
+        } finally {
+            appendLock.unlock();
+        }
+
+        awaitSync(ticket);
+    }
+
+    @Override
+    public void init(WalletRecord initRecord) throws InvalidAttributeValueException {
+        WalletRecordDaoH2Impl.validate(initRecord);
+
+        if (initRecord.version() != 1) {
+            throw new InvalidAttributeValueException("invalid version");
+        }
+
+        long ticket;
+        appendLock.lock();
+        try {
+            if (wallets.containsKey(initRecord.walletId())) {
+                throw new InvalidAttributeValueException("wallet already initialised");
+            }
+
+            ticket = append(List.of(initRecord.toBuilder().amount(0).idempotencyKey(null).build()));
+        } finally {
+            appendLock.unlock();
+        }
+
+        awaitSync(ticket);
+    }
+
+    @Override
+    public WalletRecord latest(String walletId) {
+        var timeline = wallets.get(walletId);
+
+        return timeline == null ? null : timeline.latest;
+    }
+
+    @Override
+    public WalletRecord asOf(String walletId, long tsMillis) {
+        var timeline = wallets.get(walletId);
+        if (timeline == null) {
+            return null;
+        }
+
+        var offset = timeline.offsetAt(tsMillis);
+
+        return offset < 0 ? null : read(offset);
+    }
+
+    @Override
+    public WalletRecord findByIdempotencyKey(String walletId, String idempotencyKey) {
+        var offset = idempotencyKeys.get(keyOf(walletId, idempotencyKey));
+
+        return offset == null ? null : read(offset).toBuilder().idempotencyKey(idempotencyKey).build();
+    }
+
+    @Override
+    public long countVersions() {
+        return versions;
+    }
+
+    /**
+     * Stops the group flush and forces everything appended so far.
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        synchronized (syncMonitor) {
+            closed = true;
+            syncMonitor.notifyAll();
+        }
+        if (syncThread != null) {
+            try {
+                syncThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Writes one frame holding {@code records} and applies them to the in-memory state. Must hold the append lock and
+     * have checked the records.
+     *
+     * @return the ticket to wait for with {@link #awaitSync(long)}
+     */
+    private long append(List<WalletRecord> records) {
+        var entries = new ArrayList<byte[]>(records.size());
+        var payloadBytes = 4;
+        for (var record : records) {
+            var entry = encode(record);
+            entries.add(entry);
+            payloadBytes += entry.length;
+        }
+
+        var frame = ByteBuffer.allocate(HEADER_BYTES + payloadBytes);
+        frame.position(HEADER_BYTES);
+        frame.putInt(records.size());
+        entries.forEach(frame::put);
+
+        var crc = new CRC32();
+        crc.update(frame.array(), HEADER_BYTES, payloadBytes);
+        frame.putInt(0, payloadBytes);
+        frame.putInt(4, (int) crc.getValue());
+
+        if (frame.capacity() > segmentBytes) {
+            throw new IllegalArgumentException("batch of " + records.size() + " records does not fit a journal segment");
+        }
+
+        var segment = segments.get(segments.size() - 1);
+        if (position + frame.capacity() > segmentBytes) {
+            if (position + 4 <= segmentBytes) {
+                segment.putInt(position, NEXT_SEGMENT);
+            }
+            segment = map(segments.size());
+            segments.add(segment);
+            position = 0;
+        }
+
+        var start = (long) (segments.size() - 1) * segmentBytes + position;
+        var target = segment.duplicate();
+        target.position(position + HEADER_BYTES);
+        target.put(frame.array(), HEADER_BYTES, payloadBytes);
+        // the length goes last, so a frame is never seen before its contents
+        segment.putInt(position + 4, (int) crc.getValue());
+        segment.putInt(position, payloadBytes);
+        position += frame.capacity();
+
+        var offset = start + HEADER_BYTES + 4;
+        for (var i = 0; i < records.size(); i++) {
+            apply(records.get(i), offset);
+            offset += entries.get(i).length;
+        }
+
+        appended++;
+        if (sync == JournalSync.ALWAYS) {
+            flush();
+        }
+
+        return appended;
+    }
+
+    private void apply(WalletRecord record, long offset) {
+        var latest = WalletRecord
+            .builder()
+            .walletId(record.walletId())
+            .version(record.version())
+            .tsMillis(record.tsMillis())
+            .counts(record.counts())
+            .total(record.total())
+            .amount(record.amount())
+            .build();
+        wallets.computeIfAbsent(record.walletId(), id -> new Timeline()).add(latest, offset);
+
+        if (record.idempotencyKey() != null) {
+            idempotencyKeys.put(keyOf(record.walletId(), record.idempotencyKey()), offset);
+        }
+        versions++;
+    }
+
+    /**
+     * Waits until the frame behind {@code ticket} is forced to disk, if the sync policy says so.
+     */
+    private void awaitSync(long ticket) {
+        if (sync != JournalSync.GROUP) {
+            return;
+        }
+
+        var interrupted = false;
+        synchronized (syncMonitor) {
+            syncMonitor.notifyAll();
+            while (synced < ticket && !closed) {
+                try {
+                    syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void syncLoop() {
+        try {
+            while (true) {
+                synchronized (syncMonitor) {
+                    while (!closed && synced == appended) {
+                        syncMonitor.wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+
+                // let more writers join the flush
+                Thread.sleep(groupCommitMillis);
+                flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forces the segments written since the previous flush.
+     */
+    private void flush() {
+        long target;
+        int from;
+        int to;
+        appendLock.lock();
+        try {
+            target = appended;
+            from = dirtyFrom;
+            to = segments.size() - 1;
+            dirtyFrom = to;
+        } finally {
+            appendLock.unlock();
+        }
+
+        for (var i = from; i <= to; i++) {
+            segments.get(i).force();
+        }
+
+        synchronized (syncMonitor) {
+            synced = Math.max(synced, target);
+            syncMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Replays the journal into memory, then clears everything after the last intact frame so a later append can never
+     * be followed by frames left over from before the crash.
+     */
+    private void recover() throws IOException {
+        var segmentCount = Math.max(1, (int) ((channel.size() + segmentBytes - 1) / segmentBytes));
+        for (var i = 0; i < segmentCount; i++) {
+            segments.add(map(i));
+        }
+
+        var crc = new CRC32();
+        var frames = 0L;
+        var index = 0;
+        var pos = 0;
+        while (true) {
+            var segment = segments.get(index);
+            var length = pos + HEADER_BYTES <= segmentBytes ? segment.getInt(pos) : NEXT_SEGMENT;
+            if (length == NEXT_SEGMENT && index + 1 < segmentCount) {
+                index++;
+                pos = 0;
+                continue;
+            }
+            if (length < 4 || pos + HEADER_BYTES + length > segmentBytes) {
+                break;
+            }
+
+            var payload = segment.duplicate();
+            payload.position(pos + HEADER_BYTES).limit(pos + HEADER_BYTES + length);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != segment.getInt(pos + 4)) {
+                break;
+            }
+
+            var count = payload.getInt();
+            var offset = (long) index * segmentBytes + payload.position();
+            for (var i = 0; i < count; i++) {
+                var start = payload.position();
+                apply(decode(payload), offset);
+                offset += payload.position() - start;
+            }
+            frames++;
+            pos += HEADER_BYTES + length;
+        }
+
+        var segment = segments.get(index);
+        for (var i = pos; i < segmentBytes; i++) {
+            if (segment.get(i) != 0) {
+                segment.put(i, (byte) 0);
+            }
+        }
+        while (segments.size() > index + 1) {
+            segments.remove(segments.size() - 1);
+        }
+        channel.truncate((long) (index + 1) * segmentBytes);
+        segment.force();
+
+        position = pos;
+        dirtyFrom = index;
+        log.info("recovered {} wallet versions of {} wallets from {} journal frames", versions, wallets.size(), frames);
+    }
+
+    private MappedByteBuffer map(int index) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_WRITE, (long) index * segmentBytes, segmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private WalletRecord read(long offset) {
+        var entry = segments.get((int) (offset / segmentBytes)).duplicate();
+        entry.position((int) (offset % segmentBytes));
+
+        return decode(entry).toBuilder().idempotencyKey(null).build();
+    }
+
+    private static byte[] encode(WalletRecord record) {
+        var walletId = record.walletId().getBytes(StandardCharsets.UTF_8);
+        var counts = record.counts().toBytes();
+        var key = record.idempotencyKey() == null ? new byte[0] : record.idempotencyKey().getBytes(StandardCharsets.UTF_8);
+
+        return ByteBuffer
+            .allocate(2 + walletId.length + 4 * 8 + 2 + counts.length + 2 + key.length)
+            .putShort((short) walletId.length)
+            .put(walletId)
+            .putLong(record.version())
+            .putLong(record.tsMillis())
+            .putLong(record.amount())
+            .putLong(record.total())
+            .putShort((short) counts.length)
+            .put(counts)
+            .putShort((short) key.length)
+            .put(key)
+            .array();
+    }
+
+    private static WalletRecord decode(ByteBuffer entry) {
+        var record = WalletRecord
+            .builder()
+            .walletId(new String(bytes(entry), StandardCharsets.UTF_8))
+            .version(entry.getLong())
+            .tsMillis(entry.getLong())
+            .amount(entry.getLong())
+            .total(entry.getLong())
+            .counts(CoinCounts.fromBytes(bytes(entry)));
+
+        var key = bytes(entry);
+
+        return record.idempotencyKey(key.length == 0 ? null : new String(key, StandardCharsets.UTF_8)).build();
+    }
+
+    private static byte[] bytes(ByteBuffer entry) {
+        var bytes = new byte[entry.getShort() & 0xffff];
+        entry.get(bytes);
+
+        return bytes;
+    }
+
+    private static String keyOf(String walletId, String idempotencyKey) {
+        // neither pattern allows '/'
+        return walletId + '/' + idempotencyKey;
+    }
+
+    /**
+     * The latest version of a wallet and where each of its versions starts in the journal, indexed by version - 1.
+     */
+    private static final class Timeline {
+
+        private volatile WalletRecord latest;
+
+        private long[] tsMillis = new long[4];
+        private long[] offsets = new long[4];
+        private int size;
+
+        // whether timestamps never decrease from one version to the next, so they can be binary searched
+        private boolean ordered = true;
+
+        synchronized void add(WalletRecord record, long offset) {
+            if (size == offsets.length) {
+                tsMillis = Arrays.copyOf(tsMillis, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            ordered &= size == 0 || tsMillis[size - 1] <= record.tsMillis();
+            tsMillis[size] = record.tsMillis();
+            offsets[size++] = offset;
+            latest = record;
+        }
+
+        /**
+         * Offset of the version with the latest timestamp not after {@code ts}, the newest one on ties, or -1.
+         */
+        synchronized long offsetAt(long ts) {
+            var found = -1;
+            if (ordered) {
+                var low = 0;
+                var high = size - 1;
+                while (low <= high) {
+                    var mid = (low + high) >>> 1;
+                    if (tsMillis[mid] <= ts) {
+                        found = mid;
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+            } else {
+                for (var i = 0; i < size; i++) {
+                    if (tsMillis[i] <= ts && (found < 0 || tsMillis[i] >= tsMillis[found])) {
+                        found = i;
+                    }
+                }
+            }
+
+            return found < 0 ? -1 : offsets[found];
+        }
+    }
+}
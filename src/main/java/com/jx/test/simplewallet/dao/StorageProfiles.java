@@ -0,0 +1,35 @@
+package com.jx.test.simplewallet.dao;
+
+/**
+ * Spring profiles selecting where wallet records are stored. Without any of them the records live in the database,
+ * accessed through JPA.
+ */
+public final class StorageProfiles {
+
+    /**
+     * Memory-mapped append-only journal file, see {@link JournalWalletRecordDao}.
+     */
+    public static final String JOURNAL = "journal";
+
+    /**
+     * Memory only, nothing survives a restart, see {@link InMemoryWalletRecordDao}.
+     */
+    public static final String MEMORY = "memory";
+
+    /**
+     * The database, with the payment path in plain JDBC, see {@link JdbcWalletRecordDao}.
+     */
+    public static final String JDBC = "jdbc";
+
+    /**
+     * Active when wallets are stored in the database, through JPA or {@link #JDBC}.
+     */
+    public static final String DATABASE = "!" + JOURNAL + " & !" + MEMORY;
+
+    /**
+     * Active when wallets are stored in the database through JPA, i.e. no other storage profile is.
+     */
+    public static final String JPA = DATABASE + " & !" + JDBC;
+
+    private StorageProfiles() {}
+}
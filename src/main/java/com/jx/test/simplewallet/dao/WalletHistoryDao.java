@@ -0,0 +1,142 @@
+package com.jx.test.simplewallet.dao;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.CoinSelection;
+import com.jx.test.simplewallet.model.HistoryQuery;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.sql.ResultSet;
+import java.util.function.Consumer;
+import javax.sql.DataSource;
+import javax.transaction.Transactional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.support.DataAccessUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Reads past versions of a wallet straight off a forward-only JDBC cursor. Every version is rebuilt from the snapshot
+ * before it and the payments since, and handed on as soon as its row is read, so the memory used does not depend on
+ * how many versions are read. Versions already moved to the archive are not returned.
+ */
+@Repository
+@Profile(StorageProfiles.DATABASE)
+public class WalletHistoryDao {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public WalletHistoryDao(DataSource dataSource, WalletProperties walletProperties) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.jdbcTemplate.setFetchSize(walletProperties.getHistory().getFetchSize());
+    }
+
+    /**
+     * Passes the versions of {@code walletId} selected by {@code query} to {@code consumer} in version order.
+     *
+     * @return the number of versions passed on
+     */
+    @Transactional
+    public long forEachVersion(String walletId, HistoryQuery query, Consumer<WalletRecord> consumer) {
+        var from = query.afterVersion() + 1;
+        if (query.fromMillis() != Long.MIN_VALUE) {
+            var firstInTime = DataAccessUtils.singleResult(
+                jdbcTemplate.queryForList(
+                    "SELECT MIN(version) FROM wallet_event WHERE wallet_id = ? AND version >= ? AND ts_millis >= ?",
+                    Long.class,
+                    walletId,
+                    from,
+                    query.fromMillis()
+                )
+            );
+            if (firstInTime == null) {
+                return 0;
+            }
+            from = firstInTime;
+        }
+
+        // the cursor stops at the last version in time instead of reading the rest only to skip it
+        var to = query.toVersion();
+        if (query.toMillis() != Long.MAX_VALUE) {
+            var lastInTime = DataAccessUtils.singleResult(
+                jdbcTemplate.queryForList(
+                    "SELECT MAX(version) FROM wallet_event WHERE wallet_id = ? AND version <= ? AND ts_millis <= ?",
+                    Long.class,
+                    walletId,
+                    to,
+                    query.toMillis()
+                )
+            );
+            if (lastInTime == null || lastInTime < from) {
+                return 0;
+            }
+            to = lastInTime;
+        }
+
+        // replay starts at the last snapshot not after the first version wanted, or the oldest one left
+        var base = DataAccessUtils.singleResult(
+            jdbcTemplate.queryForList(
+                "SELECT COALESCE(MAX(version), (SELECT MIN(version) FROM wallet WHERE wallet_id = ?)) FROM wallet " +
+                "WHERE wallet_id = ? AND version <= ?",
+                Long.class,
+                walletId,
+                walletId,
+                from
+            )
+        );
+        if (base == null || base > to) {
+            return 0;
+        }
+
+        var start = from;
+
+        return jdbcTemplate.query(
+            "SELECT e.version, e.ts_millis, e.amount, e.total, w.counts, w.content, e.coin_selection " +
+            "FROM wallet_event e " +
+            "LEFT JOIN wallet w ON w.wallet_id = e.wallet_id AND w.version = e.version " +
+            "WHERE e.wallet_id = ? AND e.version >= ? AND e.version <= ? ORDER BY e.version",
+            (ResultSet rs) -> {
+                var counts = CoinCounts.EMPTY;
+                var passed = 0L;
+                while (passed < query.limit() && rs.next()) {
+                    var version = rs.getLong(1);
+                    var tsMillis = rs.getLong(2);
+                    var amount = rs.getLong(3);
+                    var packed = rs.getBytes(5);
+                    var content = rs.getString(6);
+
+                    if (packed != null) {
+                        counts = CoinCounts.fromBytes(packed);
+                    } else if (content != null) {
+                        counts = CoinCounts.parse(content);
+                    } else {
+                        counts = CoinSelection.ofCode((Integer) rs.getObject(7)).pay(counts, amount);
+                    }
+
+                    if (version < start || tsMillis < query.fromMillis() || tsMillis > query.toMillis()) {
+                        continue;
+                    }
+
+                    consumer.accept(
+                        WalletRecord
+                            .builder()
+                            .walletId(walletId)
+                            .version(version)
+                            .tsMillis(tsMillis)
+                            .counts(counts)
+                            .total(rs.getLong(4))
+                            .amount(amount)
+                            .build()
+                    );
+                    passed++;
+                }
+
+                return passed;
+            },
+            walletId,
+            base,
+            to
+        );
+    }
+}
@@ -0,0 +1,45 @@
+package com.jx.test.simplewallet.dao;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+/**
+ * Brings rows written by older versions of the application up to the current storage format on startup. Rows that
+ * are not migrated yet stay readable, so this can run while the application serves traffic.
+ */
+@Slf4j
+@Component
+@Profile(StorageProfiles.DATABASE)
+public class WalletMigration implements ApplicationRunner {
+
+    @Autowired
+    private WalletRecordDaoH2Impl walletRecordDao;
+
+    @Autowired
+    private WalletProperties walletProperties;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        var migration = walletProperties.getMigration();
+
+        if (migration.isLegacyContent()) {
+            walletRecordDao.addCountsColumn();
+
+            var migrated = 0L;
+            for (int batch; (batch = walletRecordDao.migrateLegacyContent(migration.getBatchSize())) > 0;) {
+                migrated += batch;
+            }
+
+            log.info("migrated {} legacy wallet rows to packed counts", migrated);
+        }
+
+        if (migration.isBackfillEvents()) {
+            log.info("backfilled {} wallet events from snapshots", walletRecordDao.backfillEvents());
+        }
+    }
+}
@@ -1,12 +1,60 @@
 package com.jx.test.simplewallet.dao;
 
 import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.List;
 import javax.management.InvalidAttributeValueException;
 
 public interface WalletRecordDao {
     void insert(WalletRecord newRecord) throws InvalidAttributeValueException;
 
+    /**
+     * Inserts several records, in order, as one unit: either all of them are stored or none is. Records of the same
+     * wallet must have consecutive versions.
+     */
+    void insertBatch(List<WalletRecord> newRecords) throws InvalidAttributeValueException;
+
     void init(WalletRecord initRecord) throws InvalidAttributeValueException;
 
-    WalletRecord latest();
+    WalletRecord latest(String walletId);
+
+    /**
+     * The version of the wallet with the latest timestamp not after {@code tsMillis}, or null if the wallet did not
+     * exist yet.
+     */
+    WalletRecord asOf(String walletId, long tsMillis);
+
+    /**
+     * {@link #asOf(String, long)} for many timestamps at once; the result lists the records in the order of
+     * {@code tsMillis}.
+     */
+    default List<WalletRecord> asOf(String walletId, long[] tsMillis) {
+        var records = new ArrayList<WalletRecord>(tsMillis.length);
+        for (var ts : tsMillis) {
+            records.add(asOf(walletId, ts));
+        }
+
+        return records;
+    }
+
+    /**
+     * The version produced by the payment sent with {@code idempotencyKey}, with the amount it paid, or null if no
+     * such payment was stored. Storage that does not keep keys always returns null.
+     */
+    default WalletRecord findByIdempotencyKey(String walletId, String idempotencyKey) {
+        return null;
+    }
+
+    /**
+     * Number of versions stored over all wallets.
+     */
+    long countVersions();
+
+    /**
+     * Like {@link #latest(String)}, but also locks the wallet's latest version until the surrounding transaction ends,
+     * so other lockers wait instead of conflicting. Storage without row locks only reads.
+     */
+    default WalletRecord latestForUpdate(String walletId) {
+        return latest(walletId);
+    }
 }
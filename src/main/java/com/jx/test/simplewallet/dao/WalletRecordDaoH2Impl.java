@@ -1,88 +1,553 @@
 package com.jx.test.simplewallet.dao;
 
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletArchive;
+import com.jx.test.simplewallet.model.WalletEvent;
 import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
 import javax.management.InvalidAttributeValueException;
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import javax.persistence.PersistenceException;
 import javax.transaction.Transactional;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Repository;
 
 @Repository
+@Qualifier("walletStorage")
+@Profile(StorageProfiles.JPA)
 public class WalletRecordDaoH2Impl implements WalletRecordDao {
 
+    static final String LATEST_VERSION =
+        "SELECT MAX(version) FROM (SELECT version FROM wallet_event WHERE wallet_id = ? " +
+        "UNION ALL SELECT version FROM wallet WHERE wallet_id = ?)";
+
     @PersistenceContext
     private EntityManager entityManager;
 
-    @Transactional
+    @Autowired
+    private WalletProperties walletProperties;
+
+    /**
+     * A version or idempotency key already taken fails the insert, which leaves the transaction to be rolled back, so
+     * the checked errors roll back too instead of failing the commit.
+     */
+    @Transactional(rollbackOn = InvalidAttributeValueException.class)
     @Override
     public void insert(WalletRecord newRecord) throws InvalidAttributeValueException {
-        if (newRecord == null || newRecord.content() == null || !newRecord.content().matches("^[1-8](,[1-8])*$")) {
-            throw new InvalidAttributeValueException("invalid record received");
-        }
+        validate(newRecord);
 
         if (newRecord.version() <= 1) {
             throw new InvalidAttributeValueException("invalid version");
         }
 
+        var snapshot = needsSnapshot(newRecord);
+
+        // the event table holds exactly one row per version, so it alone decides who wins a version
         var result = 0;
         try {
             result =
                 entityManager
                     .createNativeQuery(
-                        "INSERT INTO wallet (ts_millis, content, total,version) VALUES (?,?,?, 1 + " +
-                        "(SELECT version FROM wallet WHERE version = ? ORDER BY version DESC LIMIT 1))"
+                        "INSERT INTO wallet_event " +
+                        "(wallet_id, version, ts_millis, amount, total, idempotency_key, coin_selection) " +
+                        "SELECT ?,?,?,?,?,?,? WHERE EXISTS (SELECT * FROM wallet_event WHERE wallet_id = ? AND version = ?)"
                     )
-                    .setParameter(1, newRecord.tsMillis())
-                    .setParameter(2, newRecord.content())
-                    .setParameter(3, newRecord.total())
-                    .setParameter(4, newRecord.version() - 1)
+                    .setParameter(1, newRecord.walletId())
+                    .setParameter(2, newRecord.version())
+                    .setParameter(3, newRecord.tsMillis())
+                    .setParameter(4, snapshot ? 0 : newRecord.amount())
+                    .setParameter(5, newRecord.total())
+                    .setParameter(6, newRecord.idempotencyKey())
+                    .setParameter(7, snapshot ? null : newRecord.coinSelection().code())
+                    .setParameter(8, newRecord.walletId())
+                    .setParameter(9, newRecord.version() - 1)
                     .executeUpdate();
         } catch (PersistenceException e) {
-            throw new InvalidAttributeValueException("version provided invalid");
+            // either the version or the idempotency key is taken; a retry sees which
+            throw new VersionConflictException("version already updated");
         }
 
         if (result == 0) {
-            throw new InvalidAttributeValueException("version already updated");
+            throw new InvalidAttributeValueException("version provided invalid");
+        }
+
+        if (snapshot) {
+            insertSnapshot(newRecord);
         }
     }
 
-    @Transactional
+    @Transactional(rollbackOn = InvalidAttributeValueException.class)
     @Override
-    public void init(WalletRecord newRecord) throws InvalidAttributeValueException {
-        if (newRecord == null || newRecord.content() == null || !newRecord.content().matches("^[1-8](,[1-8])*$")) {
-            throw new InvalidAttributeValueException("invalid record received");
+    public void insertBatch(List<WalletRecord> newRecords) throws InvalidAttributeValueException {
+        for (var newRecord : newRecords) {
+            insert(newRecord);
         }
+    }
+
+    @Transactional(rollbackOn = InvalidAttributeValueException.class)
+    @Override
+    public void init(WalletRecord newRecord) throws InvalidAttributeValueException {
+        validate(newRecord);
 
         if (newRecord.version() != 1) {
             throw new InvalidAttributeValueException("invalid version");
         }
 
-        var result = entityManager
-            .createNativeQuery(
-                "INSERT INTO wallet (version, ts_millis, content, total) SELECT ?,?,?,? " +
-                "WHERE NOT EXISTS (SELECT * FROM wallet);"
-            )
-            .setParameter(1, newRecord.version())
-            .setParameter(2, newRecord.tsMillis())
-            .setParameter(3, newRecord.content())
-            .setParameter(4, newRecord.total())
-            .executeUpdate();
+        var result = 0;
+        try {
+            result =
+                entityManager
+                    .createNativeQuery(
+                        "INSERT INTO wallet_event (wallet_id, version, ts_millis, amount, total) SELECT ?,?,?,0,? " +
+                        "WHERE NOT EXISTS (SELECT * FROM wallet_event WHERE wallet_id = ?);"
+                    )
+                    .setParameter(1, newRecord.walletId())
+                    .setParameter(2, newRecord.version())
+                    .setParameter(3, newRecord.tsMillis())
+                    .setParameter(4, newRecord.total())
+                    .setParameter(5, newRecord.walletId())
+                    .executeUpdate();
+        } catch (PersistenceException e) {
+            throw new InvalidAttributeValueException("wallet already initialised");
+        }
 
         if (result == 0) {
             throw new InvalidAttributeValueException("wallet already initialised");
         }
+
+        insertSnapshot(newRecord);
     }
 
+    /**
+     * Reads the newest version first and rebuilds exactly that version, so a snapshot committed while the rows are read
+     * lies past the events replayed instead of turning up among them.
+     */
     @Override
-    public WalletRecord latest() {
-        try {
-            return (WalletRecord) entityManager
-                .createNativeQuery("SELECT * FROM wallet ORDER BY version DESC LIMIT 1", WalletRecord.class)
-                .getSingleResult();
-        } catch (NoResultException e) {
+    public WalletRecord latest(String walletId) {
+        var version = latestVersion(walletId);
+
+        return version == null ? null : rebuild(walletId, version, null);
+    }
+
+    @Override
+    public WalletRecord asOf(String walletId, long tsMillis) {
+        var version = versionAt(walletId, tsMillis);
+
+        return version == null ? null : rebuild(walletId, version, null);
+    }
+
+    /**
+     * Resolves every timestamp through the {@code ts_millis} index, then rebuilds the versions in ascending order, each
+     * one continuing from the previous one unless a newer snapshot lies in between, so no event is read twice.
+     */
+    @Override
+    public List<WalletRecord> asOf(String walletId, long[] tsMillis) {
+        var order = IntStream
+            .range(0, tsMillis.length)
+            .boxed()
+            .sorted(Comparator.comparingLong(i -> tsMillis[i]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+
+        var records = new WalletRecord[tsMillis.length];
+        WalletRecord previous = null;
+        for (var i : order) {
+            var version = versionAt(walletId, tsMillis[i]);
+            if (version == null) {
+                continue;
+            }
+            if (previous == null || previous.version() != version) {
+                previous = rebuild(walletId, version, previous == null || previous.version() > version ? null : previous);
+            }
+            records[i] = previous;
+        }
+
+        return Arrays.asList(records);
+    }
+
+    @Override
+    public WalletRecord findByIdempotencyKey(String walletId, String idempotencyKey) {
+        var found = entityManager
+            .createNativeQuery(
+                "SELECT e.version, p.total - e.total FROM wallet_event e LEFT JOIN wallet_event p " +
+                "ON p.wallet_id = e.wallet_id AND p.version = e.version - 1 " +
+                "WHERE e.wallet_id = ? AND e.idempotency_key = ?"
+            )
+            .setParameter(1, walletId)
+            .setParameter(2, idempotencyKey)
+            .getResultList();
+        if (found.isEmpty()) {
+            return findArchived(walletId, idempotencyKey);
+        }
+
+        var row = (Object[]) found.get(0);
+        var record = rebuild(walletId, ((Number) row[0]).longValue(), null);
+        if (record == null) {
+            return null;
+        }
+
+        return record
+            .toBuilder()
+            .amount(row[1] == null ? record.amount() : ((Number) row[1]).longValue())
+            .idempotencyKey(idempotencyKey)
+            .build();
+    }
+
+    @Override
+    public long countVersions() {
+        return ((Number) entityManager.createNativeQuery("SELECT COUNT(*) FROM wallet_event").getSingleResult()).longValue();
+    }
+
+    @Transactional(Transactional.TxType.MANDATORY)
+    @Override
+    public WalletRecord latestForUpdate(String walletId) {
+        entityManager
+            .createNativeQuery(
+                "SELECT version FROM wallet_event WHERE wallet_id = ? ORDER BY version DESC LIMIT 1 FOR UPDATE"
+            )
+            .setParameter(1, walletId)
+            .getResultList();
+
+        return latest(walletId);
+    }
+
+    /**
+     * Applies the payments recorded after {@code snapshot}, in version order.
+     */
+    static WalletRecord replay(WalletRecord snapshot, List<WalletEvent> events) {
+        if (events.isEmpty()) {
+            return snapshot;
+        }
+
+        var counts = snapshot.counts();
+        for (var event : events) {
+            counts = event.coinSelection().pay(counts, event.amount());
+        }
+
+        var last = events.get(events.size() - 1);
+
+        return WalletRecord
+            .builder()
+            .walletId(snapshot.walletId())
+            .version(last.version())
+            .tsMillis(last.tsMillis())
+            .counts(counts)
+            .total(counts.total())
+            .amount(last.amount())
+            .coinSelection(last.coinSelection())
+            .build();
+    }
+
+    /**
+     * Adds the packed {@code counts} column to a table created before it existed.
+     */
+    @Transactional
+    public void addCountsColumn() {
+        entityManager.createNativeQuery("ALTER TABLE wallet ADD COLUMN IF NOT EXISTS counts VARBINARY(80)").executeUpdate();
+    }
+
+    /**
+     * Rewrites up to {@code batchSize} rows still holding the legacy comma separated {@code content} into the packed
+     * {@code counts} column.
+     *
+     * @return the number of rows migrated, 0 once nothing is left
+     */
+    @Transactional
+    @SuppressWarnings("unchecked")
+    public int migrateLegacyContent(int batchSize) {
+        var legacyRows = (List<WalletRecord>) entityManager
+            .createNativeQuery(
+                "SELECT * FROM wallet WHERE counts IS NULL AND content IS NOT NULL LIMIT ?",
+                WalletRecord.class
+            )
+            .setParameter(1, batchSize)
+            .getResultList();
+
+        for (var legacyRow : legacyRows) {
+            entityManager
+                .createNativeQuery("UPDATE wallet SET counts = ?, content = NULL WHERE wallet_id = ? AND version = ?")
+                .setParameter(1, legacyRow.counts().toBytes())
+                .setParameter(2, legacyRow.walletId())
+                .setParameter(3, legacyRow.version())
+                .executeUpdate();
+        }
+        entityManager.clear();
+
+        return legacyRows.size();
+    }
+
+    /**
+     * Gives every snapshot written before the event table existed its event row, so new versions can chain onto it.
+     *
+     * @return the number of events created
+     */
+    @Transactional
+    public int backfillEvents() {
+        return entityManager
+            .createNativeQuery(
+                "INSERT INTO wallet_event (wallet_id, version, ts_millis, amount, total) " +
+                "SELECT wallet_id, version, ts_millis, 0, total FROM wallet w WHERE NOT EXISTS " +
+                "(SELECT * FROM wallet_event e WHERE e.wallet_id = w.wallet_id AND e.version = w.version)"
+            )
+            .executeUpdate();
+    }
+
+    /**
+     * Lists up to {@code limit} wallet ids ordered after {@code after}, which may be null to start from the first.
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> walletIds(String after, int limit) {
+        return entityManager
+            .createNativeQuery(
+                "SELECT DISTINCT wallet_id FROM wallet_event WHERE wallet_id > ? ORDER BY wallet_id LIMIT ?"
+            )
+            .setParameter(1, after == null ? "" : after)
+            .setParameter(2, limit)
+            .getResultList();
+    }
+
+    /**
+     * Moves up to {@code batchSize} of the oldest versions of a wallet that fall outside the retention limits into
+     * {@code wallet_archive}. A version is retained while it is among the last {@code keepVersions} versions or was
+     * written at or after {@code keepSinceMillis}; pass 0 versions or {@link Long#MAX_VALUE} millis to not retain by
+     * that limit.
+     * Archiving stops at the last snapshot before the first retained version, so the latest record can still be rebuilt
+     * and new versions still chain onto the newest event, which is never archived.
+     *
+     * @return the number of versions archived, 0 once nothing is left
+     */
+    @Transactional
+    @SuppressWarnings("unchecked")
+    public int archiveHistory(String walletId, int keepVersions, long keepSinceMillis, int batchSize) {
+        var range = (Object[]) entityManager
+            .createNativeQuery("SELECT MIN(version), MAX(version) FROM wallet_event WHERE wallet_id = ?")
+            .setParameter(1, walletId)
+            .getSingleResult();
+        if (range[0] == null) {
+            return 0;
+        }
+        var oldest = ((Number) range[0]).longValue();
+        var newest = ((Number) range[1]).longValue();
+
+        var keepFrom = keepVersions > 0 ? newest - keepVersions + 1 : Long.MAX_VALUE;
+        var keptByTime = (Number) entityManager
+            .createNativeQuery("SELECT MIN(version) FROM wallet_event WHERE wallet_id = ? AND ts_millis >= ?")
+            .setParameter(1, walletId)
+            .setParameter(2, keepSinceMillis)
+            .getSingleResult();
+        if (keptByTime != null) {
+            keepFrom = Math.min(keepFrom, keptByTime.longValue());
+        }
+        keepFrom = Math.min(keepFrom, newest);
+
+        var base = (Number) entityManager
+            .createNativeQuery("SELECT MAX(version) FROM wallet WHERE wallet_id = ? AND version <= ?")
+            .setParameter(1, walletId)
+            .setParameter(2, keepFrom)
+            .getSingleResult();
+        if (base == null || base.longValue() <= oldest) {
+            return 0;
+        }
+        var until = Math.min(base.longValue(), oldest + batchSize);
+
+        var events = (List<WalletEvent>) entityManager
+            .createNativeQuery(
+                "SELECT * FROM wallet_event WHERE wallet_id = ? AND version < ? ORDER BY version",
+                WalletEvent.class
+            )
+            .setParameter(1, walletId)
+            .setParameter(2, until)
+            .getResultList();
+        var snapshots = (List<WalletRecord>) entityManager
+            .createNativeQuery("SELECT * FROM wallet WHERE wallet_id = ? AND version < ?", WalletRecord.class)
+            .setParameter(1, walletId)
+            .setParameter(2, until)
+            .getResultList();
+
+        var snapshotCounts = new HashMap<Long, CoinCounts>();
+        for (var snapshot : snapshots) {
+            snapshotCounts.put(snapshot.version(), snapshot.counts());
+        }
+        entityManager.persist(WalletArchive.of(walletId, events, snapshotCounts));
+        entityManager.flush();
+        entityManager
+            .createNativeQuery(
+                "INSERT INTO wallet_archive_key (wallet_id, idempotency_key, version) " +
+                "SELECT wallet_id, idempotency_key, version FROM wallet_event " +
+                "WHERE wallet_id = ? AND version < ? AND idempotency_key IS NOT NULL"
+            )
+            .setParameter(1, walletId)
+            .setParameter(2, until)
+            .executeUpdate();
+
+        for (var table : new String[] { "wallet", "wallet_event" }) {
+            entityManager
+                .createNativeQuery("DELETE FROM " + table + " WHERE wallet_id = ? AND version < ?")
+                .setParameter(1, walletId)
+                .setParameter(2, until)
+                .executeUpdate();
+        }
+        entityManager.clear();
+
+        return events.size();
+    }
+
+    /**
+     * Snapshots count too, since wallets written before the event table only have those.
+     */
+    /**
+     * Finds a payment whose event was already archived, so a late retry of it is not paid again.
+     */
+    @SuppressWarnings("unchecked")
+    WalletRecord findArchived(String walletId, String idempotencyKey) {
+        var versions = entityManager
+            .createNativeQuery("SELECT version FROM wallet_archive_key WHERE wallet_id = ? AND idempotency_key = ?")
+            .setParameter(1, walletId)
+            .setParameter(2, idempotencyKey)
+            .getResultList();
+        if (versions.isEmpty()) {
             return null;
         }
+
+        // runs are cut by size, so walk back from the run holding the version to the one with a snapshot before it
+        var version = ((Number) versions.get(0)).longValue();
+        var runs = new ArrayDeque<List<WalletRecord>>();
+        for (var before = Long.MAX_VALUE;;) {
+            var archives = (List<WalletArchive>) entityManager
+                .createNativeQuery(
+                    "SELECT * FROM wallet_archive WHERE wallet_id = ? AND from_version <= ? AND version < ? " +
+                    "ORDER BY version DESC LIMIT 1",
+                    WalletArchive.class
+                )
+                .setParameter(1, walletId)
+                .setParameter(2, version)
+                .setParameter(3, before)
+                .getResultList();
+            if (archives.isEmpty()) {
+                break;
+            }
+
+            var records = archives.get(0).records();
+            runs.addFirst(records);
+            if (records.stream().anyMatch(record -> record.version() <= version && record.counts() != null)) {
+                break;
+            }
+            before = archives.get(0).fromVersion();
+        }
+
+        var records = new ArrayList<WalletRecord>();
+        runs.forEach(records::addAll);
+
+        WalletRecord previous = null;
+        CoinCounts counts = null;
+        for (var record : records) {
+            counts = record.counts() != null ? record.counts() : record.coinSelection().pay(counts, record.amount());
+            if (record.version() == version) {
+                return record
+                    .toBuilder()
+                    .counts(counts)
+                    .amount(previous == null ? record.amount() : previous.total() - record.total())
+                    .build();
+            }
+            previous = record;
+        }
+
+        return null;
+    }
+
+    Long latestVersion(String walletId) {
+        var version = (Number) entityManager
+            .createNativeQuery(LATEST_VERSION)
+            .setParameter(1, walletId)
+            .setParameter(2, walletId)
+            .getSingleResult();
+
+        return version == null ? null : version.longValue();
+    }
+
+    Long versionAt(String walletId, long tsMillis) {
+        var versions = entityManager
+            .createNativeQuery(
+                "SELECT version FROM wallet_event WHERE wallet_id = ? AND ts_millis <= ? " +
+                "ORDER BY ts_millis DESC, version DESC LIMIT 1"
+            )
+            .setParameter(1, walletId)
+            .setParameter(2, tsMillis)
+            .getResultList();
+
+        return versions.isEmpty() ? null : ((Number) versions.get(0)).longValue();
+    }
+
+    /**
+     * Rebuilds {@code version} from the last snapshot before it, or from {@code from} when no snapshot was written
+     * between the two.
+     */
+    @SuppressWarnings("unchecked")
+    WalletRecord rebuild(String walletId, long version, WalletRecord from) {
+        var snapshots = (List<WalletRecord>) entityManager
+            .createNativeQuery(
+                "SELECT * FROM wallet WHERE wallet_id = ? AND version <= ? AND version > ? ORDER BY version DESC LIMIT 1",
+                WalletRecord.class
+            )
+            .setParameter(1, walletId)
+            .setParameter(2, version)
+            .setParameter(3, from == null ? 0 : from.version())
+            .getResultList();
+        var base = snapshots.isEmpty() ? from : snapshots.get(0);
+        if (base == null) {
+            return null;
+        }
+
+        var events = (List<WalletEvent>) entityManager
+            .createNativeQuery(
+                "SELECT * FROM wallet_event WHERE wallet_id = ? AND version > ? AND version <= ? ORDER BY version",
+                WalletEvent.class
+            )
+            .setParameter(1, walletId)
+            .setParameter(2, base.version())
+            .setParameter(3, version)
+            .getResultList();
+
+        return replay(base, events);
+    }
+
+    boolean needsSnapshot(WalletRecord newRecord) {
+        return newRecord.amount() <= 0 || newRecord.version() % walletProperties.getSnapshotInterval() == 0;
+    }
+
+    void insertSnapshot(WalletRecord newRecord) {
+        entityManager
+            .createNativeQuery("INSERT INTO wallet (wallet_id, version, ts_millis, counts, total) VALUES (?,?,?,?,?)")
+            .setParameter(1, newRecord.walletId())
+            .setParameter(2, newRecord.version())
+            .setParameter(3, newRecord.tsMillis())
+            .setParameter(4, newRecord.counts().toBytes())
+            .setParameter(5, newRecord.total())
+            .executeUpdate();
+    }
+
+    static void validate(WalletRecord newRecord) throws InvalidAttributeValueException {
+        try {
+            if (newRecord == null || newRecord.counts() == null) {
+                throw new InvalidAttributeValueException("invalid record received");
+            }
+        } catch (IllegalArgumentException e) {
+            throw new InvalidAttributeValueException("invalid record received");
+        }
+
+        if (newRecord.walletId() == null || !newRecord.walletId().matches(WalletRecord.WALLET_ID_PATTERN)) {
+            throw new InvalidAttributeValueException("invalid wallet id");
+        }
     }
 }
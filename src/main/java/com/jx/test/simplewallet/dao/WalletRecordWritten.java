@@ -0,0 +1,22 @@
+package com.jx.test.simplewallet.dao;
+
+import com.jx.test.simplewallet.model.WalletRecord;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * Published for every version stored through {@link CachingWalletRecordDao}, from inside the writing transaction if
+ * there is one; listen with {@code @TransactionalEventListener} to only see committed versions.
+ */
+@Accessors(fluent = true)
+@Getter
+@ToString
+public class WalletRecordWritten {
+
+    private final WalletRecord record;
+
+    public WalletRecordWritten(WalletRecord record) {
+        this.record = record;
+    }
+}
@@ -0,0 +1,75 @@
+package com.jx.test.simplewallet.dao;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import java.time.Duration;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves wallet history outside the retention limits to the archive table. Every batch is its own short transaction
+ * on versions payments no longer read or write, so it runs alongside live traffic.
+ */
+@Slf4j
+@Component
+@Profile(StorageProfiles.DATABASE)
+@ConditionalOnProperty(name = "wallet.retention.enabled", havingValue = "true")
+public class WalletRetention {
+
+    private static final int WALLETS_PER_PAGE = 100;
+
+    @Autowired
+    private WalletRecordDaoH2Impl walletRecordDao;
+
+    @Autowired
+    private WalletProperties walletProperties;
+
+    @Scheduled(
+        initialDelayString = "${wallet.retention.interval-millis:60000}",
+        fixedDelayString = "${wallet.retention.interval-millis:60000}"
+    )
+    public void compact() {
+        var retention = walletProperties.getRetention();
+        if (retention.getKeepVersions() <= 0 && retention.getKeepDays() <= 0) {
+            log.warn("wallet retention enabled without keep-versions or keep-days, nothing archived");
+            return;
+        }
+
+        var keepSinceMillis = retention.getKeepDays() > 0
+            ? System.currentTimeMillis() - Duration.ofDays(retention.getKeepDays()).toMillis()
+            : Long.MAX_VALUE;
+
+        var archived = 0L;
+        var walletIds = walletRecordDao.walletIds(null, WALLETS_PER_PAGE);
+        while (!walletIds.isEmpty()) {
+            for (var walletId : walletIds) {
+                archived += archive(walletId, retention, keepSinceMillis);
+            }
+            walletIds = walletRecordDao.walletIds(walletIds.get(walletIds.size() - 1), WALLETS_PER_PAGE);
+        }
+
+        if (archived > 0) {
+            log.info("archived {} wallet versions", archived);
+        }
+    }
+
+    private long archive(String walletId, WalletProperties.Retention retention, long keepSinceMillis) {
+        var archived = 0L;
+        int batch;
+        do {
+            batch =
+                walletRecordDao.archiveHistory(
+                    walletId,
+                    retention.getKeepVersions(),
+                    keepSinceMillis,
+                    retention.getBatchSize()
+                );
+            archived += batch;
+        } while (batch > 0);
+
+        return archived;
+    }
+}
@@ -1,14 +1,23 @@
 package com.jx.test.simplewallet.exception;
 
+import com.jx.test.simplewallet.model.CoinCounts;
 import lombok.Getter;
 
 @Getter
 public class InvalidPaymentException extends Exception {
 
-    private final int[] leftCoins;
+    private final CoinCounts leftCounts;
 
-    public InvalidPaymentException(String message, int[] leftCoins) {
+    public InvalidPaymentException(String message, CoinCounts leftCounts) {
         super(message);
-        this.leftCoins = leftCoins;
+        this.leftCounts = leftCounts;
+    }
+
+    public InvalidPaymentException(String message, int[] leftCoins) {
+        this(message, CoinCounts.of(leftCoins));
+    }
+
+    public int[] getLeftCoins() {
+        return leftCounts.toArray();
     }
 }
@@ -0,0 +1,19 @@
+package com.jx.test.simplewallet.exception;
+
+import java.util.concurrent.RejectedExecutionException;
+import lombok.Getter;
+
+/**
+ * A request was shed because its wallet or the whole service is over its admission limits; it can be repeated after
+ * {@link #getRetryAfterSeconds()}.
+ */
+@Getter
+public class TooManyRequestsException extends RejectedExecutionException {
+
+    private final long retryAfterSeconds;
+
+    public TooManyRequestsException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+}
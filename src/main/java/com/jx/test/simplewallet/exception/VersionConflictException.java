@@ -0,0 +1,13 @@
+package com.jx.test.simplewallet.exception;
+
+import javax.management.InvalidAttributeValueException;
+
+/**
+ * Another writer stored the version first; the operation can be retried against the new latest version.
+ */
+public class VersionConflictException extends InvalidAttributeValueException {
+
+    public VersionConflictException(String message) {
+        super(message);
+    }
+}
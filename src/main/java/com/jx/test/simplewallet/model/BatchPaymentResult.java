@@ -0,0 +1,22 @@
+package com.jx.test.simplewallet.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class BatchPaymentResult {
+
+    public enum Status {
+        PAID,
+        INSUFFICIENT_FUNDS,
+        INVALID_AMOUNT,
+    }
+
+    /**
+     * Outcome of each amount, in request order.
+     */
+    private final Status[] statuses;
+
+    private final int[] leftCoins;
+}
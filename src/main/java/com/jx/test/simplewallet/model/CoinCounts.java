@@ -0,0 +1,355 @@
+package com.jx.test.simplewallet.model;
+
+import java.util.Arrays;
+
+/**
+ * Immutable wallet contents kept as one counter per denomination, so operations cost O(denominations) no matter how
+ * many coins the wallet holds. Running sums of the coin counts and values let a payment locate the coin it stops at
+ * with a binary search instead of a walk.
+ */
+public final class CoinCounts {
+
+    public static final int MAX_DENOMINATION = 8;
+
+    /**
+     * Paying largest coin first with the last coin split pays with the fewest coins if coins could be split; the fewest
+     * whole coins differ from that by at most this many coins in total, the proximity bound of an integer program with
+     * one constraint and coefficients up to {@code MAX_DENOMINATION}.
+     */
+    static final int BEST_FIT_RESERVE = 2 * MAX_DENOMINATION + 1;
+
+    public static final CoinCounts EMPTY = new CoinCounts(new long[MAX_DENOMINATION]);
+
+    // counts[d - 1] holds the number of coins of denomination d
+    private final long[] counts;
+
+    // sizeUpTo[d] and totalUpTo[d] hold the number and the value of the coins of denominations 1..d
+    private final long[] sizeUpTo;
+    private final long[] totalUpTo;
+
+    private CoinCounts(long[] counts) {
+        this.counts = counts;
+        this.sizeUpTo = new long[MAX_DENOMINATION + 1];
+        this.totalUpTo = new long[MAX_DENOMINATION + 1];
+        for (var d = 1; d <= MAX_DENOMINATION; d++) {
+            sizeUpTo[d] = sizeUpTo[d - 1] + counts[d - 1];
+            totalUpTo[d] = totalUpTo[d - 1] + counts[d - 1] * d;
+        }
+    }
+
+    public static CoinCounts of(int... coins) {
+        var counts = new long[MAX_DENOMINATION];
+        for (var coin : coins) {
+            if (coin < 1 || coin > MAX_DENOMINATION) {
+                throw new IllegalArgumentException("invalid coin " + coin);
+            }
+            counts[coin - 1]++;
+        }
+
+        return new CoinCounts(counts);
+    }
+
+    public static CoinCounts ofCounts(long... counts) {
+        if (counts.length != MAX_DENOMINATION) {
+            throw new IllegalArgumentException("expected " + MAX_DENOMINATION + " counters");
+        }
+
+        for (var count : counts) {
+            if (count < 0) {
+                throw new IllegalArgumentException("negative count");
+            }
+        }
+
+        return new CoinCounts(counts.clone());
+    }
+
+    /**
+     * Parses the legacy comma separated {@code content} format, e.g. {@code "1,1,3"}.
+     */
+    public static CoinCounts parse(String content) {
+        if (content == null || !content.matches("^[1-8](,[1-8])*$")) {
+            throw new IllegalArgumentException("invalid content");
+        }
+
+        var counts = new long[MAX_DENOMINATION];
+        for (var i = 0; i < content.length(); i += 2) {
+            counts[content.charAt(i) - '1']++;
+        }
+
+        return new CoinCounts(counts);
+    }
+
+    /**
+     * Decodes the packed form written by {@link #toBytes()}.
+     */
+    public static CoinCounts fromBytes(byte[] bytes) {
+        var counts = new long[MAX_DENOMINATION];
+        var pos = 0;
+        for (var d = 0; d < MAX_DENOMINATION; d++) {
+            var value = 0L;
+            var shift = 0;
+            while (true) {
+                if (pos >= bytes.length || shift > 63) {
+                    throw new IllegalArgumentException("truncated counts");
+                }
+                var b = bytes[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+            }
+            counts[d] = value;
+        }
+
+        if (pos != bytes.length) {
+            throw new IllegalArgumentException("trailing bytes after counts");
+        }
+
+        return ofCounts(counts);
+    }
+
+    /**
+     * Packs the counters as eight unsigned varints, which is 8 bytes for a wallet with fewer than 128 coins of each
+     * denomination.
+     */
+    public byte[] toBytes() {
+        var out = new byte[MAX_DENOMINATION * 10];
+        var pos = 0;
+        for (var count : counts) {
+            var v = count;
+            while ((v & ~0x7FL) != 0) {
+                out[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out[pos++] = (byte) v;
+        }
+
+        return Arrays.copyOf(out, pos);
+    }
+
+    public long count(int denomination) {
+        return counts[denomination - 1];
+    }
+
+    public long total() {
+        return totalUpTo[MAX_DENOMINATION];
+    }
+
+    public long size() {
+        return sizeUpTo[MAX_DENOMINATION];
+    }
+
+    /**
+     * Returns the coin at {@code index} of the sorted coin list.
+     */
+    public int coinAt(long index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("no coin at " + index);
+        }
+
+        return firstAbove(sizeUpTo, index);
+    }
+
+    /**
+     * Number of coins, smallest first, that paying {@code amount} consumes, including the one split for change.
+     */
+    public long coinsToPay(long amount) {
+        checkAmount(amount);
+
+        var d = firstAbove(totalUpTo, amount - 1);
+
+        return sizeUpTo[d - 1] + (amount - totalUpTo[d - 1] + d - 1) / d;
+    }
+
+    /**
+     * Pays {@code amount} smallest coin first; the last coin touched is split and its change kept as a new coin.
+     */
+    public CoinCounts pay(long amount) {
+        checkAmount(amount);
+
+        // every denomination below d is spent in full, d covers the rest
+        var d = firstAbove(totalUpTo, amount - 1);
+        var amountToPay = amount - totalUpTo[d - 1];
+        var used = (amountToPay + d - 1) / d;
+        var change = used * d - amountToPay;
+
+        var left = counts.clone();
+        Arrays.fill(left, 0, d - 1, 0);
+        left[d - 1] -= used;
+        if (change > 0) {
+            left[(int) change - 1]++;
+        }
+
+        return new CoinCounts(left);
+    }
+
+    /**
+     * Pays {@code amount} largest coin first; like {@link #pay(long)}, the last coin touched is split and its change
+     * kept as a new coin.
+     */
+    public CoinCounts payLargestFirst(long amount) {
+        checkAmount(amount);
+
+        // every denomination above d is spent in full, d covers the rest
+        var d = MAX_DENOMINATION;
+        while (total() - totalUpTo[d - 1] < amount) {
+            d--;
+        }
+        var amountToPay = amount - (total() - totalUpTo[d]);
+        var used = (amountToPay + d - 1) / d;
+        var change = used * d - amountToPay;
+
+        var left = counts.clone();
+        Arrays.fill(left, d, MAX_DENOMINATION, 0);
+        left[d - 1] -= used;
+        if (change > 0) {
+            left[(int) change - 1]++;
+        }
+
+        return new CoinCounts(left);
+    }
+
+    /**
+     * Pays {@code amount} with the fewest coins that make it up exactly. If no coins do, it pays the smallest sum above
+     * {@code amount} that some coins make up, with the fewest of those coins, and keeps the change as a new coin.
+     *
+     * <p>All but {@link #BEST_FIT_RESERVE} of each denomination that paying largest coin first would take are taken
+     * outright; what remains of the amount is a few hundred at most and is searched exactly.
+     */
+    public CoinCounts payBestFit(long amount) {
+        checkAmount(amount);
+
+        var used = new long[MAX_DENOMINATION];
+        var rest = amount;
+        var fractional = amount;
+        for (var d = MAX_DENOMINATION; d >= 1 && fractional > 0; d--) {
+            var taken = Math.min(counts[d - 1], fractional / d);
+            fractional = taken == counts[d - 1] ? fractional - taken * d : 0;
+            used[d - 1] = Math.max(0, taken - BEST_FIT_RESERVE);
+            rest -= used[d - 1] * d;
+        }
+
+        // fewest[v] is the fewest coins not yet used that make up v, over the sums up to the most worth paying;
+        // coins are added in bundles of 1, 2, 4, ... of a denomination, each either taken or not
+        var limit = (int) rest + MAX_DENOMINATION - 1;
+        var fewest = new int[limit + 1];
+        Arrays.fill(fewest, 1, limit + 1, Integer.MAX_VALUE);
+        var bundleDenomination = new int[MAX_DENOMINATION * Integer.SIZE];
+        var bundleSize = new int[bundleDenomination.length];
+        var bundleTaken = new boolean[bundleDenomination.length][];
+        var bundles = 0;
+        for (var d = 1; d <= MAX_DENOMINATION; d++) {
+            var available = (int) Math.min(counts[d - 1] - used[d - 1], limit / d);
+            for (var size = 1; available > 0; size <<= 1) {
+                var n = Math.min(size, available);
+                available -= n;
+
+                var taken = new boolean[limit + 1];
+                for (var v = limit; v >= n * d; v--) {
+                    var without = fewest[v - n * d];
+                    if (without != Integer.MAX_VALUE && without + n < fewest[v]) {
+                        fewest[v] = without + n;
+                        taken[v] = true;
+                    }
+                }
+                bundleDenomination[bundles] = d;
+                bundleSize[bundles] = n;
+                bundleTaken[bundles++] = taken;
+            }
+        }
+
+        // the whole wallet covers the amount, and dropping its coins while it still does overpays by less than a coin
+        var paid = (int) rest;
+        while (fewest[paid] == Integer.MAX_VALUE) {
+            paid++;
+        }
+
+        var left = counts.clone();
+        for (var d = 1; d <= MAX_DENOMINATION; d++) {
+            left[d - 1] -= used[d - 1];
+        }
+        for (int i = bundles - 1, v = paid; i >= 0; i--) {
+            if (bundleTaken[i][v]) {
+                left[bundleDenomination[i] - 1] -= bundleSize[i];
+                v -= bundleSize[i] * bundleDenomination[i];
+            }
+        }
+        if (paid > rest) {
+            left[(int) (paid - rest) - 1]++;
+        }
+
+        return new CoinCounts(left);
+    }
+
+    /**
+     * Adds the coins of {@code deposit}: merging two sorted coin lists is one addition per denomination.
+     */
+    public CoinCounts plus(CoinCounts deposit) {
+        var merged = counts.clone();
+        for (var d = 0; d < MAX_DENOMINATION; d++) {
+            merged[d] = Math.addExact(merged[d], deposit.counts[d]);
+        }
+
+        return new CoinCounts(merged);
+    }
+
+    /**
+     * Expands the counters into the sorted list of coins.
+     */
+    public int[] toArray() {
+        var size = size();
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("too many coins to list");
+        }
+
+        var coins = new int[(int) size];
+        var from = 0;
+        for (var d = 1; d <= MAX_DENOMINATION; d++) {
+            var to = from + (int) counts[d - 1];
+            Arrays.fill(coins, from, to, d);
+            from = to;
+        }
+
+        return coins;
+    }
+
+    private void checkAmount(long amount) {
+        if (amount <= 0 || amount > total()) {
+            throw new IllegalArgumentException("invalid amount");
+        }
+    }
+
+    /**
+     * Binary search for the smallest denomination d with {@code upTo[d] > value}; the caller guarantees one exists.
+     */
+    private static int firstAbove(long[] upTo, long value) {
+        var low = 1;
+        var high = MAX_DENOMINATION;
+        while (low < high) {
+            var mid = (low + high) >>> 1;
+            if (upTo[mid] > value) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return low;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CoinCounts && Arrays.equals(counts, ((CoinCounts) o).counts);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(counts);
+    }
+
+    @Override
+    public String toString() {
+        return "CoinCounts" + Arrays.toString(counts);
+    }
+}
@@ -0,0 +1,18 @@
+package com.jx.test.simplewallet.model;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+
+@Converter
+public class CoinCountsConverter implements AttributeConverter<CoinCounts, byte[]> {
+
+    @Override
+    public byte[] convertToDatabaseColumn(CoinCounts counts) {
+        return counts == null ? null : counts.toBytes();
+    }
+
+    @Override
+    public CoinCounts convertToEntityAttribute(byte[] bytes) {
+        return bytes == null ? null : CoinCounts.fromBytes(bytes);
+    }
+}
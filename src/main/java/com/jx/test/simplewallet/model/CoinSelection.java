@@ -0,0 +1,76 @@
+package com.jx.test.simplewallet.model;
+
+/**
+ * Which coins a payment spends. The choice decides how many coins wallets accumulate over time, and with it how large
+ * their stored contents get. Every payment event records the selection it was made with, so stored versions are
+ * rebuilt the same way after a deployment switched to another one.
+ */
+public enum CoinSelection {
+    /**
+     * Spend the smallest coins first and split the last one, see {@link CoinCounts#pay(long)}.
+     */
+    SMALLEST_FIRST(0) {
+        @Override
+        public CoinCounts pay(CoinCounts coins, long amount) {
+            return coins.pay(amount);
+        }
+    },
+
+    /**
+     * Spend the largest coins first and split the last one, see {@link CoinCounts#payLargestFirst(long)}.
+     */
+    LARGEST_FIRST(1) {
+        @Override
+        public CoinCounts pay(CoinCounts coins, long amount) {
+            return coins.payLargestFirst(amount);
+        }
+    },
+
+    /**
+     * Pay exactly with as few coins as possible, or overpay as little as possible and keep the change when that is
+     * impossible, see {@link CoinCounts#payBestFit(long)}.
+     */
+    BEST_FIT(2) {
+        @Override
+        public CoinCounts pay(CoinCounts coins, long amount) {
+            return coins.payBestFit(amount);
+        }
+    };
+
+    private final int code;
+
+    CoinSelection(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Stable number stored with each payment event.
+     */
+    public int code() {
+        return code;
+    }
+
+    /**
+     * The coins left after paying {@code amount} out of {@code coins}.
+     *
+     * @throws IllegalArgumentException if {@code amount} is not positive or more than the coins are worth
+     */
+    public abstract CoinCounts pay(CoinCounts coins, long amount);
+
+    /**
+     * The selection stored as {@code code}; events written before selections were stored have none and were paid
+     * smallest first.
+     */
+    public static CoinSelection ofCode(Integer code) {
+        if (code == null) {
+            return SMALLEST_FIRST;
+        }
+        for (var selection : values()) {
+            if (selection.code == code) {
+                return selection;
+            }
+        }
+
+        throw new IllegalArgumentException("unknown coin selection " + code);
+    }
+}
@@ -0,0 +1,18 @@
+package com.jx.test.simplewallet.model;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+
+@Converter
+public class CoinSelectionConverter implements AttributeConverter<CoinSelection, Integer> {
+
+    @Override
+    public Integer convertToDatabaseColumn(CoinSelection selection) {
+        return selection == null ? null : selection.code();
+    }
+
+    @Override
+    public CoinSelection convertToEntityAttribute(Integer code) {
+        return CoinSelection.ofCode(code);
+    }
+}
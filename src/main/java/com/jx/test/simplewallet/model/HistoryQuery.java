@@ -0,0 +1,35 @@
+package com.jx.test.simplewallet.model;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * Selects the versions of a wallet to read, oldest first. Paging is keyed on the version: the next page starts
+ * {@link #afterVersion} the last version returned.
+ */
+@Accessors(fluent = true)
+@Getter
+@ToString
+@Builder
+public class HistoryQuery {
+
+    /**
+     * Only versions greater than this are returned.
+     */
+    @Builder.Default
+    private final long afterVersion = 0;
+
+    @Builder.Default
+    private final long toVersion = Long.MAX_VALUE;
+
+    @Builder.Default
+    private final long fromMillis = Long.MIN_VALUE;
+
+    @Builder.Default
+    private final long toMillis = Long.MAX_VALUE;
+
+    @Builder.Default
+    private final long limit = Long.MAX_VALUE;
+}
@@ -0,0 +1,123 @@
+package com.jx.test.simplewallet.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * A run of old wallet versions moved out of {@link WalletEvent} and {@link WalletRecord} by the retention job, kept as
+ * one deflated block per run. {@code version} is the newest version of the run.
+ */
+@Entity
+@Table(name = "wallet_archive")
+@IdClass(WalletRecordId.class)
+@Accessors(fluent = true)
+@Getter
+@ToString(exclude = "data")
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class WalletArchive {
+
+    @Id
+    private String walletId;
+
+    @Id
+    private long version;
+
+    private long fromVersion;
+
+    private long tsMillis;
+
+    @Lob
+    private byte[] data;
+
+    /**
+     * Packs {@code events} in version order together with the contents of those versions that had a snapshot.
+     */
+    public static WalletArchive of(String walletId, List<WalletEvent> events, Map<Long, CoinCounts> snapshots) {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(events.size());
+            for (var event : events) {
+                out.writeLong(event.version());
+                out.writeLong(event.tsMillis());
+                out.writeLong(event.amount());
+                out.writeLong(event.total());
+                out.writeBoolean(event.idempotencyKey() != null);
+                if (event.idempotencyKey() != null) {
+                    out.writeUTF(event.idempotencyKey());
+                }
+                out.writeByte(event.coinSelection().code());
+
+                var counts = snapshots.get(event.version());
+                if (counts == null) {
+                    out.writeShort(0);
+                } else {
+                    var packed = counts.toBytes();
+                    out.writeShort(packed.length);
+                    out.write(packed);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        var last = events.get(events.size() - 1);
+
+        return new WalletArchive(walletId, last.version(), events.get(0).version(), last.tsMillis(), bytes.toByteArray());
+    }
+
+    /**
+     * Unpacks the archived versions; records of versions without a snapshot have no counts.
+     */
+    public List<WalletRecord> records() {
+        try (var in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            var size = in.readInt();
+            var records = new ArrayList<WalletRecord>(size);
+            for (var i = 0; i < size; i++) {
+                var record = WalletRecord
+                    .builder()
+                    .walletId(walletId)
+                    .version(in.readLong())
+                    .tsMillis(in.readLong())
+                    .amount(in.readLong())
+                    .total(in.readLong());
+                if (in.readBoolean()) {
+                    record.idempotencyKey(in.readUTF());
+                }
+                record.coinSelection(CoinSelection.ofCode((int) in.readByte()));
+
+                var packed = new byte[in.readUnsignedShort()];
+                if (packed.length > 0) {
+                    in.readFully(packed);
+                    record.counts(CoinCounts.fromBytes(packed));
+                }
+                records.add(record.build());
+            }
+
+            return records;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
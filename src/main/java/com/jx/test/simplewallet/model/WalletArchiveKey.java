@@ -0,0 +1,38 @@
+package com.jx.test.simplewallet.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * The idempotency key of a payment whose {@link WalletEvent} was moved into a {@link WalletArchive}, so a late retry of
+ * the payment still finds it without unpacking the archive.
+ */
+@Entity
+@Table(
+    name = "wallet_archive_key",
+    indexes = @Index(name = "wallet_archive_key_idempotency", columnList = "walletId, idempotencyKey", unique = true)
+)
+@IdClass(WalletRecordId.class)
+@Accessors(fluent = true)
+@Getter
+@ToString
+@AllArgsConstructor
+@NoArgsConstructor
+public class WalletArchiveKey {
+
+    @Id
+    private String walletId;
+
+    @Id
+    private long version;
+
+    private String idempotencyKey;
+}
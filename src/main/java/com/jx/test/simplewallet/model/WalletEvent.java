@@ -0,0 +1,66 @@
+package com.jx.test.simplewallet.model;
+
+import javax.persistence.Convert;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+import lombok.experimental.Accessors;
+
+/**
+ * One row per wallet version. Payments only append an event; the full contents are kept in {@link WalletRecord}
+ * snapshots written every few versions and rebuilt by replaying the events after the last snapshot.
+ */
+@Entity
+@Table(
+    name = "wallet_event",
+    indexes = {
+        @Index(name = "wallet_event_ts", columnList = "walletId, tsMillis"),
+        @Index(name = "wallet_event_idempotency", columnList = "walletId, idempotencyKey", unique = true),
+    }
+)
+@IdClass(WalletRecordId.class)
+@Accessors(fluent = true)
+@Getter
+@ToString
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class WalletEvent {
+
+    @Id
+    private String walletId;
+
+    @Id
+    private long version;
+
+    private long tsMillis;
+
+    /**
+     * Amount paid to reach this version, 0 when the version has its own snapshot instead.
+     */
+    private long amount;
+
+    private long total;
+
+    /**
+     * Key the client sent with the payment that produced this version, if any.
+     */
+    private String idempotencyKey;
+
+    /**
+     * Coins the payment spent, so replaying {@link #amount} gives the same contents it did.
+     */
+    @Convert(converter = CoinSelectionConverter.class)
+    private CoinSelection coinSelection;
+
+    public CoinSelection coinSelection() {
+        return coinSelection == null ? CoinSelection.SMALLEST_FIRST : coinSelection;
+    }
+}
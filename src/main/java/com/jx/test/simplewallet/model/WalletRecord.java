@@ -1,8 +1,11 @@
 package com.jx.test.simplewallet.model;
 
+import javax.persistence.Convert;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.IdClass;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -12,18 +15,65 @@ import lombok.experimental.Accessors;
 
 @Entity
 @Table(name = "wallet")
+@IdClass(WalletRecordId.class)
 @Accessors(fluent = true)
 @Getter
 @ToString
-@Builder
+@Builder(toBuilder = true)
 @AllArgsConstructor
 @NoArgsConstructor
 public class WalletRecord {
 
+    public static final String WALLET_ID_PATTERN = "^[A-Za-z0-9_-]{1,64}$";
+
+    public static final String IDEMPOTENCY_KEY_PATTERN = "^[A-Za-z0-9_-]{1,64}$";
+
+    @Id
+    private String walletId;
+
     @Id
     private long version;
 
     private long tsMillis;
+
+    /**
+     * Legacy comma separated coin list; only rows written before {@link #counts} existed carry it.
+     */
     private String content;
+
+    @Convert(converter = CoinCountsConverter.class)
+    private CoinCounts counts;
+
     private long total;
+
+    /**
+     * Amount paid to reach this version from the previous one, 0 if the version was not produced by a payment.
+     */
+    @Transient
+    private long amount;
+
+    /**
+     * Key of the payment that produced this version, stored with its event so a retried payment finds it again.
+     */
+    @Transient
+    private String idempotencyKey;
+
+    /**
+     * Coins the payment that produced this version spent, stored with its event.
+     */
+    @Transient
+    private CoinSelection coinSelection;
+
+    /**
+     * Wallet contents, decoded from the legacy {@code content} column when the row has not been migrated yet.
+     *
+     * @throws IllegalArgumentException if the legacy content is malformed
+     */
+    public CoinCounts counts() {
+        return counts == null && content != null ? CoinCounts.parse(content) : counts;
+    }
+
+    public CoinSelection coinSelection() {
+        return coinSelection == null ? CoinSelection.SMALLEST_FIRST : coinSelection;
+    }
 }
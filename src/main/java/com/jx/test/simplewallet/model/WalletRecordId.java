@@ -0,0 +1,17 @@
+package com.jx.test.simplewallet.model;
+
+import java.io.Serializable;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+@EqualsAndHashCode
+@AllArgsConstructor
+@NoArgsConstructor
+public class WalletRecordId implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String walletId;
+    private long version;
+}
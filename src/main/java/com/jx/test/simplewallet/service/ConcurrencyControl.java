@@ -0,0 +1,16 @@
+package com.jx.test.simplewallet.service;
+
+/**
+ * How a payment protects the read-compute-write of a wallet version against writers in other processes.
+ */
+public enum ConcurrencyControl {
+    /**
+     * Read without locks and let the version check reject a stale write, then retry.
+     */
+    OPTIMISTIC,
+
+    /**
+     * Lock the latest version row in the database for the whole payment transaction.
+     */
+    PESSIMISTIC,
+}
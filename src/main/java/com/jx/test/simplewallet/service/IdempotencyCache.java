@@ -0,0 +1,65 @@
+package com.jx.test.simplewallet.service;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.model.CoinCounts;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+/**
+ * Least recently used results of keyed payments, so a retried payment is answered without reaching the database.
+ * Entries expire after a while; the key stays in the database, so an expired entry is only a slower lookup.
+ */
+class IdempotencyCache {
+
+    private final long ttlMillis;
+
+    private final Map<Key, Result> entries;
+
+    IdempotencyCache(WalletProperties.Idempotency config) {
+        this.ttlMillis = config.getTtlMillis();
+
+        var maxEntries = config.getMaxEntries();
+        this.entries =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+    }
+
+    synchronized Result get(String walletId, String idempotencyKey) {
+        var key = new Key(walletId, idempotencyKey);
+        var result = entries.get(key);
+        if (result != null && ttlMillis > 0 && System.currentTimeMillis() - result.storedAt > ttlMillis) {
+            entries.remove(key);
+            return null;
+        }
+
+        return result;
+    }
+
+    synchronized void put(String walletId, String idempotencyKey, long amount, CoinCounts left) {
+        entries.put(new Key(walletId, idempotencyKey), new Result(amount, left, System.currentTimeMillis()));
+    }
+
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static class Key {
+
+        private final String walletId;
+        private final String idempotencyKey;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Result {
+
+        private final long amount;
+        private final CoinCounts left;
+        private final long storedAt;
+    }
+}
@@ -0,0 +1,174 @@
+package com.jx.test.simplewallet.service;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.exception.TooManyRequestsException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which payments go on to storage when more arrive than it can take. Rates are limited by token buckets, per
+ * wallet and over all wallets, and the payments in progress are capped per wallet and overall; only the overall cap
+ * lets a payment wait a little for a slot, every other limit sheds it at once with a hint when to retry.
+ */
+class PaymentAdmission {
+
+    /**
+     * Held while an admitted payment is in progress.
+     */
+    interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Permit UNLIMITED = () -> {};
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final WalletProperties.Admission config;
+
+    private final WalletMetrics metrics;
+
+    private final Bucket global;
+
+    private final Semaphore concurrent;
+
+    private final ConcurrentHashMap<String, WalletLimits> wallets = new ConcurrentHashMap<>();
+
+    PaymentAdmission(WalletProperties.Admission config, WalletMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.global = new Bucket(config.getGlobalRate(), config.getGlobalBurst());
+        this.concurrent = config.getMaxConcurrent() > 0 ? new Semaphore(config.getMaxConcurrent()) : null;
+    }
+
+    /**
+     * Admits a payment to {@code walletId}, waiting briefly if the service is at its concurrency limit.
+     *
+     * @throws TooManyRequestsException if the payment is shed
+     */
+    Permit admit(String walletId) {
+        if (!config.isEnabled()) {
+            return UNLIMITED;
+        }
+
+        var limits = limits(walletId);
+        var now = System.nanoTime();
+        reject(limits.bucket.take(now), "wallet rate limit exceeded");
+        reject(global.take(now), "rate limit exceeded");
+
+        var walletConcurrent = config.getMaxWalletConcurrent();
+        if (walletConcurrent > 0 && limits.inFlight.incrementAndGet() > walletConcurrent) {
+            limits.inFlight.decrementAndGet();
+            reject(NANOS_PER_SECOND, "too many payments to the wallet in progress");
+        }
+        Permit walletPermit = walletConcurrent > 0 ? limits.inFlight::decrementAndGet : UNLIMITED;
+
+        if (concurrent != null && !concurrent.tryAcquire()) {
+            metrics.admission(WalletMetrics.Admission.QUEUED);
+            if (!acquire()) {
+                walletPermit.close();
+                reject(NANOS_PER_SECOND, "too many payments in progress");
+            }
+        }
+        metrics.admission(WalletMetrics.Admission.ADMITTED);
+
+        if (concurrent == null) {
+            return walletPermit;
+        }
+
+        return () -> {
+            concurrent.release();
+            walletPermit.close();
+        };
+    }
+
+    private boolean acquire() {
+        try {
+            return concurrent.tryAcquire(config.getQueueTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Sheds the payment if it has to wait {@code waitNanos} before a retry can succeed.
+     */
+    private void reject(long waitNanos, String message) {
+        if (waitNanos <= 0) {
+            return;
+        }
+
+        metrics.admission(WalletMetrics.Admission.REJECTED);
+        throw new TooManyRequestsException(message, Math.max(1, (waitNanos + NANOS_PER_SECOND - 1) / NANOS_PER_SECOND));
+    }
+
+    private WalletLimits limits(String walletId) {
+        var limits = wallets.get(walletId);
+        if (limits != null) {
+            return limits;
+        }
+
+        limits = wallets.computeIfAbsent(walletId, id -> new WalletLimits(config));
+        // permits hold their wallet's limits, so forgetting a wallet only resets them
+        var iterator = wallets.keySet().iterator();
+        while (wallets.size() > config.getMaxWallets() && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+
+        return limits;
+    }
+
+    private static class WalletLimits {
+
+        private final Bucket bucket;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        WalletLimits(WalletProperties.Admission config) {
+            this.bucket = new Bucket(config.getWalletRate(), config.getWalletBurst());
+        }
+    }
+
+    /**
+     * A token bucket kept as the time it will be full again, so taking a token is a single compare-and-set: a token
+     * is available unless that time lies more than the burst ahead.
+     */
+    private static class Bucket {
+
+        private final long interval;
+        private final long tolerance;
+        private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(double rate, int burst) {
+            this.interval = rate > 0 ? Math.max(1, (long) (NANOS_PER_SECOND / rate)) : 0;
+            this.tolerance = interval * Math.max(burst - 1, 0);
+        }
+
+        /**
+         * Takes a token at {@code now}.
+         *
+         * @return 0 if one was taken, otherwise how long until one is available
+         */
+        long take(long now) {
+            if (interval == 0) {
+                return 0;
+            }
+
+            while (true) {
+                var current = fullAt.get();
+                var start = current == Long.MIN_VALUE || current - now < 0 ? now : current;
+                var wait = start - tolerance - now;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (fullAt.compareAndSet(current, start + interval)) {
+                    return 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.jx.test.simplewallet.service;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.dao.WalletRecordDao;
+import com.jx.test.simplewallet.exception.InvalidPaymentException;
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.BatchPaymentResult;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.CoinSelection;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.PreDestroy;
+import javax.management.InvalidAttributeValueException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies payments on a fixed set of writer threads, each owning a disjoint set of wallets. A writer takes whatever
+ * payments are queued, applies them in arrival order against its in-memory copy of the wallets and stores all
+ * resulting versions in one transaction, then completes each caller's future. Deposits and batch payments go through
+ * the same writer, so nothing else in this process writes a wallet the writer holds a copy of.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "wallet.pipeline.enabled", havingValue = "true")
+public class PaymentPipeline {
+
+    private final WalletRecordDao walletRecordDao;
+
+    private final Writer[] writers;
+
+    private final int batchSize;
+
+    private final int maxRetries;
+
+    private final CoinSelection coinSelection;
+
+    private final WalletMetrics metrics;
+
+    @Autowired
+    public PaymentPipeline(WalletRecordDao walletRecordDao, WalletProperties walletProperties, WalletMetrics metrics) {
+        var config = walletProperties.getPipeline();
+
+        this.walletRecordDao = walletRecordDao;
+        this.metrics = metrics;
+        this.batchSize = config.getBatchSize();
+        this.maxRetries = walletProperties.getPayment().getMaxRetries();
+        this.coinSelection = walletProperties.getPayment().getCoinSelection();
+        this.writers = new Writer[config.getWriters()];
+        for (var i = 0; i < writers.length; i++) {
+            writers[i] = new Writer("payment-writer-" + i, config.getQueueCapacity());
+            writers[i].start();
+        }
+    }
+
+    /**
+     * Queues a payment; the future completes with the coins left once the payment is committed, or with the
+     * {@link InvalidPaymentException} or {@link javax.management.InvalidAttributeValueException} that rejected it.
+     *
+     * @throws RejectedExecutionException if the wallet's writer has too many payments waiting
+     */
+    public CompletableFuture<CoinCounts> submit(String walletId, int amount) {
+        return submit(walletId, amount, null);
+    }
+
+    /**
+     * Like {@link #submit(String, int)}, but a payment whose {@code idempotencyKey} was already paid completes with the
+     * coins that payment left instead of paying again.
+     */
+    public CompletableFuture<CoinCounts> submit(String walletId, int amount, String idempotencyKey) {
+        return enqueue(new Payment(walletId, amount, idempotencyKey));
+    }
+
+    /**
+     * Queues a deposit; the future completes with the coins held once it is committed, or with the
+     * {@link InvalidAttributeValueException} of a wallet that does not exist.
+     *
+     * @throws RejectedExecutionException if the wallet's writer has too many requests waiting
+     */
+    public CompletableFuture<CoinCounts> submitDeposit(String walletId, CoinCounts deposit) {
+        return enqueue(new Deposit(walletId, deposit));
+    }
+
+    /**
+     * Queues a batch of payments, applied back to back with one version each; the future completes with the outcome
+     * of each amount once the paid ones are committed, or with the {@link InvalidPaymentException} of a wallet that
+     * does not exist.
+     *
+     * @throws RejectedExecutionException if the wallet's writer has too many requests waiting
+     */
+    public CompletableFuture<BatchPaymentResult> submitBatch(String walletId, int[] amounts) {
+        return enqueue(new Batch(walletId, amounts));
+    }
+
+    private <T> CompletableFuture<T> enqueue(Request<T> request) {
+        if (!writer(request.walletId).queue.offer(request)) {
+            throw new RejectedExecutionException("payment queue full");
+        }
+
+        return request.result;
+    }
+
+    private Writer writer(String walletId) {
+        var h = walletId.hashCode();
+
+        return writers[Math.floorMod(h ^ (h >>> 16), writers.length)];
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (var writer : writers) {
+            writer.interrupt();
+        }
+    }
+
+    private WalletRecord.WalletRecordBuilder next(WalletRecord latest, CoinCounts counts, long amount) {
+        return WalletRecord
+            .builder()
+            .walletId(latest.walletId())
+            .version(latest.version() + 1)
+            .tsMillis(System.currentTimeMillis())
+            .counts(counts)
+            .total(counts.total())
+            .amount(amount);
+    }
+
+    private abstract static class Request<T> {
+
+        final String walletId;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Request(String walletId) {
+            this.walletId = walletId;
+        }
+
+        /**
+         * Adds the versions this request writes on top of {@code latest} to {@code records}, and returns what its
+         * future completes with once they are stored: the result, or the exception that rejected the request.
+         */
+        abstract Object apply(WalletRecord latest, List<WalletRecord> records);
+
+        @SuppressWarnings("unchecked")
+        void complete(Object outcome) {
+            if (outcome instanceof Exception) {
+                result.completeExceptionally((Exception) outcome);
+            } else {
+                result.complete((T) outcome);
+            }
+        }
+    }
+
+    private class Payment extends Request<CoinCounts> {
+
+        private final int amount;
+        private final String idempotencyKey;
+
+        Payment(String walletId, int amount, String idempotencyKey) {
+            super(walletId);
+            this.amount = amount;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        @Override
+        Object apply(WalletRecord latest, List<WalletRecord> records) {
+            if (latest == null) {
+                return new InvalidPaymentException("wallet not initialised", CoinCounts.EMPTY);
+            }
+
+            var coins = latest.counts();
+            if (coins.total() < amount) {
+                metrics.outcome(WalletMetrics.Outcome.INSUFFICIENT_FUNDS);
+                return new InvalidPaymentException("insufficient fund", coins);
+            }
+
+            var left = coinSelection.pay(coins, amount);
+            records.add(next(latest, left, amount).idempotencyKey(idempotencyKey).coinSelection(coinSelection).build());
+
+            return left;
+        }
+
+        Object repeated(WalletRecord paid) {
+            if (paid.amount() != amount) {
+                metrics.outcome(WalletMetrics.Outcome.INVALID_INPUT);
+                return new InvalidAttributeValueException("idempotency key already used for another amount");
+            }
+
+            return paid.counts();
+        }
+    }
+
+    private class Deposit extends Request<CoinCounts> {
+
+        private final CoinCounts deposit;
+
+        Deposit(String walletId, CoinCounts deposit) {
+            super(walletId);
+            this.deposit = deposit;
+        }
+
+        @Override
+        Object apply(WalletRecord latest, List<WalletRecord> records) {
+            if (latest == null) {
+                metrics.outcome(WalletMetrics.Outcome.INVALID_INPUT);
+                return new InvalidAttributeValueException("wallet not initialised");
+            }
+
+            var coins = latest.counts().plus(deposit);
+            // a negative amount cannot be replayed as a payment, so the storage keeps this version as a snapshot
+            records.add(next(latest, coins, -deposit.total()).build());
+
+            return coins;
+        }
+    }
+
+    private class Batch extends Request<BatchPaymentResult> {
+
+        private final int[] amounts;
+
+        Batch(String walletId, int[] amounts) {
+            super(walletId);
+            this.amounts = amounts;
+        }
+
+        @Override
+        Object apply(WalletRecord latest, List<WalletRecord> records) {
+            if (latest == null) {
+                return new InvalidPaymentException("wallet not initialised", CoinCounts.EMPTY);
+            }
+
+            var statuses = new BatchPaymentResult.Status[amounts.length];
+            var tsMillis = System.currentTimeMillis();
+            for (var i = 0; i < amounts.length; i++) {
+                if (amounts[i] <= 0) {
+                    metrics.outcome(WalletMetrics.Outcome.INVALID_INPUT);
+                    statuses[i] = BatchPaymentResult.Status.INVALID_AMOUNT;
+                } else if (latest.counts().total() < amounts[i]) {
+                    metrics.outcome(WalletMetrics.Outcome.INSUFFICIENT_FUNDS);
+                    statuses[i] = BatchPaymentResult.Status.INSUFFICIENT_FUNDS;
+                } else {
+                    var left = coinSelection.pay(latest.counts(), amounts[i]);
+                    // every payment keeps its own version so the history reads the same as with single payments
+                    latest = next(latest, left, amounts[i]).tsMillis(tsMillis).coinSelection(coinSelection).build();
+                    records.add(latest);
+                    statuses[i] = BatchPaymentResult.Status.PAID;
+                }
+            }
+
+            return new BatchPaymentResult(statuses, latest.counts().toArray());
+        }
+    }
+
+    private class Writer extends Thread {
+
+        private final BlockingQueue<Request<?>> queue;
+
+        // latest committed record of the wallets this writer has seen, only touched by this thread
+        private final Map<String, WalletRecord> wallets = new HashMap<>();
+
+        Writer(String name, int queueCapacity) {
+            super(name);
+            setDaemon(true);
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            var batch = new ArrayList<Request<?>>(batchSize);
+            while (!isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                queue.drainTo(batch, batchSize - 1);
+
+                try {
+                    process(batch);
+                } catch (RuntimeException e) {
+                    log.error("payment batch failed", e);
+                    wallets.clear();
+                    batch.forEach(request -> request.result.completeExceptionally(e));
+                }
+                batch.clear();
+            }
+
+            for (Request<?> request; (request = queue.poll()) != null;) {
+                request.result.completeExceptionally(new RejectedExecutionException("payment pipeline stopped"));
+            }
+        }
+
+        private void process(List<Request<?>> batch) {
+            for (var attempt = 0;; attempt++) {
+                var working = new HashMap<String, WalletRecord>();
+                var keyed = new HashMap<List<String>, WalletRecord>();
+                var records = new ArrayList<WalletRecord>(batch.size());
+                var outcomes = new Object[batch.size()];
+
+                for (var i = 0; i < batch.size(); i++) {
+                    var request = batch.get(i);
+                    var payment = request instanceof Payment ? (Payment) request : null;
+                    var key = payment == null || payment.idempotencyKey == null
+                        ? null
+                        : List.of(request.walletId, payment.idempotencyKey);
+                    if (key != null) {
+                        var paid = keyed.containsKey(key)
+                            ? keyed.get(key)
+                            : walletRecordDao.findByIdempotencyKey(request.walletId, payment.idempotencyKey);
+                        if (paid != null) {
+                            outcomes[i] = payment.repeated(paid);
+                            continue;
+                        }
+                    }
+
+                    var latest = working.containsKey(request.walletId)
+                        ? working.get(request.walletId)
+                        : wallets.computeIfAbsent(request.walletId, walletRecordDao::latest);
+
+                    var written = records.size();
+                    outcomes[i] = request.apply(latest, records);
+                    if (records.size() > written) {
+                        var record = records.get(records.size() - 1);
+                        working.put(request.walletId, record);
+                        if (key != null) {
+                            keyed.put(key, record);
+                        }
+                    }
+                }
+
+                try {
+                    if (!records.isEmpty()) {
+                        walletRecordDao.insertBatch(records);
+                    }
+                } catch (VersionConflictException e) {
+                    // another process wrote one of these wallets, start over from what is stored now
+                    metrics.outcome(WalletMetrics.Outcome.VERSION_CONFLICT);
+                    wallets.keySet().removeAll(working.keySet());
+                    if (attempt < maxRetries) {
+                        metrics.retry();
+                        continue;
+                    }
+                    batch.forEach(request -> request.result.completeExceptionally(e));
+                    return;
+                } catch (Exception e) {
+                    wallets.keySet().removeAll(working.keySet());
+                    batch.forEach(request -> request.result.completeExceptionally(e));
+                    return;
+                }
+
+                wallets.putAll(working);
+                working.values().forEach(metrics::written);
+                for (var i = 0; i < batch.size(); i++) {
+                    batch.get(i).complete(outcomes[i]);
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.jx.test.simplewallet.service;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks keyed by wallet id, so writes to one wallet are serialised while different wallets mostly land
+ * on different stripes and proceed in parallel.
+ */
+class StripedLock {
+
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    StripedLock(int stripes) {
+        var size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new ReentrantLock[size];
+        for (var i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    ReentrantLock get(String key) {
+        var h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & mask];
+    }
+}
@@ -0,0 +1,83 @@
+package com.jx.test.simplewallet.service;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded thread pools the asynchronous endpoints run on, one for reads and one for writes. A full queue rejects the
+ * task at once with a {@link RejectedExecutionException} instead of letting requests pile up.
+ */
+@Component
+public class WalletExecutors {
+
+    private final ThreadPoolExecutor reads;
+
+    private final ThreadPoolExecutor writes;
+
+    @Autowired
+    public WalletExecutors(WalletProperties walletProperties) {
+        var config = walletProperties.getAsync();
+
+        this.reads = pool("wallet-read-", config.getReadThreads(), config.getReadQueueCapacity());
+        this.writes = pool("wallet-write-", config.getWriteThreads(), config.getWriteQueueCapacity());
+    }
+
+    /**
+     * Runs {@code task} on the read pool.
+     *
+     * @throws RejectedExecutionException if too many reads are waiting
+     */
+    public <T> CompletableFuture<T> read(Supplier<T> task) {
+        return submit(reads, "read", task);
+    }
+
+    /**
+     * Runs {@code task} on the write pool.
+     *
+     * @throws RejectedExecutionException if too many writes are waiting
+     */
+    public <T> CompletableFuture<T> write(Supplier<T> task) {
+        return submit(writes, "write", task);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reads.shutdown();
+        writes.shutdown();
+    }
+
+    private static <T> CompletableFuture<T> submit(ThreadPoolExecutor pool, String kind, Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, pool);
+        } catch (RejectedExecutionException e) {
+            throw new RejectedExecutionException(kind + " queue full");
+        }
+    }
+
+    private static ThreadPoolExecutor pool(String namePrefix, int threads, int queueCapacity) {
+        var counter = new AtomicInteger();
+
+        return new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            task -> {
+                var thread = new Thread(task, namePrefix + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+    }
+}
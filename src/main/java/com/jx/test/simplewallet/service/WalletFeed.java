@@ -0,0 +1,295 @@
+package com.jx.test.simplewallet.service;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.dao.WalletRecordDao;
+import com.jx.test.simplewallet.dao.WalletRecordWritten;
+import com.jx.test.simplewallet.model.HistoryQuery;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
+import javax.management.InvalidAttributeValueException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+/**
+ * Pushes every committed version of a wallet to the subscribers of that wallet, in version order.
+ *
+ * <p>Writers only drop the new version into a small buffer per subscriber and never wait for one; a few sender threads
+ * deliver the buffers. A subscriber whose buffer fills up is disconnected and has to resume from the last version it
+ * received, which is then read back from the history together with everything written since. Versions committed out
+ * of order by concurrent writers are filled in from the history as well, so a subscriber sees no gaps wherever the
+ * storage keeps history.
+ */
+@Slf4j
+@Service
+public class WalletFeed {
+
+    /**
+     * Receives the versions of one subscription, one call at a time.
+     */
+    public interface Subscriber {
+        void send(WalletRecord record) throws IOException;
+
+        /**
+         * The feed ended the subscription, because the subscriber fell too far behind if {@code overflowed}, or
+         * because sending failed or the application is stopping otherwise.
+         */
+        void close(boolean overflowed);
+    }
+
+    private final WalletRecordDao walletRecordDao;
+
+    private final WalletHistoryService walletHistoryService;
+
+    private final WalletProperties.Feed config;
+
+    private final ExecutorService senders;
+
+    private final Map<String, Set<Subscription>> subscriptions = new ConcurrentHashMap<>();
+
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    @Autowired
+    public WalletFeed(
+        WalletRecordDao walletRecordDao,
+        WalletHistoryService walletHistoryService,
+        WalletProperties walletProperties
+    ) {
+        this.walletRecordDao = walletRecordDao;
+        this.walletHistoryService = walletHistoryService;
+        this.config = walletProperties.getFeed();
+
+        var counter = new AtomicInteger();
+        this.senders =
+            Executors.newFixedThreadPool(
+                config.getSenderThreads(),
+                task -> {
+                    var thread = new Thread(task, "wallet-feed-" + counter.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            );
+    }
+
+    /**
+     * Subscribes to the versions of {@code walletId} after {@code afterVersion}, or to its latest version and the ones
+     * after it if {@code afterVersion} is null.
+     *
+     * @throws RejectedExecutionException if there are too many subscribers already
+     */
+    public Subscription subscribe(String walletId, Long afterVersion, Subscriber subscriber)
+        throws InvalidAttributeValueException {
+        if (walletId == null || !walletId.matches(WalletRecord.WALLET_ID_PATTERN)) {
+            throw new InvalidAttributeValueException("invalid wallet id");
+        }
+        if (afterVersion != null && afterVersion < 0) {
+            throw new InvalidAttributeValueException("invalid version");
+        }
+
+        if (subscriberCount.incrementAndGet() > config.getMaxSubscribers()) {
+            subscriberCount.decrementAndGet();
+            throw new RejectedExecutionException("too many feed subscribers");
+        }
+
+        var subscription = new Subscription(walletId, afterVersion, subscriber);
+        subscriptions.compute(
+            walletId,
+            (id, current) -> {
+                var subscribed = current == null ? ConcurrentHashMap.<Subscription>newKeySet() : current;
+                subscribed.add(subscription);
+                return subscribed;
+            }
+        );
+        // catches up before anything buffered meanwhile is sent
+        subscription.schedule();
+
+        return subscription;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void written(WalletRecordWritten event) {
+        var subscribed = subscriptions.get(event.record().walletId());
+        if (subscribed != null) {
+            subscribed.forEach(subscription -> subscription.offer(event.record()));
+        }
+    }
+
+    public int subscribers() {
+        return subscriberCount.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        subscriptions.values().forEach(subscribed -> subscribed.forEach(subscription -> subscription.end(false)));
+        senders.shutdownNow();
+    }
+
+    public final class Subscription {
+
+        private final String walletId;
+
+        private final Subscriber subscriber;
+
+        private final ArrayBlockingQueue<WalletRecord> buffer;
+
+        // set while a sender owns the subscription, so only one sends at a time
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private final AtomicBoolean ended = new AtomicBoolean();
+
+        private volatile boolean overflowed;
+
+        // only used by the sender owning the subscription
+        private long lastSent;
+        private boolean caughtUp;
+
+        private Subscription(String walletId, Long afterVersion, Subscriber subscriber) {
+            this.walletId = walletId;
+            this.subscriber = subscriber;
+            this.buffer = new ArrayBlockingQueue<>(config.getBufferSize());
+            this.lastSent = afterVersion == null ? -1 : afterVersion;
+        }
+
+        /**
+         * Stops sending; the subscriber is not told.
+         */
+        public void cancel() {
+            if (ended.compareAndSet(false, true)) {
+                remove();
+            }
+        }
+
+        private void offer(WalletRecord record) {
+            if (!buffer.offer(record)) {
+                overflowed = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            if (!ended.get() && scheduled.compareAndSet(false, true)) {
+                try {
+                    senders.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    end(false);
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                do {
+                    if (!caughtUp) {
+                        catchUp();
+                        caughtUp = true;
+                    }
+
+                    var records = new ArrayList<WalletRecord>(buffer.size());
+                    buffer.drainTo(records);
+                    records.sort(Comparator.comparingLong(WalletRecord::version));
+                    for (var record : records) {
+                        if (ended.get()) {
+                            return;
+                        }
+                        deliver(record);
+                    }
+
+                    if (overflowed) {
+                        end(true);
+                        return;
+                    }
+                    scheduled.set(false);
+                } while (!buffer.isEmpty() && !ended.get() && scheduled.compareAndSet(false, true));
+            } catch (IOException | RuntimeException e) {
+                log.debug("feed of wallet {} closed: {}", walletId, e.toString());
+                end(false);
+            }
+        }
+
+        private void catchUp() throws IOException {
+            if (lastSent >= 0 && sendHistory(lastSent, Long.MAX_VALUE)) {
+                return;
+            }
+
+            var latest = walletRecordDao.latest(walletId);
+            if (latest != null && latest.version() > lastSent) {
+                send(latest);
+            }
+        }
+
+        private void deliver(WalletRecord record) throws IOException {
+            if (record.version() <= lastSent) {
+                return;
+            }
+            if (lastSent > 0 && record.version() > lastSent + 1) {
+                sendHistory(lastSent, record.version() - 1);
+            }
+            send(record);
+        }
+
+        /**
+         * Sends the stored versions after {@code afterVersion} up to {@code toVersion}.
+         *
+         * @return false if the storage keeps no history
+         */
+        private boolean sendHistory(long afterVersion, long toVersion) throws IOException {
+            var query = HistoryQuery.builder().afterVersion(afterVersion).toVersion(toVersion).build();
+            try {
+                walletHistoryService.history(
+                    walletId,
+                    query,
+                    record -> {
+                        try {
+                            send(record);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                );
+
+                return true;
+            } catch (InvalidAttributeValueException e) {
+                return false;
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void send(WalletRecord record) throws IOException {
+            subscriber.send(record);
+            lastSent = record.version();
+        }
+
+        private void end(boolean overflowed) {
+            if (ended.compareAndSet(false, true)) {
+                remove();
+                subscriber.close(overflowed);
+            }
+        }
+
+        private void remove() {
+            subscriberCount.decrementAndGet();
+            subscriptions.computeIfPresent(
+                walletId,
+                (id, subscribed) -> {
+                    subscribed.remove(this);
+                    return subscribed.isEmpty() ? null : subscribed;
+                }
+            );
+        }
+    }
+}
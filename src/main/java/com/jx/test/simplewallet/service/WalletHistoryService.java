@@ -0,0 +1,50 @@
+package com.jx.test.simplewallet.service;
+
+import com.jx.test.simplewallet.dao.WalletHistoryDao;
+import com.jx.test.simplewallet.model.HistoryQuery;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.function.Consumer;
+import javax.management.InvalidAttributeValueException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+@Service
+public class WalletHistoryService {
+
+    // only present while wallets are stored in the database
+    @Autowired(required = false)
+    private WalletHistoryDao walletHistoryDao;
+
+    /**
+     * Validates {@code query} before anything is read, so callers streaming the result can still report the error.
+     */
+    public void validate(String walletId, HistoryQuery query) throws InvalidAttributeValueException {
+        if (walletHistoryDao == null) {
+            throw new InvalidAttributeValueException("history not supported by the wallet storage");
+        }
+
+        if (walletId == null || !walletId.matches(WalletRecord.WALLET_ID_PATTERN)) {
+            throw new InvalidAttributeValueException("invalid wallet id");
+        }
+
+        if (query.afterVersion() < 0 || query.toVersion() < 1 || query.fromMillis() > query.toMillis()) {
+            throw new InvalidAttributeValueException("invalid range");
+        }
+
+        if (query.limit() <= 0) {
+            throw new InvalidAttributeValueException("invalid limit");
+        }
+    }
+
+    /**
+     * Passes the selected versions of the wallet to {@code consumer}, oldest first.
+     *
+     * @return the number of versions passed on
+     */
+    public long history(String walletId, HistoryQuery query, Consumer<WalletRecord> consumer)
+        throws InvalidAttributeValueException {
+        validate(walletId, query);
+
+        return walletHistoryDao.forEachVersion(walletId, query, consumer);
+    }
+}
@@ -0,0 +1,181 @@
+package com.jx.test.simplewallet.service;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.dao.WalletRecordDao;
+import com.jx.test.simplewallet.model.WalletRecord;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Meters of the wallet operations:
+ *
+ * <ul>
+ *   <li>{@code wallet.operation} timers per operation and phase (read, compute, write)
+ *   <li>{@code wallet.outcome} counters of rejected requests by reason, {@code wallet.payment.retries}
+ *   <li>{@code wallet.admission} counters of payments admitted, queued before admission and shed
+ *   <li>{@code wallet.version} and {@code wallet.total} gauges of recently written wallets
+ *   <li>{@code wallet.history.versions} gauge of the versions stored
+ * </ul>
+ */
+@Component
+public class WalletMetrics {
+
+    public enum Phase {
+        READ,
+        COMPUTE,
+        WRITE,
+    }
+
+    public enum Outcome {
+        INSUFFICIENT_FUNDS,
+        INVALID_INPUT,
+        VERSION_CONFLICT,
+    }
+
+    public enum Admission {
+        ADMITTED,
+        QUEUED,
+        REJECTED,
+    }
+
+    private final MeterRegistry registry;
+
+    private final int maxWalletGauges;
+
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    private final Map<Outcome, Counter> outcomes = new EnumMap<>(Outcome.class);
+
+    private final Map<Admission, Counter> admissions = new EnumMap<>(Admission.class);
+
+    private final Counter retries;
+
+    private final Map<String, AtomicLong[]> wallets = new ConcurrentHashMap<>();
+
+    @Autowired
+    public WalletMetrics(
+        MeterRegistry registry,
+        WalletProperties walletProperties,
+        @Nullable WalletRecordDao walletRecordDao
+    ) {
+        this.registry = registry;
+        this.maxWalletGauges = walletProperties.getMetrics().getMaxWalletGauges();
+
+        for (var outcome : Outcome.values()) {
+            outcomes.put(
+                outcome,
+                Counter.builder("wallet.outcome").tag("outcome", outcome.name().toLowerCase()).register(registry)
+            );
+        }
+        for (var admission : Admission.values()) {
+            admissions.put(
+                admission,
+                Counter.builder("wallet.admission").tag("result", admission.name().toLowerCase()).register(registry)
+            );
+        }
+        retries = Counter.builder("wallet.payment.retries").register(registry);
+
+        if (walletRecordDao != null) {
+            Gauge
+                .builder("wallet.history.versions", walletRecordDao, WalletRecordDao::countVersions)
+                .register(registry);
+        }
+    }
+
+    /**
+     * Metrics kept in memory only, for use outside the application context.
+     */
+    public static WalletMetrics simple() {
+        return new WalletMetrics(new SimpleMeterRegistry(), new WalletProperties(), null);
+    }
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since {@code startNanos} against {@code operation}'s {@code phase}.
+     *
+     * @return the current time, to start the next phase from
+     */
+    public long record(String operation, Phase phase, long startNanos) {
+        var now = System.nanoTime();
+        timer(operation, phase).record(now - startNanos, TimeUnit.NANOSECONDS);
+
+        return now;
+    }
+
+    public void outcome(Outcome outcome) {
+        outcomes.get(outcome).increment();
+    }
+
+    public long count(Outcome outcome) {
+        return (long) outcomes.get(outcome).count();
+    }
+
+    public void admission(Admission admission) {
+        admissions.get(admission).increment();
+    }
+
+    public long count(Admission admission) {
+        return (long) admissions.get(admission).count();
+    }
+
+    public void retry() {
+        retries.increment();
+    }
+
+    public long retries() {
+        return (long) retries.count();
+    }
+
+    /**
+     * Publishes the version and total of a freshly written wallet record. Only the first few wallets get gauges, so
+     * deployments with many wallets do not flood the registry.
+     */
+    public void written(WalletRecord record) {
+        var state = wallets.get(record.walletId());
+        if (state == null) {
+            if (wallets.size() >= maxWalletGauges) {
+                return;
+            }
+            state = wallets.computeIfAbsent(record.walletId(), this::registerWallet);
+        }
+
+        state[0].set(record.version());
+        state[1].set(record.total());
+    }
+
+    private AtomicLong[] registerWallet(String walletId) {
+        var state = new AtomicLong[] { new AtomicLong(), new AtomicLong() };
+        Gauge.builder("wallet.version", state[0], AtomicLong::get).tag("wallet", walletId).register(registry);
+        Gauge.builder("wallet.total", state[1], AtomicLong::get).tag("wallet", walletId).register(registry);
+
+        return state;
+    }
+
+    private Timer timer(String operation, Phase phase) {
+        return timers.computeIfAbsent(
+            operation + '.' + phase,
+            key ->
+                Timer
+                    .builder("wallet.operation")
+                    .tag("operation", operation)
+                    .tag("phase", phase.name().toLowerCase())
+                    .publishPercentiles(0.5, 0.95, 0.99)
+                    .publishPercentileHistogram()
+                    .register(registry)
+        );
+    }
+}
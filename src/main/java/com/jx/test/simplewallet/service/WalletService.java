@@ -1,12 +1,69 @@
 package com.jx.test.simplewallet.service;
 
 import com.jx.test.simplewallet.exception.InvalidPaymentException;
+import com.jx.test.simplewallet.model.BatchPaymentResult;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
 import javax.management.InvalidAttributeValueException;
 
 public interface WalletService {
-    void init(int[] coins) throws InvalidAttributeValueException;
+    String DEFAULT_WALLET = "default";
 
-    int[] latest();
+    void init(String walletId, int[] coins) throws InvalidAttributeValueException;
 
-    int[] pay(int amount) throws InvalidAttributeValueException, InvalidPaymentException;
+    int[] latest(String walletId) throws InvalidAttributeValueException;
+
+    /**
+     * Like {@link #latest(String)}, without listing the coins one by one.
+     */
+    CoinCounts latestCounts(String walletId) throws InvalidAttributeValueException;
+
+    /**
+     * The latest version of the wallet, or null if it was never initialised. Served from memory while the wallet is
+     * cached, so it is cheap enough to answer conditional requests with.
+     */
+    WalletRecord latestRecord(String walletId) throws InvalidAttributeValueException;
+
+    /**
+     * Coins the wallet held at {@code tsMillis}, empty if it did not exist yet.
+     */
+    int[] asOf(String walletId, long tsMillis) throws InvalidAttributeValueException;
+
+    /**
+     * {@link #asOf(String, long)} for many timestamps in one call, in the order given.
+     */
+    int[][] asOf(String walletId, long[] tsMillis) throws InvalidAttributeValueException;
+
+    int[] pay(String walletId, int amount) throws InvalidAttributeValueException, InvalidPaymentException;
+
+    /**
+     * Like {@link #pay(String, int)}, but a payment repeated with the same {@code idempotencyKey} is not paid again: it
+     * returns the coins left by the first one. A null key pays unconditionally.
+     */
+    int[] pay(String walletId, int amount, String idempotencyKey)
+        throws InvalidAttributeValueException, InvalidPaymentException;
+
+    /**
+     * Like {@link #pay(String, int)}, without listing the coins left one by one.
+     */
+    CoinCounts payCounts(String walletId, int amount) throws InvalidAttributeValueException, InvalidPaymentException;
+
+    /**
+     * Like {@link #pay(String, int, String)}, without listing the coins left one by one.
+     */
+    CoinCounts payCounts(String walletId, int amount, String idempotencyKey)
+        throws InvalidAttributeValueException, InvalidPaymentException;
+
+    /**
+     * Adds {@code coins} to an initialised wallet as a new version and returns the coins it holds then. Concurrent
+     * writes are handled like payments.
+     */
+    int[] deposit(String walletId, int[] coins) throws InvalidAttributeValueException;
+
+    /**
+     * Pays each amount in order against one loaded state and stores the results in a single transaction. Amounts that
+     * cannot be paid are reported and skipped; the rest of the batch still goes through.
+     */
+    BatchPaymentResult payBatch(String walletId, int[] amounts)
+        throws InvalidAttributeValueException, InvalidPaymentException;
 }
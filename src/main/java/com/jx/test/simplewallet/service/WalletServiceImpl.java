@@ -1,108 +1,517 @@
 package com.jx.test.simplewallet.service;
 
+import com.jx.test.simplewallet.config.WalletProperties;
 import com.jx.test.simplewallet.dao.WalletRecordDao;
 import com.jx.test.simplewallet.exception.InvalidPaymentException;
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.BatchPaymentResult;
+import com.jx.test.simplewallet.model.CoinCounts;
 import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import javax.management.InvalidAttributeValueException;
-import lombok.AllArgsConstructor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionOperations;
 
 @Service
-@AllArgsConstructor
 public class WalletServiceImpl implements WalletService {
 
+    private final WalletRecordDao walletRecordDao;
+
+    private final TransactionOperations transactionOperations;
+
+    private final WalletProperties.Payment paymentConfig;
+
+    private final StripedLock walletLocks;
+
+    private final PaymentPipeline paymentPipeline;
+
+    private final WalletMetrics metrics;
+
+    private final IdempotencyCache idempotencyCache;
+
+    private final PaymentAdmission admission;
+
     @Autowired
-    private WalletRecordDao walletRecordDao;
+    public WalletServiceImpl(
+        WalletRecordDao walletRecordDao,
+        WalletProperties walletProperties,
+        TransactionOperations transactionOperations,
+        @Nullable PaymentPipeline paymentPipeline,
+        WalletMetrics metrics
+    ) {
+        this.walletRecordDao = walletRecordDao;
+        this.transactionOperations = transactionOperations;
+        this.paymentConfig = walletProperties.getPayment();
+        this.walletLocks = new StripedLock(walletProperties.getLockStripes());
+        this.paymentPipeline = paymentPipeline;
+        this.metrics = metrics;
+        this.idempotencyCache = new IdempotencyCache(walletProperties.getIdempotency());
+        this.admission = new PaymentAdmission(walletProperties.getAdmission(), metrics);
+    }
+
+    public WalletServiceImpl(WalletRecordDao walletRecordDao, WalletProperties walletProperties) {
+        this(walletRecordDao, walletProperties, TransactionOperations.withoutTransaction(), null, WalletMetrics.simple());
+    }
+
+    public WalletServiceImpl(WalletRecordDao walletRecordDao) {
+        this(walletRecordDao, new WalletProperties());
+    }
+
+    /**
+     * Number of payment attempts that lost the race for a version.
+     */
+    public long conflictCount() {
+        return metrics.count(WalletMetrics.Outcome.VERSION_CONFLICT);
+    }
+
+    /**
+     * Number of payment attempts repeated after a conflict.
+     */
+    public long retryCount() {
+        return metrics.retries();
+    }
 
     @Override
-    public void init(int[] coins) throws InvalidAttributeValueException {
-        if (coins == null || coins.length == 0 || Arrays.stream(coins).anyMatch(c -> c <= 0)) {
-            throw new InvalidAttributeValueException("invalid coins");
+    public void init(String walletId, int[] coins) throws InvalidAttributeValueException {
+        validateWalletId(walletId);
+        validateCoins(coins);
+
+        var started = metrics.start();
+        var counts = CoinCounts.of(coins);
+        var record = WalletRecord
+            .builder()
+            .walletId(walletId)
+            .version(1)
+            .tsMillis(System.currentTimeMillis())
+            .counts(counts)
+            .total(counts.total())
+            .build();
+        started = metrics.record("init", WalletMetrics.Phase.COMPUTE, started);
+
+        var lock = walletLocks.get(walletId);
+        lock.lock();
+        try {
+            walletRecordDao.init(record);
+        } finally {
+            lock.unlock();
         }
+        metrics.record("init", WalletMetrics.Phase.WRITE, started);
+        metrics.written(record);
+    }
 
-        var sortedStream = Arrays.stream(coins).sorted().boxed();
-        var strBuilder = new StringBuilder();
-        var total = new AtomicInteger(0);
+    @Override
+    public int[] latest(String walletId) throws InvalidAttributeValueException {
+        var counts = latestCounts(walletId);
 
-        sortedStream.forEach(
-            i -> {
-                strBuilder.append(i + ",");
-                total.set(total.get() + i);
-            }
-        );
-        var content = strBuilder.substring(0, strBuilder.length() - 1);
-
-        walletRecordDao.init(
-            WalletRecord
-                .builder()
-                .version(1)
-                .tsMillis(System.currentTimeMillis())
-                .content(content)
-                .total(total.get())
-                .build()
-        );
+        var started = metrics.start();
+        var coins = counts.toArray();
+        metrics.record("check", WalletMetrics.Phase.COMPUTE, started);
+
+        return coins;
     }
 
     @Override
-    public int[] latest() {
-        var latest = walletRecordDao.latest();
+    public CoinCounts latestCounts(String walletId) throws InvalidAttributeValueException {
+        var latest = latestRecord(walletId);
 
-        return latest == null
-            ? new int[0]
-            : Arrays.stream(latest.content().split(",")).map(Integer::parseInt).mapToInt(i -> i).toArray();
+        return latest == null ? CoinCounts.EMPTY : latest.counts();
     }
 
     @Override
-    public int[] pay(int amount) throws InvalidAttributeValueException, InvalidPaymentException {
+    public WalletRecord latestRecord(String walletId) throws InvalidAttributeValueException {
+        validateWalletId(walletId);
+
+        var started = metrics.start();
+        var latest = walletRecordDao.latest(walletId);
+        metrics.record("check", WalletMetrics.Phase.READ, started);
+
+        return latest;
+    }
+
+    @Override
+    public int[] asOf(String walletId, long tsMillis) throws InvalidAttributeValueException {
+        return asOf(walletId, new long[] { tsMillis })[0];
+    }
+
+    @Override
+    public int[][] asOf(String walletId, long[] tsMillis) throws InvalidAttributeValueException {
+        validateWalletId(walletId);
+        if (tsMillis == null || tsMillis.length == 0) {
+            throw invalidInput("invalid timestamps");
+        }
+
+        var started = metrics.start();
+        var records = tsMillis.length == 1
+            ? Collections.singletonList(walletRecordDao.asOf(walletId, tsMillis[0]))
+            : walletRecordDao.asOf(walletId, tsMillis);
+        started = metrics.record("asOf", WalletMetrics.Phase.READ, started);
+
+        var coins = new int[tsMillis.length][];
+        for (var i = 0; i < coins.length; i++) {
+            var record = records.get(i);
+            coins[i] = record == null ? new int[0] : record.counts().toArray();
+        }
+        metrics.record("asOf", WalletMetrics.Phase.COMPUTE, started);
+
+        return coins;
+    }
+
+    @Override
+    public int[] pay(String walletId, int amount) throws InvalidAttributeValueException, InvalidPaymentException {
+        return payCounts(walletId, amount, null).toArray();
+    }
+
+    @Override
+    public int[] pay(String walletId, int amount, String idempotencyKey)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        return payCounts(walletId, amount, idempotencyKey).toArray();
+    }
+
+    @Override
+    public CoinCounts payCounts(String walletId, int amount)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        return payCounts(walletId, amount, null);
+    }
+
+    @Override
+    public CoinCounts payCounts(String walletId, int amount, String idempotencyKey)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        validateWalletId(walletId);
+
         if (amount <= 0) {
-            throw new InvalidAttributeValueException("invalid amount");
+            throw invalidInput("invalid amount");
         }
 
-        var latest = walletRecordDao.latest();
+        if (idempotencyKey != null) {
+            if (!idempotencyKey.matches(WalletRecord.IDEMPOTENCY_KEY_PATTERN)) {
+                throw invalidInput("invalid idempotency key");
+            }
+
+            var paid = idempotencyCache.get(walletId, idempotencyKey);
+            if (paid != null) {
+                return repeated(paid.getAmount(), paid.getLeft(), amount);
+            }
+        }
+
+        CoinCounts left;
+        try (var permit = admission.admit(walletId)) {
+            left =
+                paymentPipeline != null
+                    ? await(paymentPipeline.submit(walletId, amount, idempotencyKey))
+                    : withRetries(walletId, lockLatest -> payOnce(walletId, amount, idempotencyKey, lockLatest));
+        }
+
+        if (idempotencyKey != null) {
+            idempotencyCache.put(walletId, idempotencyKey, amount, left);
+        }
+
+        return left;
+    }
+
+    @Override
+    public int[] deposit(String walletId, int[] coins) throws InvalidAttributeValueException {
+        validateWalletId(walletId);
+        validateCoins(coins);
+
+        var deposit = CoinCounts.of(coins);
+        try {
+            return (
+                paymentPipeline != null
+                    ? await(paymentPipeline.submitDeposit(walletId, deposit))
+                    : withRetries(walletId, lockLatest -> depositOnce(walletId, deposit, lockLatest))
+            ).toArray();
+        } catch (InvalidPaymentException e) {
+            // deposits cannot run short of coins
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public BatchPaymentResult payBatch(String walletId, int[] amounts)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        validateWalletId(walletId);
+
+        if (amounts == null || amounts.length == 0) {
+            throw invalidInput("invalid amounts");
+        }
+
+        try (var permit = admission.admit(walletId)) {
+            return paymentPipeline != null
+                ? await(paymentPipeline.submitBatch(walletId, amounts))
+                : withRetries(walletId, lockLatest -> payBatchOnce(walletId, amounts, lockLatest));
+        }
+    }
+
+    /**
+     * Runs a read-compute-write of {@code walletId} under its stripe lock with the configured concurrency control,
+     * repeating it when another writer stored the version first.
+     */
+    private <T> T withRetries(String walletId, Attempt<T> attempt)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        for (var retry = 0;; retry++) {
+            // payments to the same wallet would only race each other on the version chain, so queue them up here
+            var lock = walletLocks.get(walletId);
+            lock.lock();
+            try {
+                return paymentConfig.getConcurrencyControl() == ConcurrencyControl.PESSIMISTIC
+                    ? inTransaction(() -> attempt.run(true))
+                    : attempt.run(false);
+            } catch (VersionConflictException e) {
+                metrics.outcome(WalletMetrics.Outcome.VERSION_CONFLICT);
+                if (retry >= paymentConfig.getMaxRetries()) {
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            metrics.retry();
+            backoff(retry);
+        }
+    }
+
+    private CoinCounts payOnce(String walletId, int amount, String idempotencyKey, boolean lockLatest)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        var started = metrics.start();
+        var latest = lockLatest ? walletRecordDao.latestForUpdate(walletId) : walletRecordDao.latest(walletId);
+        if (idempotencyKey != null) {
+            // also catches the first attempt of this payment having won the race that made us retry
+            var paid = walletRecordDao.findByIdempotencyKey(walletId, idempotencyKey);
+            if (paid != null) {
+                return repeated(paid.amount(), paid.counts(), amount);
+            }
+        }
+        started = metrics.record("pay", WalletMetrics.Phase.READ, started);
         if (latest == null) {
-            throw new InvalidPaymentException("wallet not initialised", new int[0]);
+            throw new InvalidPaymentException("wallet not initialised", CoinCounts.EMPTY);
         }
 
-        var coins = Arrays
-            .stream(latest.content().split(","))
-            .map(Integer::parseInt)
-            .collect(Collectors.toCollection(LinkedList::new));
+        var coins = latest.counts();
 
-        if (latest.total() < amount) {
-            throw new InvalidPaymentException("insufficient fund", coins.stream().mapToInt(i -> i).toArray());
+        if (coins.total() < amount) {
+            throw insufficientFunds(coins);
         }
 
-        var coin = 0;
-        var amountToPay = amount;
-        while (amountToPay > 0) {
-            coin = coins.removeFirst();
+        var left = paymentConfig.getCoinSelection().pay(coins, amount);
+        var record = WalletRecord
+            .builder()
+            .walletId(walletId)
+            .version(latest.version() + 1)
+            .tsMillis(System.currentTimeMillis())
+            .counts(left)
+            .total(left.total())
+            .amount(amount)
+            .idempotencyKey(idempotencyKey)
+            .coinSelection(paymentConfig.getCoinSelection())
+            .build();
+        started = metrics.record("pay", WalletMetrics.Phase.COMPUTE, started);
+
+        walletRecordDao.insert(record);
+        metrics.record("pay", WalletMetrics.Phase.WRITE, started);
+        metrics.written(record);
+
+        return left;
+    }
 
-            var diff = Math.min(amountToPay, coin);
-            amountToPay -= diff;
-            coin -= diff;
+    private CoinCounts depositOnce(String walletId, CoinCounts deposit, boolean lockLatest)
+        throws InvalidAttributeValueException {
+        var started = metrics.start();
+        var latest = lockLatest ? walletRecordDao.latestForUpdate(walletId) : walletRecordDao.latest(walletId);
+        started = metrics.record("deposit", WalletMetrics.Phase.READ, started);
+        if (latest == null) {
+            throw invalidInput("wallet not initialised");
+        }
+
+        var coins = latest.counts().plus(deposit);
+        // a negative amount cannot be replayed as a payment, so the storage keeps this version as a snapshot
+        var record = WalletRecord
+            .builder()
+            .walletId(walletId)
+            .version(latest.version() + 1)
+            .tsMillis(System.currentTimeMillis())
+            .counts(coins)
+            .total(coins.total())
+            .amount(-deposit.total())
+            .build();
+        started = metrics.record("deposit", WalletMetrics.Phase.COMPUTE, started);
+
+        walletRecordDao.insert(record);
+        metrics.record("deposit", WalletMetrics.Phase.WRITE, started);
+        metrics.written(record);
+
+        return coins;
+    }
+
+    private BatchPaymentResult payBatchOnce(String walletId, int[] amounts, boolean lockLatest)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        var started = metrics.start();
+        var latest = lockLatest ? walletRecordDao.latestForUpdate(walletId) : walletRecordDao.latest(walletId);
+        started = metrics.record("payBatch", WalletMetrics.Phase.READ, started);
+        if (latest == null) {
+            throw new InvalidPaymentException("wallet not initialised", CoinCounts.EMPTY);
         }
 
-        if (coin > 0) {
-            coins.addFirst(coin);
+        var statuses = new BatchPaymentResult.Status[amounts.length];
+        var records = new ArrayList<WalletRecord>(amounts.length);
+        var coins = latest.counts();
+        var version = latest.version();
+        var tsMillis = System.currentTimeMillis();
+
+        for (var i = 0; i < amounts.length; i++) {
+            if (amounts[i] <= 0) {
+                metrics.outcome(WalletMetrics.Outcome.INVALID_INPUT);
+                statuses[i] = BatchPaymentResult.Status.INVALID_AMOUNT;
+            } else if (coins.total() < amounts[i]) {
+                metrics.outcome(WalletMetrics.Outcome.INSUFFICIENT_FUNDS);
+                statuses[i] = BatchPaymentResult.Status.INSUFFICIENT_FUNDS;
+            } else {
+                coins = paymentConfig.getCoinSelection().pay(coins, amounts[i]);
+                statuses[i] = BatchPaymentResult.Status.PAID;
+                // every payment keeps its own version so the history reads the same as with single payments
+                records.add(
+                    WalletRecord
+                        .builder()
+                        .walletId(walletId)
+                        .version(++version)
+                        .tsMillis(tsMillis)
+                        .counts(coins)
+                        .total(coins.total())
+                        .amount(amounts[i])
+                        .coinSelection(paymentConfig.getCoinSelection())
+                        .build()
+                );
+            }
+        }
+
+        started = metrics.record("payBatch", WalletMetrics.Phase.COMPUTE, started);
+
+        if (!records.isEmpty()) {
+            walletRecordDao.insertBatch(records);
+            metrics.written(records.get(records.size() - 1));
         }
+        metrics.record("payBatch", WalletMetrics.Phase.WRITE, started);
+
+        return new BatchPaymentResult(statuses, coins.toArray());
+    }
 
-        var content = coins.stream().map(String::valueOf).collect(Collectors.joining(","));
+    private static <T> T await(CompletableFuture<T> pending)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for payment", e);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof InvalidPaymentException) {
+                throw (InvalidPaymentException) cause;
+            }
+            if (cause instanceof InvalidAttributeValueException) {
+                throw (InvalidAttributeValueException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
 
-        walletRecordDao.insert(
-            WalletRecord
-                .builder()
-                .version(latest.version() + 1)
-                .tsMillis(System.currentTimeMillis())
-                .content(content)
-                .total(latest.total() - amount)
-                .build()
+    /**
+     * Runs {@code payment} in one database transaction, rolling it back if the payment fails.
+     */
+    private <T> T inTransaction(Payment<T> payment) throws InvalidAttributeValueException, InvalidPaymentException {
+        var failure = new Exception[1];
+        var result = transactionOperations.execute(
+            status -> {
+                try {
+                    return payment.run();
+                } catch (InvalidAttributeValueException | InvalidPaymentException e) {
+                    status.setRollbackOnly();
+                    failure[0] = e;
+                    return null;
+                }
+            }
         );
 
-        return coins.stream().mapToInt(i -> i).toArray();
+        if (failure[0] instanceof InvalidPaymentException) {
+            throw (InvalidPaymentException) failure[0];
+        }
+        if (failure[0] != null) {
+            throw (InvalidAttributeValueException) failure[0];
+        }
+
+        return result;
+    }
+
+    /**
+     * Waits a random time up to an exponentially growing bound, so retrying writers do not collide again in lockstep.
+     */
+    private void backoff(int attempt) {
+        var bound = Math.min(paymentConfig.getMaxBackoffMillis(), paymentConfig.getBackoffMillis() << Math.min(attempt, 20));
+        if (bound <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void validateCoins(int[] coins) throws InvalidAttributeValueException {
+        if (
+            coins == null ||
+            coins.length == 0 ||
+            Arrays.stream(coins).anyMatch(c -> c <= 0 || c > CoinCounts.MAX_DENOMINATION)
+        ) {
+            throw invalidInput("invalid coins");
+        }
+    }
+
+    private void validateWalletId(String walletId) throws InvalidAttributeValueException {
+        if (walletId == null || !walletId.matches(WalletRecord.WALLET_ID_PATTERN)) {
+            throw invalidInput("invalid wallet id");
+        }
+    }
+
+    /**
+     * Answers a payment whose key was already paid with the coins that payment left.
+     */
+    private CoinCounts repeated(long paidAmount, CoinCounts left, int amount) throws InvalidAttributeValueException {
+        if (paidAmount != amount) {
+            throw invalidInput("idempotency key already used for another amount");
+        }
+
+        return left;
+    }
+
+    private InvalidAttributeValueException invalidInput(String message) {
+        metrics.outcome(WalletMetrics.Outcome.INVALID_INPUT);
+
+        return new InvalidAttributeValueException(message);
+    }
+
+    private InvalidPaymentException insufficientFunds(CoinCounts coins) {
+        metrics.outcome(WalletMetrics.Outcome.INSUFFICIENT_FUNDS);
+
+        return new InvalidPaymentException("insufficient fund", coins);
+    }
+
+    @FunctionalInterface
+    private interface Payment<T> {
+        T run() throws InvalidAttributeValueException, InvalidPaymentException;
+    }
+
+    @FunctionalInterface
+    private interface Attempt<T> {
+        T run(boolean lockLatest) throws InvalidAttributeValueException, InvalidPaymentException;
     }
 }
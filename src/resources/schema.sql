@@ -1,7 +1,52 @@
 DROP TABLE IF EXISTS wallet;
 CREATE TABLE wallet(
-    version BIGINT PRIMARY KEY,
+    wallet_id VARCHAR(64),
+    version BIGINT,
     ts_millis BIGINT,
+    -- legacy comma separated coin list, superseded by counts
     content TEXT,
-    total BIGINT
-)
\ No newline at end of file
+    -- one unsigned varint per denomination 1..8
+    counts VARBINARY(80),
+    total BIGINT,
+    PRIMARY KEY (wallet_id, version)
+);
+
+DROP TABLE IF EXISTS wallet_event;
+CREATE TABLE wallet_event(
+    wallet_id VARCHAR(64),
+    version BIGINT,
+    ts_millis BIGINT,
+    -- amount paid to reach this version, 0 when the version has a snapshot in wallet
+    amount BIGINT,
+    total BIGINT,
+    -- key the client sent with the payment, if any
+    idempotency_key VARCHAR(64),
+    -- coin selection of the payment: 0 smallest first, 1 largest first, 2 best fit; null for snapshots
+    coin_selection INT,
+    PRIMARY KEY (wallet_id, version)
+);
+CREATE INDEX wallet_event_ts ON wallet_event(wallet_id, ts_millis);
+CREATE UNIQUE INDEX wallet_event_idempotency ON wallet_event(wallet_id, idempotency_key);
+
+DROP TABLE IF EXISTS wallet_archive;
+CREATE TABLE wallet_archive(
+    wallet_id VARCHAR(64),
+    -- newest version of the archived run
+    version BIGINT,
+    from_version BIGINT,
+    ts_millis BIGINT,
+    -- deflated events of the run with their idempotency keys and coin selections, and the counts of the versions
+    -- that had a snapshot
+    data BLOB,
+    PRIMARY KEY (wallet_id, version)
+);
+
+DROP TABLE IF EXISTS wallet_archive_key;
+CREATE TABLE wallet_archive_key(
+    wallet_id VARCHAR(64),
+    -- archived version the key paid
+    version BIGINT,
+    idempotency_key VARCHAR(64),
+    PRIMARY KEY (wallet_id, version)
+);
+CREATE UNIQUE INDEX wallet_archive_key_idempotency ON wallet_archive_key(wallet_id, idempotency_key);
@@ -0,0 +1,158 @@
+package com.jx.test.simplewallet.controller;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import com.jx.test.simplewallet.model.CoinCounts;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class TestWalletController {
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void cleanUp() {
+        jdbcTemplate.update("DELETE FROM wallet");
+        jdbcTemplate.update("DELETE FROM wallet_event");
+    }
+
+    @Test
+    void negotiatesCoinFormat() throws Exception {
+        mockMvc.perform(get("/wallet/c1/init").param("coins", "1", "1", "1", "5")).andExpect(status().isOk());
+
+        mockMvc
+            .perform(get("/wallet/c1/check"))
+            .andExpect(content().string("My current coins are [1, 1, 1, 5]"));
+        mockMvc
+            .perform(get("/wallet/c1/check").accept(MediaType.APPLICATION_JSON))
+            .andExpect(content().string("{\"1\":3,\"5\":1}"));
+
+        var binary = mockMvc
+            .perform(get("/wallet/c1/pay").param("amount", "2").accept(MediaType.APPLICATION_OCTET_STREAM))
+            .andExpect(status().isOk())
+            .andReturn()
+            .getResponse()
+            .getContentAsByteArray();
+        assertArrayEquals(CoinCounts.of(1, 5).toBytes(), binary);
+
+        mockMvc
+            .perform(get("/wallet/c1/pay").param("amount", "7").accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().isUnprocessableEntity())
+            .andExpect(content().string("{\"error\":\"insufficient fund\",\"coins\":{\"1\":1,\"5\":1}}"));
+        mockMvc
+            .perform(get("/wallet/c1/pay").param("amount", "0").accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest())
+            .andExpect(content().string("{\"error\":\"invalid amount\"}"));
+    }
+
+    @Test
+    void depositsIntoLiveWallet() throws Exception {
+        mockMvc.perform(get("/wallet/d1/init").param("coins", "1", "5")).andExpect(status().isOk());
+        mockMvc.perform(get("/wallet/d1/pay").param("amount", "1")).andExpect(status().isOk());
+
+        mockMvc
+            .perform(get("/wallet/d1/deposit").param("coins", "3", "1", "3"))
+            .andExpect(content().string("Successfully deposited 7\r\nMy current coins are [1, 3, 3, 5]"));
+        mockMvc
+            .perform(get("/wallet/d1/pay").param("amount", "2"))
+            .andExpect(content().string("Successfully paid 2\r\nMy current coins are [2, 3, 5]"));
+        mockMvc.perform(get("/wallet/d1/check")).andExpect(content().string("My current coins are [2, 3, 5]"));
+
+        mockMvc
+            .perform(get("/wallet/d2/deposit").param("coins", "1"))
+            .andExpect(content().string("Invalid request: wallet not initialised"));
+    }
+
+    @Test
+    void checkIsConditionalOnVersion() throws Exception {
+        mockMvc.perform(get("/wallet/e1/init").param("coins", "1", "5")).andExpect(status().isOk());
+
+        var etag = mockMvc
+            .perform(get("/wallet/e1/check"))
+            .andExpect(status().isOk())
+            .andExpect(content().string("My current coins are [1, 5]"))
+            .andReturn()
+            .getResponse()
+            .getHeader("ETag");
+        mockMvc
+            .perform(get("/wallet/e1/check").header("If-None-Match", etag))
+            .andExpect(status().isNotModified())
+            .andExpect(header().string("ETag", etag))
+            .andExpect(content().string(""));
+
+        var jsonEtag = mockMvc
+            .perform(get("/wallet/e1/check").accept(MediaType.APPLICATION_JSON))
+            .andReturn()
+            .getResponse()
+            .getHeader("ETag");
+        assertNotEquals(etag, jsonEtag);
+        mockMvc
+            .perform(get("/wallet/e1/check").accept(MediaType.APPLICATION_JSON).header("If-None-Match", jsonEtag))
+            .andExpect(status().isNotModified());
+
+        mockMvc.perform(get("/wallet/e1/pay").param("amount", "1")).andExpect(status().isOk());
+        mockMvc
+            .perform(get("/wallet/e1/check").header("If-None-Match", etag))
+            .andExpect(status().isOk())
+            .andExpect(content().string("My current coins are [5]"));
+    }
+
+    @Test
+    void feedsCommittedVersions() throws Exception {
+        mockMvc.perform(get("/wallet/f1/init").param("coins", "1", "2", "5")).andExpect(status().isOk());
+
+        var feed = mockMvc
+            .perform(get("/wallet/f1/feed").accept(MediaType.TEXT_EVENT_STREAM))
+            .andExpect(request().asyncStarted())
+            .andReturn()
+            .getResponse();
+        awaitContent(feed, "id:1\n");
+
+        mockMvc.perform(get("/wallet/f1/pay").param("amount", "1")).andExpect(status().isOk());
+        mockMvc.perform(get("/wallet/f1/pay").param("amount", "2")).andExpect(status().isOk());
+        awaitContent(feed, "id:3\n");
+        assertTrue(feed.getContentAsString().contains("\"version\":2,"));
+
+        var resumed = mockMvc
+            .perform(get("/wallet/f1/feed").header("Last-Event-ID", "1").accept(MediaType.TEXT_EVENT_STREAM))
+            .andExpect(request().asyncStarted())
+            .andReturn()
+            .getResponse();
+        awaitContent(resumed, "id:3\n");
+        assertFalse(resumed.getContentAsString().contains("id:1\n"));
+        assertTrue(resumed.getContentAsString().contains("id:2\n"));
+
+        mockMvc
+            .perform(get("/wallet/f1/feed").param("afterVersion", "-1").accept(MediaType.TEXT_EVENT_STREAM))
+            .andExpect(status().isBadRequest());
+    }
+
+    private static void awaitContent(MockHttpServletResponse response, String expected) throws Exception {
+        var deadline = System.currentTimeMillis() + 5000;
+        while (!response.getContentAsString().contains(expected)) {
+            assertTrue(System.currentTimeMillis() < deadline, "no " + expected + " in " + response.getContentAsString());
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.jx.test.simplewallet.controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest(
+    properties = {
+        "spring.datasource.url=jdbc:h2:mem:admission",
+        "wallet.admission.enabled=true",
+        "wallet.admission.wallet-rate=0.001",
+        "wallet.admission.wallet-burst=1",
+    }
+)
+@AutoConfigureMockMvc
+class TestWalletControllerAdmission {
+
+    @Autowired
+    MockMvc mockMvc;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void cleanUp() {
+        jdbcTemplate.update("DELETE FROM wallet");
+        jdbcTemplate.update("DELETE FROM wallet_event");
+    }
+
+    @Test
+    void shedsInTheEndpointFormat() throws Exception {
+        mockMvc.perform(get("/wallet/r1/init").param("coins", "1", "1", "5")).andExpect(status().isOk());
+        mockMvc.perform(get("/wallet/r1/pay").param("amount", "1")).andExpect(status().isOk());
+
+        mockMvc
+            .perform(get("/wallet/r1/pay").param("amount", "1").accept(MediaType.APPLICATION_JSON))
+            .andExpect(status().isTooManyRequests())
+            .andExpect(header().exists("Retry-After"))
+            .andExpect(content().contentType(MediaType.APPLICATION_JSON))
+            .andExpect(content().string("{\"error\":\"wallet rate limit exceeded\"}"));
+
+        var binary = mockMvc
+            .perform(get("/wallet/r1/pay").param("amount", "1").accept(MediaType.APPLICATION_OCTET_STREAM))
+            .andExpect(status().isTooManyRequests())
+            .andExpect(content().contentType(MediaType.APPLICATION_OCTET_STREAM))
+            .andReturn()
+            .getResponse()
+            .getContentAsByteArray();
+        assertEquals(0, binary.length);
+
+        mockMvc
+            .perform(get("/wallet/r1/pay").param("amount", "1"))
+            .andExpect(status().isTooManyRequests())
+            .andExpect(content().string("Too many requests: wallet rate limit exceeded"));
+    }
+}
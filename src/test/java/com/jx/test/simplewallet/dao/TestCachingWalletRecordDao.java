@@ -0,0 +1,204 @@
+package com.jx.test.simplewallet.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.InvalidAttributeValueException;
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+import mockit.integration.junit5.JMockitExtension;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+@ExtendWith(JMockitExtension.class)
+class TestCachingWalletRecordDao {
+
+    private static WalletRecord record(long version, int... coins) {
+        var counts = CoinCounts.of(coins);
+
+        return WalletRecord.builder().walletId("w1").version(version).counts(counts).total(counts.total()).build();
+    }
+
+    @Test
+    void servesRepeatedReadsFromCache(@Mocked WalletRecordDao storage) {
+        var stored = record(1, 1, 2);
+        new Expectations() {
+            {
+                storage.latest("w1");
+                result = stored;
+            }
+        };
+
+        var cache = new CachingWalletRecordDao(storage, new WalletProperties());
+
+        assertSame(stored, cache.latest("w1"));
+        assertSame(stored, cache.latest("w1"));
+
+        new Verifications() {
+            {
+                storage.latest("w1");
+                times = 1;
+            }
+        };
+    }
+
+    @Test
+    void writesReplaceCachedRecord(@Mocked WalletRecordDao storage) throws InvalidAttributeValueException {
+        var cache = new CachingWalletRecordDao(storage, new WalletProperties());
+
+        cache.init(record(1, 1, 2));
+        cache.insert(record(2, 2));
+
+        assertEquals(2, cache.latest("w1").version());
+
+        new Verifications() {
+            {
+                storage.latest(anyString);
+                times = 0;
+            }
+        };
+    }
+
+    @Test
+    void failedWriteEvicts(@Mocked WalletRecordDao storage) throws InvalidAttributeValueException {
+        var cache = new CachingWalletRecordDao(storage, new WalletProperties());
+        cache.init(record(1, 1, 2));
+
+        new Expectations() {
+            {
+                storage.insert((WalletRecord) any);
+                result = new InvalidAttributeValueException("version already updated");
+                storage.latest("w1");
+                result = record(3, 1);
+            }
+        };
+
+        assertThrows(InvalidAttributeValueException.class, () -> cache.insert(record(2, 2)));
+        assertEquals(3, cache.latest("w1").version());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed(@Mocked WalletRecordDao storage) {
+        var properties = new WalletProperties();
+        properties.getCache().setMaxEntries(2);
+        var cache = new CachingWalletRecordDao(storage, properties);
+
+        cache.latest("w1");
+        cache.latest("w2");
+        cache.latest("w1");
+        cache.latest("w3");
+        cache.latest("w1");
+        cache.latest("w2");
+
+        new Verifications() {
+            {
+                storage.latest("w1");
+                times = 1;
+                storage.latest("w2");
+                times = 2;
+            }
+        };
+    }
+
+    @Test
+    void concurrentMissesShareOneRead() throws InterruptedException {
+        var reads = new AtomicInteger();
+        var release = new CountDownLatch(1);
+        var cache = new CachingWalletRecordDao(
+            new WalletRecordDao() {
+                @Override
+                public void insert(WalletRecord newRecord) {}
+
+                @Override
+                public void insertBatch(List<WalletRecord> newRecords) {}
+
+                @Override
+                public void init(WalletRecord initRecord) {}
+
+                @Override
+                public WalletRecord asOf(String walletId, long tsMillis) {
+                    return null;
+                }
+
+                @Override
+                public long countVersions() {
+                    return 0;
+                }
+
+                @Override
+                public WalletRecord latest(String walletId) {
+                    reads.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return record(1, 1);
+                }
+            },
+            new WalletProperties()
+        );
+
+        var pool = Executors.newFixedThreadPool(8);
+        for (var i = 0; i < 8; i++) {
+            pool.execute(() -> cache.latest("w1"));
+        }
+        Thread.sleep(100);
+        release.countDown();
+        pool.shutdown();
+        pool.awaitTermination(5, TimeUnit.SECONDS);
+
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    void servesRecentVersionsAsOfFromMemory(@Mocked WalletRecordDao storage) throws InvalidAttributeValueException {
+        var properties = new WalletProperties();
+        properties.getCache().setRecentVersions(3);
+        var cache = new CachingWalletRecordDao(storage, properties);
+
+        var counts = CoinCounts.of(1, 2, 3, 4);
+        cache.init(WalletRecord.builder().walletId("w1").version(1).tsMillis(10).counts(counts).build());
+        for (var version = 2; version <= 5; version++) {
+            counts = counts.pay(1);
+            cache.insert(WalletRecord.builder().walletId("w1").version(version).tsMillis(version * 10).counts(counts).build());
+        }
+
+        new Expectations() {
+            {
+                storage.asOf("w1", (long[]) any);
+                result = Collections.singletonList(null);
+            }
+        };
+
+        assertEquals(3, cache.asOf("w1", 35).version());
+        assertEquals(5, cache.asOf("w1", 1000).version());
+        cache.asOf("w1", 25);
+
+        var records = cache.asOf("w1", new long[] { 50, 15, 40 });
+        assertEquals(5, records.get(0).version());
+        assertNull(records.get(1));
+        assertEquals(4, records.get(2).version());
+
+        new Verifications() {
+            {
+                storage.asOf("w1", 25);
+                times = 1;
+                storage.asOf("w1", new long[] { 15 });
+                times = 1;
+            }
+        };
+    }
+}
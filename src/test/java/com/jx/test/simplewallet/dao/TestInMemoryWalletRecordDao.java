@@ -0,0 +1,136 @@
+package com.jx.test.simplewallet.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.InvalidAttributeValueException;
+import org.junit.jupiter.api.Test;
+
+class TestInMemoryWalletRecordDao {
+
+    @Test
+    void rejectsLikeDatabaseStorage() throws Exception {
+        var dao = new InMemoryWalletRecordDao();
+        dao.init(record("w1", 1, 100, 0, 3));
+        dao.init(record("w2", 1, 100, 0, 3));
+
+        assertThrows(InvalidAttributeValueException.class, () -> dao.init(record("w1", 1, 100, 0, 1)));
+        assertThrows(InvalidAttributeValueException.class, () -> dao.insert(record("w3", 2, 100, 1, 1)));
+        assertThrows(InvalidAttributeValueException.class, () -> dao.insert(record("w1", 3, 100, 1, 1)));
+
+        dao.insert(record("w1", 2, 101, 1, 2).toBuilder().idempotencyKey("k1").build());
+        assertThrows(VersionConflictException.class, () -> dao.insert(record("w1", 2, 102, 2, 1)));
+        assertThrows(
+            VersionConflictException.class,
+            () -> dao.insert(record("w1", 3, 102, 2).toBuilder().idempotencyKey("k1").build())
+        );
+
+        // the batch fails on w1 after publishing w2, which must not stay behind
+        assertThrows(
+            VersionConflictException.class,
+            () -> dao.insertBatch(List.of(record("w2", 2, 103, 1, 2), record("w1", 2, 103, 2)))
+        );
+        assertEquals(1, dao.latest("w2").version());
+        assertEquals(3, dao.countVersions());
+
+        var paid = dao.findByIdempotencyKey("w1", "k1");
+        assertEquals(2, paid.version());
+        assertEquals(1, paid.amount());
+        assertNull(dao.findByIdempotencyKey("w2", "k1"));
+    }
+
+    @Test
+    void readsPackedVersions() throws Exception {
+        var dao = new InMemoryWalletRecordDao();
+        dao.init(record("w1", 1, 1000, 0, 1, 1, 1));
+        // enough chunks for the packed storage to grow twice
+        var versions = InMemoryWalletRecordDao.CHUNK * 9 + 5;
+        for (var version = 2; version <= versions; version++) {
+            var coins = new int[version % 5];
+            Arrays.fill(coins, 1);
+            dao.insert(record("w1", version, 1000 + 10L * version, 1, coins));
+        }
+
+        assertEquals(versions, dao.latest("w1").version());
+        assertNull(dao.asOf("w1", 999));
+        for (var version = 1; version <= versions; version++) {
+            var found = dao.asOf("w1", 1000 + 10L * version + 5);
+            assertEquals(version, found.version());
+            assertEquals(version == 1 ? 3 : version % 5, found.total());
+        }
+    }
+
+    @Test
+    void concurrentWritersEachWinOnce() throws Exception {
+        var dao = new InMemoryWalletRecordDao();
+        dao.init(record("w1", 1, 0, 0, 1));
+        dao.init(record("w2", 1, 0, 0, 1));
+
+        var wins = new AtomicLong();
+        var executor = Executors.newFixedThreadPool(8);
+        var futures = new ArrayList<Future<?>>();
+        for (var t = 0; t < 8; t++) {
+            var across = t % 2 == 0;
+            futures.add(
+                executor.submit(
+                    () -> {
+                        for (var i = 0; i < 2000; i++) {
+                            try {
+                                var w1 = dao.latest("w1").version() + 1;
+                                if (across) {
+                                    var w2 = dao.latest("w2").version() + 1;
+                                    dao.insertBatch(List.of(record("w1", w1, w1, 0, 1), record("w2", w2, w2, 0, 1)));
+                                    wins.addAndGet(2);
+                                } else {
+                                    dao.insert(record("w1", w1, w1, 0, 1));
+                                    wins.incrementAndGet();
+                                }
+                            } catch (VersionConflictException e) {
+                                // lost the race
+                            } catch (InvalidAttributeValueException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        }
+                        return null;
+                    }
+                )
+            );
+        }
+        for (var future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        assertEquals(wins.get() + 2, dao.countVersions());
+        assertEquals(dao.countVersions(), dao.latest("w1").version() + dao.latest("w2").version());
+        for (var version = 1L; version <= dao.latest("w1").version(); version++) {
+            assertEquals(version, dao.asOf("w1", version).version());
+        }
+    }
+
+    private static WalletRecord record(String walletId, long version, long tsMillis, long amount, int... coins) {
+        var counts = CoinCounts.of(coins);
+
+        return WalletRecord
+            .builder()
+            .walletId(walletId)
+            .version(version)
+            .tsMillis(tsMillis)
+            .amount(amount)
+            .counts(counts)
+            .total(counts.total())
+            .build();
+    }
+}
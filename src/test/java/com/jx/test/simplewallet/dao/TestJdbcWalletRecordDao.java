@@ -0,0 +1,124 @@
+package com.jx.test.simplewallet.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.InvalidAttributeValueException;
+import mockit.Invocation;
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.integration.junit5.JMockitExtension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+@ExtendWith(JMockitExtension.class)
+@ActiveProfiles(StorageProfiles.JDBC)
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:jdbcdao")
+class TestJdbcWalletRecordDao {
+
+    @Autowired
+    @Qualifier("walletStorage")
+    WalletRecordDao walletRecordDao;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void cleanUp() {
+        jdbcTemplate.update("DELETE FROM wallet");
+        jdbcTemplate.update("DELETE FROM wallet_event");
+    }
+
+    @Test
+    void storesVersionsLikeJpa() throws Exception {
+        assertTrue(walletRecordDao instanceof JdbcWalletRecordDao);
+
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 30);
+        walletRecordDao.init(record(1, 100, 0, counts));
+        assertThrows(InvalidAttributeValueException.class, () -> walletRecordDao.init(record(1, 100, 0, counts)));
+
+        var batch = new ArrayList<WalletRecord>();
+        var paid = counts;
+        for (var version = 2; version <= 25; version++) {
+            paid = paid.pay(1);
+            batch.add(record(version, 100 + version, 1, paid));
+        }
+        walletRecordDao.insertBatch(batch);
+
+        var latest = walletRecordDao.latest("j1");
+        assertEquals(25, latest.version());
+        assertEquals(paid.total(), latest.total());
+        assertEquals(paid.total(), latest.counts().total());
+        assertEquals(25, walletRecordDao.countVersions());
+        assertEquals(12, walletRecordDao.asOf("j1", 112).version());
+        assertNull(walletRecordDao.asOf("j1", 99));
+
+        var next = paid.pay(2);
+        walletRecordDao.insert(record(26, 200, 2, next).toBuilder().idempotencyKey("k1").build());
+        assertThrows(VersionConflictException.class, () -> walletRecordDao.insert(record(26, 201, 2, next)));
+        assertThrows(InvalidAttributeValueException.class, () -> walletRecordDao.insert(record(28, 201, 2, next)));
+
+        var found = walletRecordDao.findByIdempotencyKey("j1", "k1");
+        assertEquals(26, found.version());
+        assertEquals(2, found.amount());
+    }
+
+    @Test
+    void rollsBackFailedBatch() throws Exception {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 30);
+        walletRecordDao.init(record(1, 100, 0, counts));
+
+        assertThrows(
+            InvalidAttributeValueException.class,
+            () -> walletRecordDao.insertBatch(List.of(record(2, 101, 1, counts.pay(1)), record(4, 102, 1, counts.pay(2))))
+        );
+        assertEquals(1, walletRecordDao.latest("j1").version());
+    }
+
+    @Test
+    void latestIgnoresSnapshotWrittenWhileReading() throws Exception {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 30);
+        walletRecordDao.init(record(1, 100, 0, counts));
+        walletRecordDao.insert(record(2, 101, 1, counts.pay(1)));
+
+        var deposited = counts.pay(1).plus(CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 1));
+        new MockUp<JdbcWalletRecordDao>() {
+            @Mock
+            Long latestVersion(Invocation invocation, String walletId) throws Exception {
+                Long version = invocation.proceed();
+                walletRecordDao.insert(record(3, 102, -1, deposited));
+                return version;
+            }
+        };
+
+        var latest = walletRecordDao.latest("j1");
+        assertEquals(2, latest.version());
+        assertEquals(counts.pay(1), latest.counts());
+        assertEquals(3, walletRecordDao.countVersions());
+    }
+
+    private static WalletRecord record(long version, long tsMillis, long amount, CoinCounts counts) {
+        return WalletRecord
+            .builder()
+            .walletId("j1")
+            .version(version)
+            .tsMillis(tsMillis)
+            .amount(amount)
+            .counts(counts)
+            .total(counts.total())
+            .build();
+    }
+}
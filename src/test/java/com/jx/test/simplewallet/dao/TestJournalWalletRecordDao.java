@@ -0,0 +1,122 @@
+package com.jx.test.simplewallet.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.List;
+import javax.management.InvalidAttributeValueException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TestJournalWalletRecordDao {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoversLatestVersionsAfterRestart() throws Exception {
+        var path = dir.resolve("wallet.journal");
+        var dao = new JournalWalletRecordDao(path, SEGMENT_BYTES, JournalSync.GROUP, 1);
+        dao.init(record("w1", 1, 100, 0, 1, 2, 3));
+        dao.init(record("w2", 1, 100, 0, 5));
+        // enough versions to spill into later segments
+        for (var version = 2; version <= 200; version++) {
+            dao.insert(record("w1", version, 100 + version, 0, 1, 2, 3));
+        }
+        dao.insertBatch(List.of(record("w2", 2, 300, 2, 3), record("w2", 3, 301, 2, 1)));
+        dao.close();
+
+        var recovered = new JournalWalletRecordDao(path, SEGMENT_BYTES, JournalSync.NONE, 1);
+        assertEquals(200, recovered.latest("w1").version());
+        assertEquals(3, recovered.latest("w2").version());
+        assertEquals(1, recovered.latest("w2").total());
+        assertEquals(203, recovered.countVersions());
+        assertEquals(150, recovered.asOf("w1", 250).version());
+        assertNull(recovered.asOf("w2", 99));
+        recovered.close();
+    }
+
+    @Test
+    void dropsTornFrameOnRecovery() throws Exception {
+        var path = dir.resolve("wallet.journal");
+        var dao = new JournalWalletRecordDao(path, SEGMENT_BYTES, JournalSync.ALWAYS, 1);
+        dao.init(record("w1", 1, 100, 0, 1, 2));
+        dao.insert(record("w1", 2, 101, 1, 2));
+        dao.close();
+
+        // corrupt the last written byte, which belongs to the second frame
+        try (var file = new RandomAccessFile(path.toFile(), "rw")) {
+            var bytes = new byte[SEGMENT_BYTES];
+            file.readFully(bytes);
+            var last = bytes.length - 1;
+            while (bytes[last] == 0) {
+                last--;
+            }
+            file.seek(last);
+            file.write(bytes[last] ^ 0xff);
+        }
+
+        var recovered = new JournalWalletRecordDao(path, SEGMENT_BYTES, JournalSync.ALWAYS, 1);
+        assertEquals(1, recovered.latest("w1").version());
+        assertEquals(1, recovered.countVersions());
+
+        recovered.insert(record("w1", 2, 102, 2, 1));
+        recovered.close();
+
+        var reopened = new JournalWalletRecordDao(path, SEGMENT_BYTES, JournalSync.ALWAYS, 1);
+        assertEquals(2, reopened.latest("w1").version());
+        assertEquals(1, reopened.latest("w1").total());
+        reopened.close();
+    }
+
+    @Test
+    void rejectsLikeDatabaseStorage() throws Exception {
+        var dao = new JournalWalletRecordDao(dir.resolve("wallet.journal"), SEGMENT_BYTES, JournalSync.NONE, 1);
+        dao.init(record("w1", 1, 100, 0, 1, 2));
+
+        assertThrows(InvalidAttributeValueException.class, () -> dao.init(record("w1", 1, 100, 0, 1)));
+        assertThrows(InvalidAttributeValueException.class, () -> dao.insert(record("w2", 2, 100, 1, 1)));
+        assertThrows(InvalidAttributeValueException.class, () -> dao.insert(record("w1", 3, 100, 1, 1)));
+
+        dao.insert(record("w1", 2, 101, 1, 2).toBuilder().idempotencyKey("k1").build());
+        assertThrows(VersionConflictException.class, () -> dao.insert(record("w1", 2, 102, 2, 1)));
+        assertThrows(
+            VersionConflictException.class,
+            () -> dao.insert(record("w1", 3, 102, 2).toBuilder().idempotencyKey("k1").build())
+        );
+        // a failed batch leaves nothing behind
+        assertThrows(
+            VersionConflictException.class,
+            () -> dao.insertBatch(List.of(record("w1", 3, 103, 2), record("w1", 3, 103, 2)))
+        );
+        assertEquals(2, dao.latest("w1").version());
+
+        var paid = dao.findByIdempotencyKey("w1", "k1");
+        assertEquals(2, paid.version());
+        assertEquals(1, paid.amount());
+        assertEquals("k1", paid.idempotencyKey());
+        dao.close();
+    }
+
+    private static WalletRecord record(String walletId, long version, long tsMillis, long amount, int... coins) {
+        var counts = CoinCounts.of(coins);
+
+        return WalletRecord
+            .builder()
+            .walletId(walletId)
+            .version(version)
+            .tsMillis(tsMillis)
+            .amount(amount)
+            .counts(counts)
+            .total(counts.total())
+            .build();
+    }
+}
@@ -1,9 +1,18 @@
 package com.jx.test.simplewallet.dao;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.CoinSelection;
+import com.jx.test.simplewallet.model.HistoryQuery;
+import com.jx.test.simplewallet.model.WalletArchive;
 import com.jx.test.simplewallet.model.WalletRecord;
+import com.jx.test.simplewallet.model.WalletRecordId;
+import java.util.ArrayList;
 import javax.management.InvalidAttributeValueException;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -26,6 +35,12 @@ class TestWalletRecordDao {
     @Autowired
     WalletRecordDao walletRecordDao;
 
+    @Autowired
+    WalletRecordDaoH2Impl walletRecordDaoH2Impl;
+
+    @Autowired
+    WalletHistoryDao walletHistoryDao;
+
     @PersistenceContext
     private EntityManager entityManager;
 
@@ -33,12 +48,16 @@ class TestWalletRecordDao {
     @AfterEach
     void cleanUp() {
         entityManager.createNativeQuery("DELETE FROM wallet").executeUpdate();
+        entityManager.createNativeQuery("DELETE FROM wallet_event").executeUpdate();
+        entityManager.createNativeQuery("DELETE FROM wallet_archive").executeUpdate();
+        entityManager.createNativeQuery("DELETE FROM wallet_archive_key").executeUpdate();
     }
 
     @Test
     void canInit() {
         var record = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content("2,3,1,2,1")
@@ -52,6 +71,7 @@ class TestWalletRecordDao {
     void cannotReinit() {
         var record = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content("2,3,1,2,1")
@@ -72,6 +92,7 @@ class TestWalletRecordDao {
     void cannotInitWithNegativeValues() {
         var record = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content("-2")
@@ -101,6 +122,7 @@ class TestWalletRecordDao {
     void cannotInitWithInvalidContent(String content) {
         var record = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content(content)
@@ -119,6 +141,7 @@ class TestWalletRecordDao {
     void cannotInitWithNullContent() {
         var record = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content(null)
@@ -138,6 +161,7 @@ class TestWalletRecordDao {
     void cannotInitWithInvalidVersion(int version) {
         var record = WalletRecord
             .builder()
+            .walletId("w1")
             .version(version)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -156,6 +180,7 @@ class TestWalletRecordDao {
     void insertWithCorrectVersion() {
         var record1 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -164,6 +189,7 @@ class TestWalletRecordDao {
 
         var record2 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(2)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -172,6 +198,7 @@ class TestWalletRecordDao {
 
         var record3 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(3)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -192,6 +219,7 @@ class TestWalletRecordDao {
     void insertWithWrongVersion(long version) {
         var record1 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -200,6 +228,7 @@ class TestWalletRecordDao {
 
         var record2 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(2)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -208,6 +237,7 @@ class TestWalletRecordDao {
 
         var record3 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(version)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -229,6 +259,7 @@ class TestWalletRecordDao {
     void cannotInsertWithInvalidContent(String content) {
         var record1 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -237,6 +268,7 @@ class TestWalletRecordDao {
 
         var record2 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(2)
             .tsMillis(System.currentTimeMillis())
             .content(content)
@@ -257,6 +289,7 @@ class TestWalletRecordDao {
     void cannotInsertWithNullContent() {
         var record1 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(1)
             .tsMillis(System.currentTimeMillis())
             .content("1")
@@ -265,6 +298,7 @@ class TestWalletRecordDao {
 
         var record2 = WalletRecord
             .builder()
+            .walletId("w1")
             .version(2)
             .tsMillis(System.currentTimeMillis())
             .content(null)
@@ -280,4 +314,494 @@ class TestWalletRecordDao {
             }
         );
     }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "", "a b", "w/1", "w1;" })
+    void cannotInitWithInvalidWalletId(String walletId) {
+        var record = WalletRecord
+            .builder()
+            .walletId(walletId)
+            .version(1)
+            .tsMillis(System.currentTimeMillis())
+            .content("1")
+            .total(1)
+            .build();
+
+        assertThrows(InvalidAttributeValueException.class, () -> walletRecordDao.init(record));
+    }
+
+    @Test
+    void walletsHaveIndependentVersions() {
+        var first = WalletRecord
+            .builder()
+            .walletId("w1")
+            .version(1)
+            .tsMillis(System.currentTimeMillis())
+            .content("1,2")
+            .total(3)
+            .build();
+
+        var second = WalletRecord
+            .builder()
+            .walletId("w2")
+            .version(1)
+            .tsMillis(System.currentTimeMillis())
+            .content("5")
+            .total(5)
+            .build();
+
+        var firstNext = WalletRecord
+            .builder()
+            .walletId("w1")
+            .version(2)
+            .tsMillis(System.currentTimeMillis())
+            .content("2")
+            .total(2)
+            .build();
+
+        assertDoesNotThrow(
+            () -> {
+                walletRecordDao.init(first);
+                walletRecordDao.init(second);
+                walletRecordDao.insert(firstNext);
+            }
+        );
+
+        assertEquals(2, walletRecordDao.latest("w1").version());
+        assertEquals(CoinCounts.of(2), walletRecordDao.latest("w1").counts());
+        assertEquals(1, walletRecordDao.latest("w2").version());
+        assertNull(walletRecordDao.latest("w3"));
+    }
+
+    @Test
+    void latestDecodesCounts() {
+        var record = WalletRecord
+            .builder()
+            .walletId("w1")
+            .version(1)
+            .tsMillis(System.currentTimeMillis())
+            .counts(CoinCounts.ofCounts(300, 0, 2, 0, 0, 0, 0, 1))
+            .total(314)
+            .build();
+
+        assertDoesNotThrow(() -> walletRecordDao.init(record));
+
+        var latest = walletRecordDao.latest("w1");
+        assertEquals(CoinCounts.ofCounts(300, 0, 2, 0, 0, 0, 0, 1), latest.counts());
+        assertNull(latest.content());
+    }
+
+    @Test
+    void migratesLegacyContent() {
+        walletRecordDaoH2Impl.addCountsColumn();
+
+        entityManager
+            .createNativeQuery("INSERT INTO wallet (wallet_id, version, ts_millis, content, total) VALUES (?,?,?,?,?)")
+            .setParameter(1, "w1")
+            .setParameter(2, 1)
+            .setParameter(3, System.currentTimeMillis())
+            .setParameter(4, "1,1,2,5")
+            .setParameter(5, 9)
+            .executeUpdate();
+
+        assertEquals(CoinCounts.of(1, 1, 2, 5), walletRecordDao.latest("w1").counts());
+
+        assertEquals(1, walletRecordDaoH2Impl.migrateLegacyContent(10));
+        assertEquals(0, walletRecordDaoH2Impl.migrateLegacyContent(10));
+
+        var latest = walletRecordDao.latest("w1");
+        assertNull(latest.content());
+        assertEquals(CoinCounts.of(1, 1, 2, 5), latest.counts());
+    }
+
+    @Test
+    void paymentsOnlyAppendEvents() throws InvalidAttributeValueException {
+        var counts = CoinCounts.of(1, 1, 2, 3, 3);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+
+        for (var version = 2; version <= 5; version++) {
+            counts = counts.pay(2);
+            walletRecordDao.insert(
+                WalletRecord
+                    .builder()
+                    .walletId("w1")
+                    .version(version)
+                    .tsMillis(version)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(2)
+                    .build()
+            );
+        }
+
+        var snapshots = entityManager.createNativeQuery("SELECT COUNT(*) FROM wallet").getSingleResult();
+        assertEquals(1, ((Number) snapshots).intValue());
+
+        var latest = walletRecordDao.latest("w1");
+        assertEquals(5, latest.version());
+        assertEquals(5, latest.tsMillis());
+        assertEquals(CoinCounts.of(2), latest.counts());
+        assertEquals(2, latest.total());
+    }
+
+    @Test
+    void replaysEventsWithTheirCoinSelection() throws InvalidAttributeValueException {
+        var counts = CoinCounts.of(1, 1, 2, 5, 8, 8);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+
+        var expected = new ArrayList<CoinCounts>();
+        expected.add(counts);
+        var selections = CoinSelection.values();
+        for (var version = 2; version <= 7; version++) {
+            var selection = selections[version % selections.length];
+            counts = selection.pay(counts, 3);
+            expected.add(counts);
+            walletRecordDao.insert(
+                WalletRecord
+                    .builder()
+                    .walletId("w1")
+                    .version(version)
+                    .tsMillis(version)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(3)
+                    .coinSelection(selection)
+                    .build()
+            );
+        }
+
+        assertEquals(counts, walletRecordDao.latest("w1").counts());
+        assertEquals(expected.get(3), walletRecordDao.asOf("w1", 4).counts());
+
+        var replayed = new ArrayList<CoinCounts>();
+        walletHistoryDao.forEachVersion("w1", HistoryQuery.builder().build(), record -> replayed.add(record.counts()));
+        assertEquals(expected, replayed);
+    }
+
+    @Test
+    void snapshotsEveryInterval() throws InvalidAttributeValueException {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 300);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+
+        for (var version = 2; version <= 250; version++) {
+            counts = counts.pay(3);
+            walletRecordDao.insert(
+                WalletRecord
+                    .builder()
+                    .walletId("w1")
+                    .version(version)
+                    .tsMillis(version)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(3)
+                    .build()
+            );
+        }
+
+        var snapshots = entityManager.createNativeQuery("SELECT COUNT(*) FROM wallet").getSingleResult();
+        assertEquals(3, ((Number) snapshots).intValue());
+        assertEquals(counts, walletRecordDao.latest("w1").counts());
+        assertEquals(2400 - 3 * 249, walletRecordDao.latest("w1").total());
+    }
+
+    @Test
+    void duplicateVersionIsConflict() throws InvalidAttributeValueException {
+        var counts = CoinCounts.of(1, 2);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+
+        var next = WalletRecord
+            .builder()
+            .walletId("w1")
+            .version(2)
+            .tsMillis(2)
+            .counts(counts.pay(1))
+            .total(2)
+            .amount(1)
+            .build();
+        walletRecordDao.insert(next);
+
+        assertThrows(VersionConflictException.class, () -> walletRecordDao.insert(next));
+    }
+
+    @Test
+    void latestForUpdate() throws InvalidAttributeValueException {
+        var counts = CoinCounts.of(1, 2);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+
+        assertEquals(counts, walletRecordDao.latestForUpdate("w1").counts());
+        assertNull(walletRecordDao.latestForUpdate("w2"));
+    }
+
+    @Test
+    void insertBatchChainsVersions() throws InvalidAttributeValueException {
+        var counts = CoinCounts.of(1, 2, 3);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+
+        var records = new ArrayList<WalletRecord>();
+        for (var version = 2; version <= 4; version++) {
+            counts = counts.pay(1);
+            records.add(
+                WalletRecord
+                    .builder()
+                    .walletId("w1")
+                    .version(version)
+                    .tsMillis(version)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(1)
+                    .build()
+            );
+        }
+        walletRecordDao.insertBatch(records);
+
+        assertEquals(4, walletRecordDao.latest("w1").version());
+        assertEquals(CoinCounts.of(3), walletRecordDao.latest("w1").counts());
+    }
+
+    @Test
+    void archivesHistoryBeforeRetainedSnapshot() throws InvalidAttributeValueException {
+        var initial = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 300);
+        var counts = initial;
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+        for (var version = 2; version <= 250; version++) {
+            var selection = version % 2 == 0 ? CoinSelection.LARGEST_FIRST : CoinSelection.SMALLEST_FIRST;
+            counts = selection.pay(counts, 3);
+            walletRecordDao.insert(
+                WalletRecord
+                    .builder()
+                    .walletId("w1")
+                    .version(version)
+                    .tsMillis(version)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(3)
+                    .idempotencyKey("k" + version)
+                    .coinSelection(selection)
+                    .build()
+            );
+        }
+
+        // version 191 is the first one kept, so everything before the snapshot at 100 goes
+        assertEquals(40, walletRecordDaoH2Impl.archiveHistory("w1", 60, Long.MAX_VALUE, 40));
+        assertEquals(40, walletRecordDaoH2Impl.archiveHistory("w1", 60, Long.MAX_VALUE, 40));
+        assertEquals(19, walletRecordDaoH2Impl.archiveHistory("w1", 60, Long.MAX_VALUE, 40));
+        assertEquals(0, walletRecordDaoH2Impl.archiveHistory("w1", 60, Long.MAX_VALUE, 40));
+
+        assertEquals(151, walletRecordDao.countVersions());
+        assertEquals(counts, walletRecordDao.latest("w1").counts());
+
+        var archive = entityManager.find(WalletArchive.class, new WalletRecordId("w1", 40));
+        var records = archive.records();
+        assertEquals(40, records.size());
+        assertEquals(1, records.get(0).version());
+        assertEquals(initial, records.get(0).counts());
+        assertEquals(3, records.get(1).amount());
+        assertNull(records.get(1).counts());
+        assertEquals("k2", records.get(1).idempotencyKey());
+        assertEquals(CoinSelection.LARGEST_FIRST, records.get(1).coinSelection());
+        assertEquals(CoinSelection.SMALLEST_FIRST, records.get(2).coinSelection());
+
+        var archived = walletRecordDao.findByIdempotencyKey("w1", "k2");
+        assertEquals(2, archived.version());
+        assertEquals(3, archived.amount());
+        assertEquals(CoinSelection.LARGEST_FIRST.pay(initial, 3), archived.counts());
+        assertEquals(99, walletRecordDao.findByIdempotencyKey("w1", "k99").version());
+
+        counts = counts.pay(3);
+        walletRecordDao.insert(
+            WalletRecord
+                .builder()
+                .walletId("w1")
+                .version(251)
+                .tsMillis(251)
+                .counts(counts)
+                .total(counts.total())
+                .amount(3)
+                .build()
+        );
+        assertEquals(251, walletRecordDao.latest("w1").version());
+    }
+
+    @Test
+    void retainsVersionsWrittenSinceCutoff() throws InvalidAttributeValueException {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 30);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+        for (var version = 2; version <= 20; version++) {
+            counts = counts.pay(3);
+            walletRecordDao.insert(
+                WalletRecord
+                    .builder()
+                    .walletId("w1")
+                    .version(version)
+                    .tsMillis(version)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(version == 10 ? 0 : 3)
+                    .build()
+            );
+        }
+
+        // version 10 has a snapshot and is retained by age, the count limit alone would keep only 20
+        assertEquals(9, walletRecordDaoH2Impl.archiveHistory("w1", 1, 10, 1000));
+        assertEquals(0, walletRecordDaoH2Impl.archiveHistory("w1", 1, 10, 1000));
+        assertEquals(counts, walletRecordDao.latest("w1").counts());
+    }
+
+    @Test
+    void historyReplaysVersionsInPages() throws InvalidAttributeValueException {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 300);
+        var expected = new ArrayList<CoinCounts>();
+        expected.add(counts);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+        for (var version = 2; version <= 250; version++) {
+            counts = counts.pay(3);
+            expected.add(counts);
+            walletRecordDao.insert(
+                WalletRecord
+                    .builder()
+                    .walletId("w1")
+                    .version(version)
+                    .tsMillis(version * 10)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(3)
+                    .build()
+            );
+        }
+
+        var page = new ArrayList<WalletRecord>();
+        assertEquals(
+            100,
+            walletHistoryDao.forEachVersion("w1", HistoryQuery.builder().afterVersion(120).limit(100).build(), page::add)
+        );
+        assertEquals(121, page.get(0).version());
+        assertEquals(220, page.get(99).version());
+        for (var record : page) {
+            assertEquals(expected.get((int) record.version() - 1), record.counts());
+            assertEquals(record.counts().total(), record.total());
+        }
+
+        var inTime = new ArrayList<WalletRecord>();
+        walletHistoryDao.forEachVersion(
+            "w1",
+            HistoryQuery.builder().fromMillis(2495).toMillis(2600).build(),
+            inTime::add
+        );
+        assertEquals(1, inTime.size());
+        assertEquals(250, inTime.get(0).version());
+        assertEquals(counts, inTime.get(0).counts());
+
+        var window = new ArrayList<WalletRecord>();
+        var between = HistoryQuery.builder().fromMillis(1000).toMillis(1205).build();
+        assertEquals(21, walletHistoryDao.forEachVersion("w1", between, window::add));
+        assertEquals(100, window.get(0).version());
+        assertEquals(120, window.get(20).version());
+        assertEquals(expected.get(119), window.get(20).counts());
+
+        assertEquals(0, walletHistoryDao.forEachVersion("w2", HistoryQuery.builder().build(), record -> {}));
+    }
+
+    @Test
+    void asOfFindsVersionByTimestamp() throws InvalidAttributeValueException {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 300);
+        var expected = new ArrayList<CoinCounts>();
+        expected.add(counts);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(10).counts(counts).total(counts.total()).build()
+        );
+        for (var version = 2; version <= 250; version++) {
+            counts = counts.pay(3);
+            expected.add(counts);
+            walletRecordDao.insert(
+                WalletRecord
+                    .builder()
+                    .walletId("w1")
+                    .version(version)
+                    .tsMillis(version * 10)
+                    .counts(counts)
+                    .total(counts.total())
+                    .amount(3)
+                    .build()
+            );
+        }
+
+        assertNull(walletRecordDao.asOf("w1", 9));
+        assertEquals(expected.get(0), walletRecordDao.asOf("w1", 10).counts());
+        assertEquals(expected.get(149), walletRecordDao.asOf("w1", 1509).counts());
+        assertEquals(counts, walletRecordDao.asOf("w1", Long.MAX_VALUE).counts());
+
+        var tsMillis = new long[] { 2005, 5, 995, 1000, 1235 };
+        var records = walletRecordDao.asOf("w1", tsMillis);
+        assertNull(records.get(1));
+        for (var i : new int[] { 0, 2, 3, 4 }) {
+            var version = tsMillis[i] / 10;
+            assertEquals(version, records.get(i).version());
+            assertEquals(expected.get((int) version - 1), records.get(i).counts());
+        }
+    }
+
+    @Test
+    void findsPaymentByIdempotencyKey() throws InvalidAttributeValueException {
+        var counts = CoinCounts.of(1, 2, 3);
+        walletRecordDao.init(
+            WalletRecord.builder().walletId("w1").version(1).tsMillis(1).counts(counts).total(counts.total()).build()
+        );
+
+        var left = counts.pay(2);
+        walletRecordDao.insert(
+            WalletRecord
+                .builder()
+                .walletId("w1")
+                .version(2)
+                .tsMillis(2)
+                .counts(left)
+                .total(left.total())
+                .amount(2)
+                .idempotencyKey("k1")
+                .build()
+        );
+
+        var paid = walletRecordDao.findByIdempotencyKey("w1", "k1");
+        assertEquals(2, paid.version());
+        assertEquals(2, paid.amount());
+        assertEquals(left, paid.counts());
+        assertNull(walletRecordDao.findByIdempotencyKey("w1", "k2"));
+        assertNull(walletRecordDao.findByIdempotencyKey("w2", "k1"));
+
+        var again = left.pay(1);
+        assertThrows(
+            VersionConflictException.class,
+            () ->
+                walletRecordDao.insert(
+                    WalletRecord
+                        .builder()
+                        .walletId("w1")
+                        .version(3)
+                        .tsMillis(3)
+                        .counts(again)
+                        .total(again.total())
+                        .amount(1)
+                        .idempotencyKey("k1")
+                        .build()
+                )
+        );
+    }
 }
@@ -0,0 +1,99 @@
+package com.jx.test.simplewallet.dao;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.List;
+import javax.management.InvalidAttributeValueException;
+import mockit.Invocation;
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.integration.junit5.JMockitExtension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * The JPA storage without a surrounding test transaction, so every call commits or rolls back on its own.
+ */
+@ExtendWith(JMockitExtension.class)
+@SpringBootTest
+class TestWalletRecordDaoAutoCommit {
+
+    @Autowired
+    WalletRecordDaoH2Impl walletRecordDao;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void cleanUp() {
+        jdbcTemplate.update("DELETE FROM wallet");
+        jdbcTemplate.update("DELETE FROM wallet_event");
+        jdbcTemplate.update("DELETE FROM wallet_archive");
+        jdbcTemplate.update("DELETE FROM wallet_archive_key");
+    }
+
+    @Test
+    void duplicateVersionIsConflict() throws Exception {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 3);
+        walletRecordDao.init(record(1, 0, counts));
+        walletRecordDao.insert(record(2, 1, counts.pay(1)));
+
+        assertThrows(VersionConflictException.class, () -> walletRecordDao.insert(record(2, 2, counts.pay(2))));
+        assertEquals(counts.pay(1), walletRecordDao.latest("a1").counts());
+        assertThrows(InvalidAttributeValueException.class, () -> walletRecordDao.init(record(1, 0, counts)));
+    }
+
+    @Test
+    void rollsBackFailedBatch() throws Exception {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 3);
+        walletRecordDao.init(record(1, 0, counts));
+
+        assertThrows(
+            InvalidAttributeValueException.class,
+            () -> walletRecordDao.insertBatch(List.of(record(2, 1, counts.pay(1)), record(4, 1, counts.pay(2))))
+        );
+        assertEquals(1, walletRecordDao.latest("a1").version());
+    }
+
+    @Test
+    void latestIgnoresSnapshotWrittenWhileReading() throws Exception {
+        var counts = CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 3);
+        walletRecordDao.init(record(1, 0, counts));
+        walletRecordDao.insert(record(2, 1, counts.pay(1)));
+
+        var deposited = counts.pay(1).plus(CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 0, 1));
+        new MockUp<WalletRecordDaoH2Impl>() {
+            @Mock
+            Long latestVersion(Invocation invocation, String walletId) throws Exception {
+                Long version = invocation.proceed();
+                walletRecordDao.insert(record(3, -1, deposited));
+                return version;
+            }
+        };
+
+        var latest = walletRecordDao.latest("a1");
+        assertEquals(2, latest.version());
+        assertEquals(counts.pay(1), latest.counts());
+        assertEquals(3, walletRecordDao.countVersions());
+    }
+
+    static WalletRecord record(long version, long amount, CoinCounts counts) {
+        return WalletRecord
+            .builder()
+            .walletId("a1")
+            .version(version)
+            .tsMillis(100 + version)
+            .counts(counts)
+            .total(counts.total())
+            .amount(amount)
+            .build();
+    }
+}
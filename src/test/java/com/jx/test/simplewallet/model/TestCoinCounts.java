@@ -0,0 +1,200 @@
+package com.jx.test.simplewallet.model;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class TestCoinCounts {
+
+    @Test
+    void countsCoins() {
+        var counts = CoinCounts.of(3, 1, 8, 3);
+
+        assertEquals(1, counts.count(1));
+        assertEquals(2, counts.count(3));
+        assertEquals(1, counts.count(8));
+        assertEquals(15, counts.total());
+        assertEquals(4, counts.size());
+        assertArrayEquals(new int[] { 1, 3, 3, 8 }, counts.toArray());
+    }
+
+    @Test
+    void rejectsInvalidCoins() {
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.of(0));
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.of(9));
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.ofCounts(1, 2));
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.ofCounts(0, 0, 0, -1, 0, 0, 0, 0));
+    }
+
+    @Test
+    void parsesLegacyContent() {
+        assertEquals(CoinCounts.of(1, 2, 2, 7), CoinCounts.parse("1,2,2,7"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "", "1,1.5,2", "1,1,", "1,-1,3", "\"1\"", "9" })
+    void rejectsInvalidContent(String content) {
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.parse(content));
+    }
+
+    @Test
+    void bytesRoundTrip() {
+        var small = CoinCounts.of(1, 2, 3);
+        var large = CoinCounts.ofCounts(1_000_000, 0, 127, 128, 0, 0, 0, Long.MAX_VALUE / 8);
+
+        assertEquals(8, small.toBytes().length);
+        assertEquals(small, CoinCounts.fromBytes(small.toBytes()));
+        assertEquals(large, CoinCounts.fromBytes(large.toBytes()));
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.fromBytes(new byte[] { 1, 2 }));
+    }
+
+    @Test
+    void paysSmallestCoinsFirst() {
+        assertEquals(CoinCounts.of(2, 3), CoinCounts.of(1, 2, 3).pay(1));
+        assertEquals(CoinCounts.of(1, 3), CoinCounts.of(2, 3).pay(1));
+        assertEquals(CoinCounts.of(1), CoinCounts.of(1, 2, 3).pay(5));
+        assertEquals(CoinCounts.EMPTY, CoinCounts.of(1, 2, 3).pay(6));
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.of(1, 2, 3).pay(7));
+    }
+
+    @Test
+    void paysLargestCoinsFirst() {
+        assertEquals(CoinCounts.of(1, 2), CoinCounts.of(1, 2, 3).payLargestFirst(3));
+        assertEquals(CoinCounts.of(1, 1, 6), CoinCounts.of(1, 1, 8).payLargestFirst(2));
+        assertEquals(CoinCounts.of(1), CoinCounts.of(1, 2, 3).payLargestFirst(5));
+        assertEquals(CoinCounts.EMPTY, CoinCounts.of(1, 2, 3).payLargestFirst(6));
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.of(1, 2, 3).payLargestFirst(7));
+    }
+
+    @Test
+    void paysBestFit() {
+        // exact with the fewest coins
+        assertEquals(CoinCounts.of(1, 1, 2, 2), CoinCounts.of(1, 1, 2, 2, 5).payBestFit(5));
+        assertEquals(CoinCounts.of(1, 1, 3), CoinCounts.of(1, 1, 2, 2, 3).payBestFit(4));
+        assertEquals(CoinCounts.of(5), CoinCounts.of(4, 4, 5).payBestFit(8));
+        assertEquals(CoinCounts.of(8), CoinCounts.ofCounts(0, 0, 3, 0, 0, 0, 0, 1000).payBestFit(8001));
+        // no exact payment: the smallest sum above the amount is paid and the change kept
+        assertEquals(CoinCounts.of(2, 5, 8), CoinCounts.of(3, 5, 8).payBestFit(1));
+        assertEquals(CoinCounts.of(8), CoinCounts.of(1, 1, 8).payBestFit(2));
+        assertEquals(CoinCounts.of(1, 5), CoinCounts.of(2, 2, 5).payBestFit(3));
+        assertEquals(CoinCounts.EMPTY, CoinCounts.of(1, 2, 3).payBestFit(6));
+        assertThrows(IllegalArgumentException.class, () -> CoinCounts.of(1, 2, 3).payBestFit(7));
+    }
+
+    @Test
+    void paysBestFitWithFewestCoins() {
+        var random = new Random(11);
+        for (var i = 0; i < 500; i++) {
+            var counts = new long[CoinCounts.MAX_DENOMINATION];
+            for (var d = 0; d < counts.length; d++) {
+                counts[d] = random.nextInt(3) == 0 ? 0 : random.nextInt(i % 2 == 0 ? 20 : 5);
+            }
+            var coins = CoinCounts.ofCounts(counts);
+            if (coins.total() == 0) {
+                continue;
+            }
+
+            // fewest[v]: the fewest coins making up v exactly, one coin at a time
+            var fewest = new int[(int) coins.total() + 1];
+            Arrays.fill(fewest, 1, fewest.length, Integer.MAX_VALUE);
+            for (var coin : coins.toArray()) {
+                for (var v = fewest.length - 1; v >= coin; v--) {
+                    if (fewest[v - coin] != Integer.MAX_VALUE) {
+                        fewest[v] = Math.min(fewest[v], fewest[v - coin] + 1);
+                    }
+                }
+            }
+
+            var amount = 1 + random.nextInt((int) coins.total());
+            var paid = amount;
+            while (fewest[paid] == Integer.MAX_VALUE) {
+                paid++;
+            }
+
+            var left = coins.payBestFit(amount);
+            var change = paid > amount ? 1 : 0;
+            assertEquals(coins.total() - amount, left.total(), coins + " paying " + amount);
+            assertEquals(fewest[paid], coins.size() - left.size() + change, coins + " paying " + amount);
+        }
+    }
+
+    @Test
+    void everySelectionPaysTheAmount() {
+        var random = new Random(7);
+        for (var selection : CoinSelection.values()) {
+            var counts = CoinCounts.ofCounts(3, 0, 5, 1, 0, 2, 0, 4);
+            for (var i = 0; i < 200 && counts.total() > 0; i++) {
+                var amount = 1 + random.nextInt((int) Math.min(counts.total(), 20));
+                var left = selection.pay(counts, amount);
+                assertEquals(counts.total() - amount, left.total(), selection + " paying " + amount);
+                counts = left.plus(CoinCounts.of(1 + random.nextInt(8)));
+            }
+        }
+    }
+
+    @Test
+    void mergesDeposits() {
+        var held = CoinCounts.of(1, 3, 3, 8);
+
+        assertArrayEquals(new int[] { 1, 1, 2, 3, 3, 3, 8 }, held.plus(CoinCounts.of(3, 1, 2)).toArray());
+        assertEquals(held, held.plus(CoinCounts.EMPTY));
+        assertEquals(21, held.plus(CoinCounts.of(6)).total());
+    }
+
+    @Test
+    void payMatchesCoinByCoinWalk() {
+        var random = new Random(42);
+        for (var round = 0; round < 500; round++) {
+            var coins = IntStream.range(0, 1 + random.nextInt(50)).map(i -> 1 + random.nextInt(8)).sorted().toArray();
+            var counts = CoinCounts.of(coins);
+            var amount = 1 + random.nextInt((int) counts.total());
+
+            var list = IntStream.of(coins).boxed().collect(Collectors.toCollection(LinkedList::new));
+            var coin = 0;
+            var used = 0;
+            var amountToPay = amount;
+            while (amountToPay > 0) {
+                coin = list.removeFirst();
+                used++;
+                var diff = Math.min(amountToPay, coin);
+                amountToPay -= diff;
+                coin -= diff;
+            }
+            if (coin > 0) {
+                list.addFirst(coin);
+            }
+
+            assertArrayEquals(list.stream().mapToInt(i -> i).toArray(), counts.pay(amount).toArray());
+            assertEquals(used, counts.coinsToPay(amount));
+        }
+    }
+
+    @Test
+    void coinAtIndexesSortedCoins() {
+        var coins = new int[] { 1, 1, 3, 3, 3, 8 };
+        var counts = CoinCounts.of(coins);
+        for (var i = 0; i < coins.length; i++) {
+            assertEquals(coins[i], counts.coinAt(i));
+        }
+        assertThrows(IndexOutOfBoundsException.class, () -> counts.coinAt(coins.length));
+    }
+
+    @Test
+    void paysLargeWalletWithoutExpandingCoins() {
+        var counts = CoinCounts.ofCounts(3_000_000_000L, 0, 0, 0, 0, 0, 0, 2);
+
+        assertEquals(3_000_000_000L, counts.coinsToPay(3_000_000_000L));
+        assertEquals(3_000_000_001L, counts.coinsToPay(3_000_000_001L));
+        assertEquals(CoinCounts.ofCounts(0, 0, 0, 0, 0, 0, 1, 1), counts.pay(3_000_000_001L));
+        assertEquals(8, counts.coinAt(3_000_000_001L));
+    }
+}
@@ -0,0 +1,221 @@
+package com.jx.test.simplewallet.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.dao.InMemoryWalletRecordDao;
+import com.jx.test.simplewallet.dao.WalletRecordDao;
+import com.jx.test.simplewallet.exception.InvalidPaymentException;
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import javax.management.InvalidAttributeValueException;
+import mockit.Expectations;
+import mockit.Mocked;
+import mockit.Verifications;
+import mockit.integration.junit5.JMockitExtension;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.transaction.support.TransactionOperations;
+
+@ExtendWith(JMockitExtension.class)
+class TestPaymentPipeline {
+
+    @Test
+    void appliesPaymentsInOrder(@Mocked WalletRecordDao walletRecordDao) throws Exception {
+        new Expectations() {
+            {
+                walletRecordDao.latest("w1");
+                result = WalletRecord.builder().walletId("w1").version(1).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+            }
+        };
+
+        var pipeline = new PaymentPipeline(walletRecordDao, new WalletProperties(), WalletMetrics.simple());
+        try {
+            var first = pipeline.submit("w1", 1);
+            var second = pipeline.submit("w1", 2);
+            var third = pipeline.submit("w1", 4);
+
+            assertArrayEquals(new int[] { 2, 3 }, first.get().toArray());
+            assertArrayEquals(new int[] { 3 }, second.get().toArray());
+            var failure = assertThrows(ExecutionException.class, third::get);
+            assertTrue(failure.getCause() instanceof InvalidPaymentException);
+        } finally {
+            pipeline.shutdown();
+        }
+
+        new Verifications() {
+            {
+                List<List<WalletRecord>> batches = new ArrayList<>();
+                walletRecordDao.insertBatch(withCapture(batches));
+
+                var versions = batches.stream().flatMap(List::stream).mapToLong(WalletRecord::version).toArray();
+                assertArrayEquals(new long[] { 2, 3 }, versions);
+                walletRecordDao.latest("w1");
+                times = 1;
+            }
+        };
+    }
+
+    @Test
+    void reloadsAfterConflict(@Mocked WalletRecordDao walletRecordDao) throws Exception {
+        new Expectations() {
+            {
+                walletRecordDao.latest("w1");
+                result = WalletRecord.builder().walletId("w1").version(1).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+                result = WalletRecord.builder().walletId("w1").version(2).counts(CoinCounts.of(2, 3)).total(5).build();
+                walletRecordDao.insertBatch((List<WalletRecord>) any);
+                result = new VersionConflictException("version already updated");
+                result = null;
+            }
+        };
+
+        var pipeline = new PaymentPipeline(walletRecordDao, new WalletProperties(), WalletMetrics.simple());
+        try {
+            assertArrayEquals(new int[] { 3 }, pipeline.submit("w1", 2).get().toArray());
+        } finally {
+            pipeline.shutdown();
+        }
+
+        new Verifications() {
+            {
+                List<List<WalletRecord>> batches = new ArrayList<>();
+                walletRecordDao.insertBatch(withCapture(batches));
+
+                assertEquals(2, batches.size());
+                assertEquals(3, batches.get(1).get(0).version());
+            }
+        };
+    }
+
+    @Test
+    void serviceWaitsForPipeline(@Mocked WalletRecordDao walletRecordDao, @Mocked PaymentPipeline pipeline)
+        throws InvalidAttributeValueException {
+        new Expectations() {
+            {
+                pipeline.submit("w1", 5, null);
+                result = CompletableFuture.failedFuture(
+                    new InvalidPaymentException("insufficient fund", new int[] { 1 })
+                );
+            }
+        };
+
+        var service = new WalletServiceImpl(
+            walletRecordDao,
+            new WalletProperties(),
+            TransactionOperations.withoutTransaction(),
+            pipeline,
+            WalletMetrics.simple()
+        );
+
+        assertThrows(InvalidPaymentException.class, () -> service.pay("w1", 5));
+
+        new Verifications() {
+            {
+                walletRecordDao.insert((WalletRecord) any);
+                times = 0;
+            }
+        };
+    }
+
+    @Test
+    void paysOutOfDeposit() throws Exception {
+        var walletRecordDao = new InMemoryWalletRecordDao();
+        var pipeline = new PaymentPipeline(walletRecordDao, new WalletProperties(), WalletMetrics.simple());
+        var service = new WalletServiceImpl(
+            walletRecordDao,
+            new WalletProperties(),
+            TransactionOperations.withoutTransaction(),
+            pipeline,
+            WalletMetrics.simple()
+        );
+        try {
+            service.init("w1", new int[] { 1, 2 });
+            assertArrayEquals(new int[] { 2 }, service.pay("w1", 1));
+            assertArrayEquals(new int[] { 2, 5 }, service.deposit("w1", new int[] { 5 }));
+
+            assertArrayEquals(new int[] { 1 }, service.pay("w1", 6));
+            assertEquals(4, walletRecordDao.latest("w1").version());
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    void paysAfterBatch() throws Exception {
+        var walletRecordDao = new InMemoryWalletRecordDao();
+        var metrics = WalletMetrics.simple();
+        var pipeline = new PaymentPipeline(walletRecordDao, new WalletProperties(), metrics);
+        var service = new WalletServiceImpl(
+            walletRecordDao,
+            new WalletProperties(),
+            TransactionOperations.withoutTransaction(),
+            pipeline,
+            metrics
+        );
+        try {
+            service.init("w1", new int[] { 1, 2, 3 });
+            assertArrayEquals(new int[] { 2, 3 }, service.pay("w1", 1));
+            service.payBatch("w1", new int[] { 2 });
+
+            var failure = assertThrows(InvalidPaymentException.class, () -> service.pay("w1", 4));
+            assertArrayEquals(new int[] { 3 }, failure.getLeftCoins());
+            assertArrayEquals(new int[0], service.pay("w1", 3));
+            assertEquals(4, walletRecordDao.latest("w1").version());
+            // paid out of the stored wallet right away, not out of a stale copy that conflicts
+            assertEquals(0, metrics.count(WalletMetrics.Outcome.VERSION_CONFLICT));
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    @Test
+    void depositsBetweenPipelinePayments() throws Exception {
+        var walletRecordDao = new InMemoryWalletRecordDao();
+        var metrics = WalletMetrics.simple();
+        var pipeline = new PaymentPipeline(walletRecordDao, new WalletProperties(), metrics);
+        var service = new WalletServiceImpl(
+            walletRecordDao,
+            new WalletProperties(),
+            TransactionOperations.withoutTransaction(),
+            pipeline,
+            metrics
+        );
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var coins = new int[30];
+            Arrays.fill(coins, 1);
+            service.init("w1", coins);
+
+            var calls = new ArrayList<Callable<Object>>();
+            for (var i = 0; i < 30; i++) {
+                calls.add(() -> service.pay("w1", 1));
+                if (i % 3 == 0) {
+                    calls.add(() -> service.deposit("w1", new int[] { 1 }));
+                }
+            }
+            for (var future : executor.invokeAll(calls)) {
+                future.get();
+            }
+
+            var latest = walletRecordDao.latest("w1");
+            assertEquals(41, latest.version());
+            assertEquals(10, latest.total());
+            // the writer saw every deposit, so it never paid out of a copy the deposit had outdated
+            assertEquals(0, metrics.count(WalletMetrics.Outcome.VERSION_CONFLICT));
+        } finally {
+            executor.shutdown();
+            pipeline.shutdown();
+        }
+    }
+}
@@ -2,18 +2,31 @@ package com.jx.test.simplewallet.service;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.jx.test.simplewallet.config.WalletProperties;
 import com.jx.test.simplewallet.dao.WalletRecordDao;
 import com.jx.test.simplewallet.exception.InvalidPaymentException;
+import com.jx.test.simplewallet.exception.TooManyRequestsException;
+import com.jx.test.simplewallet.exception.VersionConflictException;
+import com.jx.test.simplewallet.model.BatchPaymentResult;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.CoinSelection;
 import com.jx.test.simplewallet.model.WalletRecord;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import javax.management.InvalidAttributeValueException;
+import mockit.Delegate;
 import mockit.Expectations;
 import mockit.Mocked;
 import mockit.Verifications;
 import mockit.integration.junit5.JMockitExtension;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.transaction.support.TransactionOperations;
 
 @ExtendWith(JMockitExtension.class)
 class TestWalletRecordService {
@@ -23,7 +36,7 @@ class TestWalletRecordService {
         var service = new WalletServiceImpl(walletRecordDao);
 
         var coins = new int[] { 1, 2, 3 };
-        service.init(coins);
+        service.init("w1", coins);
 
         new Verifications() {
             {
@@ -33,11 +46,43 @@ class TestWalletRecordService {
         };
     }
 
+    @Test
+    void initStoresCounts(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
+        var service = new WalletServiceImpl(walletRecordDao);
+
+        service.init("w1", new int[] { 3, 1, 3, 8 });
+
+        new Verifications() {
+            {
+                WalletRecord r;
+                walletRecordDao.init(r = withCapture());
+
+                assertEquals(15, r.total());
+                assertEquals(CoinCounts.of(1, 3, 3, 8), r.counts());
+                assertNull(r.content());
+            }
+        };
+    }
+
+    @Test
+    void coinsAboveMaxDenomination(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
+        var service = new WalletServiceImpl(walletRecordDao);
+
+        assertThrows(InvalidAttributeValueException.class, () -> service.init("w1", new int[] { 1, 9 }));
+
+        new Verifications() {
+            {
+                walletRecordDao.init((WalletRecord) any);
+                times = 0;
+            }
+        };
+    }
+
     @Test
     void nullCoins(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
         var service = new WalletServiceImpl(walletRecordDao);
 
-        assertThrows(InvalidAttributeValueException.class, () -> service.init(null));
+        assertThrows(InvalidAttributeValueException.class, () -> service.init("w1", null));
 
         new Verifications() {
             {
@@ -51,8 +96,8 @@ class TestWalletRecordService {
     void negativeOrZeroCoins(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
         var service = new WalletServiceImpl(walletRecordDao);
 
-        assertThrows(InvalidAttributeValueException.class, () -> service.init(new int[] { 1, 0 }));
-        assertThrows(InvalidAttributeValueException.class, () -> service.init(new int[] { 1, -1 }));
+        assertThrows(InvalidAttributeValueException.class, () -> service.init("w1", new int[] { 1, 0 }));
+        assertThrows(InvalidAttributeValueException.class, () -> service.init("w1", new int[] { 1, -1 }));
 
         new Verifications() {
             {
@@ -66,12 +111,31 @@ class TestWalletRecordService {
     void emptyCoins(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
         var service = new WalletServiceImpl(walletRecordDao);
 
-        assertThrows(InvalidAttributeValueException.class, () -> service.init(new int[] {}));
+        assertThrows(InvalidAttributeValueException.class, () -> service.init("w1", new int[] {}));
+
+        new Verifications() {
+            {
+                walletRecordDao.init((WalletRecord) any);
+                times = 0;
+            }
+        };
+    }
+
+    @Test
+    void invalidWalletId(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
+        var service = new WalletServiceImpl(walletRecordDao);
+
+        assertThrows(InvalidAttributeValueException.class, () -> service.init(null, new int[] { 1 }));
+        assertThrows(InvalidAttributeValueException.class, () -> service.init("w/1", new int[] { 1 }));
+        assertThrows(InvalidAttributeValueException.class, () -> service.pay("", 1));
+        assertThrows(InvalidAttributeValueException.class, () -> service.latest(null));
 
         new Verifications() {
             {
                 walletRecordDao.init((WalletRecord) any);
                 times = 0;
+                walletRecordDao.insert((WalletRecord) any);
+                times = 0;
             }
         };
     }
@@ -80,18 +144,18 @@ class TestWalletRecordService {
     void noRecord(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
         new Expectations() {
             {
-                walletRecordDao.latest();
+                walletRecordDao.latest(anyString);
                 result = null;
             }
         };
 
         var service = new WalletServiceImpl(walletRecordDao);
-        var result = service.latest();
+        var result = service.latest("w1");
 
         assertArrayEquals(new int[] {}, result);
         new Verifications() {
             {
-                walletRecordDao.latest();
+                walletRecordDao.latest(anyString);
                 times = 1;
             }
         };
@@ -101,18 +165,18 @@ class TestWalletRecordService {
     void gotRecord(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
         new Expectations() {
             {
-                walletRecordDao.latest();
+                walletRecordDao.latest(anyString);
                 result = WalletRecord.builder().content("1,2,3").build();
             }
         };
 
         var service = new WalletServiceImpl(walletRecordDao);
-        var result = service.latest();
+        var result = service.latest("w1");
 
         assertArrayEquals(new int[] { 1, 2, 3 }, result);
         new Verifications() {
             {
-                walletRecordDao.latest();
+                walletRecordDao.latest(anyString);
                 times = 1;
             }
         };
@@ -122,8 +186,8 @@ class TestWalletRecordService {
     void payNegativeOrZeroCoin(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
         var service = new WalletServiceImpl(walletRecordDao);
 
-        assertThrows(InvalidAttributeValueException.class, () -> service.pay(-1));
-        assertThrows(InvalidAttributeValueException.class, () -> service.pay(0));
+        assertThrows(InvalidAttributeValueException.class, () -> service.pay("w1", -1));
+        assertThrows(InvalidAttributeValueException.class, () -> service.pay("w1", 0));
 
         new Verifications() {
             {
@@ -133,18 +197,74 @@ class TestWalletRecordService {
         };
     }
 
+    @Test
+    void paysWithConfiguredCoinSelection(@Mocked WalletRecordDao walletRecordDao)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        new Expectations() {
+            {
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().version(1).counts(CoinCounts.of(1, 1, 8)).total(10).build();
+            }
+        };
+
+        var properties = new WalletProperties();
+        properties.getPayment().setCoinSelection(CoinSelection.LARGEST_FIRST);
+        var service = new WalletServiceImpl(walletRecordDao, properties);
+
+        assertArrayEquals(new int[] { 1, 1, 6 }, service.pay("w1", 2));
+
+        new Verifications() {
+            {
+                WalletRecord r;
+                walletRecordDao.insert(r = withCapture());
+
+                assertEquals(CoinSelection.LARGEST_FIRST, r.coinSelection());
+            }
+        };
+    }
+
+    @Test
+    void depositAddsVersion(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
+        new Expectations() {
+            {
+                walletRecordDao.latest("w1");
+                result = WalletRecord.builder().walletId("w1").version(4).counts(CoinCounts.of(1, 5)).total(6).build();
+                walletRecordDao.latest("w2");
+                result = null;
+            }
+        };
+
+        var service = new WalletServiceImpl(walletRecordDao);
+
+        assertArrayEquals(new int[] { 1, 2, 2, 5 }, service.deposit("w1", new int[] { 2, 2 }));
+        assertThrows(InvalidAttributeValueException.class, () -> service.deposit("w1", new int[] { 2, 9 }));
+        assertThrows(InvalidAttributeValueException.class, () -> service.deposit("w2", new int[] { 2 }));
+
+        new Verifications() {
+            {
+                WalletRecord r;
+                walletRecordDao.insert(r = withCapture());
+                times = 1;
+
+                assertEquals(5, r.version());
+                assertEquals(-4, r.amount());
+                assertEquals(10, r.total());
+            }
+        };
+    }
+
     @Test
     void payEntireCoin(@Mocked WalletRecordDao walletRecordDao)
         throws InvalidAttributeValueException, InvalidPaymentException {
         new Expectations() {
             {
-                walletRecordDao.latest();
-                result = WalletRecord.builder().content("1,2,3").total(6).build();
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().counts(CoinCounts.of(1, 2, 3)).total(6).build();
             }
         };
 
         var service = new WalletServiceImpl(walletRecordDao);
-        var result = service.pay(1);
+        var result = service.pay("w1", 1);
 
         assertArrayEquals(new int[] { 2, 3 }, result);
 
@@ -153,8 +273,10 @@ class TestWalletRecordService {
                 WalletRecord r;
                 walletRecordDao.insert(r = withCapture());
 
+                assertEquals("w1", r.walletId());
+                assertEquals(1, r.amount());
                 assertEquals(5, r.total());
-                assertEquals("2,3", r.content());
+                assertArrayEquals(new int[] { 2, 3 }, r.counts().toArray());
             }
         };
     }
@@ -164,13 +286,13 @@ class TestWalletRecordService {
         throws InvalidAttributeValueException, InvalidPaymentException {
         new Expectations() {
             {
-                walletRecordDao.latest();
-                result = WalletRecord.builder().content("1,2,3").total(6).build();
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().counts(CoinCounts.of(1, 2, 3)).total(6).build();
             }
         };
 
         var service = new WalletServiceImpl(walletRecordDao);
-        var result = service.pay(3);
+        var result = service.pay("w1", 3);
 
         assertArrayEquals(new int[] { 3 }, result);
 
@@ -180,7 +302,7 @@ class TestWalletRecordService {
                 walletRecordDao.insert(r = withCapture());
 
                 assertEquals(3, r.total());
-                assertEquals("3", r.content());
+                assertArrayEquals(new int[] { 3 }, r.counts().toArray());
             }
         };
     }
@@ -190,13 +312,13 @@ class TestWalletRecordService {
         throws InvalidAttributeValueException, InvalidPaymentException {
         new Expectations() {
             {
-                walletRecordDao.latest();
-                result = WalletRecord.builder().content("2,3").total(5).build();
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().counts(CoinCounts.of(2, 3)).total(5).build();
             }
         };
 
         var service = new WalletServiceImpl(walletRecordDao);
-        var result = service.pay(1);
+        var result = service.pay("w1", 1);
 
         assertArrayEquals(new int[] { 1, 3 }, result);
 
@@ -206,7 +328,7 @@ class TestWalletRecordService {
                 walletRecordDao.insert(r = withCapture());
 
                 assertEquals(4, r.total());
-                assertEquals("1,3", r.content());
+                assertArrayEquals(new int[] { 1, 3 }, r.counts().toArray());
             }
         };
     }
@@ -216,13 +338,13 @@ class TestWalletRecordService {
         throws InvalidAttributeValueException, InvalidPaymentException {
         new Expectations() {
             {
-                walletRecordDao.latest();
-                result = WalletRecord.builder().content("1,2,3").total(6).build();
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().counts(CoinCounts.of(1, 2, 3)).total(6).build();
             }
         };
 
         var service = new WalletServiceImpl(walletRecordDao);
-        var result = service.pay(5);
+        var result = service.pay("w1", 5);
 
         assertArrayEquals(new int[] { 1 }, result);
 
@@ -232,7 +354,7 @@ class TestWalletRecordService {
                 walletRecordDao.insert(r = withCapture());
 
                 assertEquals(1, r.total());
-                assertEquals("1", r.content());
+                assertArrayEquals(new int[] { 1 }, r.counts().toArray());
             }
         };
     }
@@ -242,13 +364,13 @@ class TestWalletRecordService {
         throws InvalidAttributeValueException, InvalidPaymentException {
         new Expectations() {
             {
-                walletRecordDao.latest();
-                result = WalletRecord.builder().content("1,2,3").total(6).build();
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().counts(CoinCounts.of(1, 2, 3)).total(6).build();
             }
         };
 
         var service = new WalletServiceImpl(walletRecordDao);
-        var result = service.pay(6);
+        var result = service.pay("w1", 6);
 
         assertArrayEquals(new int[] {}, result);
 
@@ -258,7 +380,7 @@ class TestWalletRecordService {
                 walletRecordDao.insert(r = withCapture());
 
                 assertEquals(0, r.total());
-                assertEquals("", r.content());
+                assertArrayEquals(new int[] {}, r.counts().toArray());
             }
         };
     }
@@ -268,20 +390,319 @@ class TestWalletRecordService {
         throws InvalidAttributeValueException, InvalidPaymentException {
         new Expectations() {
             {
-                walletRecordDao.latest();
-                result = WalletRecord.builder().content("1,2,3").total(6).build();
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().counts(CoinCounts.of(1, 2, 3)).total(6).build();
+            }
+        };
+
+        var service = new WalletServiceImpl(walletRecordDao);
+
+        assertThrows(InvalidPaymentException.class, () -> service.pay("w1", 7));
+
+        new Verifications() {
+            {
+                walletRecordDao.insert((WalletRecord) any);
+                times = 0;
+            }
+        };
+    }
+
+    @Test
+    void countsRejectedPayments(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
+        new Expectations() {
+            {
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().counts(CoinCounts.of(1, 2, 3)).total(6).build();
+            }
+        };
+
+        var metrics = WalletMetrics.simple();
+        var service = new WalletServiceImpl(
+            walletRecordDao,
+            new WalletProperties(),
+            TransactionOperations.withoutTransaction(),
+            null,
+            metrics
+        );
+
+        assertThrows(InvalidPaymentException.class, () -> service.pay("w1", 7));
+        assertThrows(InvalidAttributeValueException.class, () -> service.pay("w1", 0));
+        assertThrows(InvalidAttributeValueException.class, () -> service.pay("bad id", 1));
+
+        assertEquals(1, metrics.count(WalletMetrics.Outcome.INSUFFICIENT_FUNDS));
+        assertEquals(2, metrics.count(WalletMetrics.Outcome.INVALID_INPUT));
+        assertEquals(0, metrics.count(WalletMetrics.Outcome.VERSION_CONFLICT));
+    }
+
+    @Test
+    void shedsPaymentsOverWalletRate(@Mocked WalletRecordDao walletRecordDao)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        new Expectations() {
+            {
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().version(1).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+            }
+        };
+
+        var properties = new WalletProperties();
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setWalletRate(0.01);
+        properties.getAdmission().setWalletBurst(2);
+        var metrics = WalletMetrics.simple();
+        var service = new WalletServiceImpl(
+            walletRecordDao,
+            properties,
+            TransactionOperations.withoutTransaction(),
+            null,
+            metrics
+        );
+
+        service.pay("w1", 1);
+        service.pay("w1", 1);
+        var rejected = assertThrows(TooManyRequestsException.class, () -> service.pay("w1", 1));
+        assertEquals(100, rejected.getRetryAfterSeconds(), 1);
+        service.pay("w2", 1);
+
+        assertEquals(3, metrics.count(WalletMetrics.Admission.ADMITTED));
+        assertEquals(1, metrics.count(WalletMetrics.Admission.REJECTED));
+        assertEquals(0, metrics.count(WalletMetrics.Admission.QUEUED));
+    }
+
+    @Test
+    void queuesPaymentsOverConcurrencyLimit(@Mocked WalletRecordDao walletRecordDao) throws Exception {
+        var entered = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        new Expectations() {
+            {
+                walletRecordDao.latest("slow");
+                result =
+                    new Delegate<WalletRecord>() {
+                        WalletRecord latest(String walletId) throws InterruptedException {
+                            entered.countDown();
+                            release.await();
+                            return WalletRecord.builder().version(1).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+                        }
+                    };
+            }
+        };
+
+        var properties = new WalletProperties();
+        properties.getAdmission().setEnabled(true);
+        properties.getAdmission().setMaxConcurrent(1);
+        properties.getAdmission().setQueueTimeoutMillis(10);
+        var metrics = WalletMetrics.simple();
+        var service = new WalletServiceImpl(
+            walletRecordDao,
+            properties,
+            TransactionOperations.withoutTransaction(),
+            null,
+            metrics
+        );
+
+        var slow = CompletableFuture.supplyAsync(
+            () -> {
+                try {
+                    return service.pay("slow", 1);
+                } catch (InvalidAttributeValueException | InvalidPaymentException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        );
+        entered.await();
+        var rejected = assertThrows(TooManyRequestsException.class, () -> service.pay("w2", 1));
+        assertEquals(1, rejected.getRetryAfterSeconds());
+        release.countDown();
+        assertArrayEquals(new int[] { 2, 3 }, slow.get());
+
+        assertEquals(1, metrics.count(WalletMetrics.Admission.ADMITTED));
+        assertEquals(1, metrics.count(WalletMetrics.Admission.QUEUED));
+        assertEquals(1, metrics.count(WalletMetrics.Admission.REJECTED));
+    }
+
+    @Test
+    void repeatedIdempotencyKeyPaysOnce(@Mocked WalletRecordDao walletRecordDao)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        new Expectations() {
+            {
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().walletId("w1").version(1).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+                walletRecordDao.findByIdempotencyKey("w1", "k1");
+                result = null;
+            }
+        };
+
+        var service = new WalletServiceImpl(walletRecordDao);
+
+        assertArrayEquals(new int[] { 3 }, service.pay("w1", 3, "k1"));
+        assertArrayEquals(new int[] { 3 }, service.pay("w1", 3, "k1"));
+        assertThrows(InvalidAttributeValueException.class, () -> service.pay("w1", 2, "k1"));
+        assertThrows(InvalidAttributeValueException.class, () -> service.pay("w1", 2, "bad key"));
+
+        new Verifications() {
+            {
+                walletRecordDao.insert((WalletRecord) any);
+                times = 1;
+            }
+        };
+    }
+
+    @Test
+    void idempotencyKeyFoundInStorage(@Mocked WalletRecordDao walletRecordDao)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        new Expectations() {
+            {
+                walletRecordDao.findByIdempotencyKey("w1", "k1");
+                result = WalletRecord.builder().walletId("w1").version(2).counts(CoinCounts.of(3)).amount(3).build();
             }
         };
 
         var service = new WalletServiceImpl(walletRecordDao);
 
-        assertThrows(InvalidPaymentException.class, () -> service.pay(7));
+        assertArrayEquals(new int[] { 3 }, service.pay("w1", 3, "k1"));
+
+        new Verifications() {
+            {
+                walletRecordDao.insert((WalletRecord) any);
+                times = 0;
+            }
+        };
+    }
+
+    @Test
+    void retriesVersionConflict(@Mocked WalletRecordDao walletRecordDao)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        new Expectations() {
+            {
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().version(1).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+                result = WalletRecord.builder().version(2).counts(CoinCounts.of(2, 3)).total(5).build();
+                walletRecordDao.insert((WalletRecord) any);
+                result = new VersionConflictException("version already updated");
+                result = null;
+            }
+        };
+
+        var properties = new WalletProperties();
+        properties.getPayment().setBackoffMillis(0);
+        var service = new WalletServiceImpl(walletRecordDao, properties);
+
+        assertArrayEquals(new int[] { 3 }, service.pay("w1", 2));
+        assertEquals(1, service.conflictCount());
+        assertEquals(1, service.retryCount());
+
+        new Verifications() {
+            {
+                List<WalletRecord> records = new ArrayList<>();
+                walletRecordDao.insert(withCapture(records));
+
+                assertEquals(2, records.size());
+                assertEquals(3, records.get(1).version());
+            }
+        };
+    }
+
+    @Test
+    void givesUpAfterMaxRetries(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
+        new Expectations() {
+            {
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().version(1).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+                walletRecordDao.insert((WalletRecord) any);
+                result = new VersionConflictException("version already updated");
+            }
+        };
+
+        var properties = new WalletProperties();
+        properties.getPayment().setBackoffMillis(0);
+        properties.getPayment().setMaxRetries(2);
+        var service = new WalletServiceImpl(walletRecordDao, properties);
+
+        assertThrows(VersionConflictException.class, () -> service.pay("w1", 2));
+        assertEquals(3, service.conflictCount());
+        assertEquals(2, service.retryCount());
+    }
+
+    @Test
+    void pessimisticPaymentLocksLatest(@Mocked WalletRecordDao walletRecordDao)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        new Expectations() {
+            {
+                walletRecordDao.latestForUpdate(anyString);
+                result = WalletRecord.builder().version(1).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+            }
+        };
+
+        var properties = new WalletProperties();
+        properties.getPayment().setConcurrencyControl(ConcurrencyControl.PESSIMISTIC);
+        var service = new WalletServiceImpl(walletRecordDao, properties);
+
+        assertArrayEquals(new int[] { 2, 3 }, service.pay("w1", 1));
+
+        new Verifications() {
+            {
+                walletRecordDao.latest(anyString);
+                times = 0;
+                walletRecordDao.insert((WalletRecord) any);
+                times = 1;
+            }
+        };
+    }
+
+    @Test
+    void payBatchReportsEachAmount(@Mocked WalletRecordDao walletRecordDao)
+        throws InvalidAttributeValueException, InvalidPaymentException {
+        new Expectations() {
+            {
+                walletRecordDao.latest(anyString);
+                result = WalletRecord.builder().version(4).counts(CoinCounts.of(1, 2, 3)).total(6).build();
+            }
+        };
+
+        var service = new WalletServiceImpl(walletRecordDao);
+        var result = service.payBatch("w1", new int[] { 1, 9, 0, 3 });
+
+        assertArrayEquals(
+            new BatchPaymentResult.Status[] {
+                BatchPaymentResult.Status.PAID,
+                BatchPaymentResult.Status.INSUFFICIENT_FUNDS,
+                BatchPaymentResult.Status.INVALID_AMOUNT,
+                BatchPaymentResult.Status.PAID,
+            },
+            result.getStatuses()
+        );
+        assertArrayEquals(new int[] { 2 }, result.getLeftCoins());
 
         new Verifications() {
             {
+                List<WalletRecord> records;
+                walletRecordDao.insertBatch(records = withCapture());
+                times = 1;
+
+                assertEquals(2, records.size());
+                assertEquals(5, records.get(0).version());
+                assertEquals(1, records.get(0).amount());
+                assertEquals(6, records.get(1).version());
+                assertEquals(3, records.get(1).amount());
+                assertEquals(2, records.get(1).total());
+
                 walletRecordDao.insert((WalletRecord) any);
                 times = 0;
             }
         };
     }
+
+    @Test
+    void payBatchWithoutWallet(@Mocked WalletRecordDao walletRecordDao) throws InvalidAttributeValueException {
+        new Expectations() {
+            {
+                walletRecordDao.latest(anyString);
+                result = null;
+            }
+        };
+
+        var service = new WalletServiceImpl(walletRecordDao);
+
+        assertThrows(InvalidAttributeValueException.class, () -> service.payBatch("w1", new int[0]));
+        assertThrows(InvalidPaymentException.class, () -> service.payBatch("w1", new int[] { 1 }));
+    }
 }
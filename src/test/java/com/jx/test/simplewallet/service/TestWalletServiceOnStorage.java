@@ -0,0 +1,69 @@
+package com.jx.test.simplewallet.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.jx.test.simplewallet.config.WalletProperties;
+import com.jx.test.simplewallet.dao.CachingWalletRecordDao;
+import com.jx.test.simplewallet.dao.WalletRecordDaoH2Impl;
+import com.jx.test.simplewallet.model.CoinCounts;
+import com.jx.test.simplewallet.model.WalletRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Services on the JPA storage without a surrounding test transaction, so version conflicts come from the database.
+ */
+@SpringBootTest
+class TestWalletServiceOnStorage {
+
+    @Autowired
+    WalletRecordDaoH2Impl storage;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @AfterEach
+    void cleanUp() {
+        jdbcTemplate.update("DELETE FROM wallet");
+        jdbcTemplate.update("DELETE FROM wallet_event");
+        jdbcTemplate.update("DELETE FROM wallet_archive");
+        jdbcTemplate.update("DELETE FROM wallet_archive_key");
+    }
+
+    @Test
+    void retriesVersionWrittenByAnotherProcess() throws Exception {
+        var properties = new WalletProperties();
+        var service = new WalletServiceImpl(new CachingWalletRecordDao(storage, properties), properties);
+        service.init("s1", new int[] { 8, 8, 8 });
+        assertArrayEquals(new int[] { 7, 8, 8 }, service.pay("s1", 1));
+
+        // another process pays behind the cache, which still holds version 2
+        var counts = CoinCounts.of(6, 8, 8);
+        storage.insert(
+            WalletRecord.builder().walletId("s1").version(3).tsMillis(3).counts(counts).total(22).amount(1).build()
+        );
+
+        assertArrayEquals(new int[] { 5, 8, 8 }, service.pay("s1", 1));
+        assertEquals(1, service.retryCount());
+        assertEquals(4, storage.latest("s1").version());
+    }
+
+    @Test
+    void answersRetryOfArchivedPayment() throws Exception {
+        var properties = new WalletProperties();
+        var service = new WalletServiceImpl(storage, properties);
+        service.init("s1", new int[] { 1, 2, 3, 4 });
+        var left = service.pay("s1", 3, "k1");
+        service.deposit("s1", new int[] { 5 });
+        assertEquals(2, storage.archiveHistory("s1", 1, Long.MAX_VALUE, 100));
+
+        // a new process, so the key is not in the service's own cache
+        var restarted = new WalletServiceImpl(storage, properties);
+        assertArrayEquals(left, restarted.pay("s1", 3, "k1"));
+        assertEquals(3, storage.latest("s1").version());
+    }
+}